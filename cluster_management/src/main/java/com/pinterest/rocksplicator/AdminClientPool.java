@@ -0,0 +1,310 @@
+/// Copyright 2017 Pinterest Inc.
+///
+/// Licensed under the Apache License, Version 2.0 (the "License");
+/// you may not use this file except in compliance with the License.
+/// You may obtain a copy of the License at
+///
+/// http://www.apache.org/licenses/LICENSE-2.0
+
+/// Unless required by applicable law or agreed to in writing, software
+/// distributed under the License is distributed on an "AS IS" BASIS,
+/// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+/// See the License for the specific language governing permissions and
+/// limitations under the License.
+
+package com.pinterest.rocksplicator;
+
+import com.pinterest.rocksdb_admin.thrift.Admin;
+import com.pinterest.rocksdb_admin.thrift.AdminException;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of keep-alive thrift Admin connections, keyed by host:port.
+ *
+ * At most maxConnectionsPerHost connections to a single host:port can be borrowed at the same
+ * time; additional borrowers wait for up to borrowTimeoutMs. Returned connections are kept open
+ * (up to maxIdleConnectionsPerHost of them) and are reused by later borrowers. A connection that
+ * has been idle for longer than validateAfterIdleMs is pinged before being handed out, and one
+ * that has been idle for longer than idleTimeoutMs is closed by a background evictor.
+ *
+ * A connection is discarded instead of being returned to the pool if any call on it fails with
+ * anything other than an {@link AdminException}, since the transport may be left in an unknown
+ * state (e.g. a partially read response after a socket timeout).
+ */
+public class AdminClientPool {
+  private static final Logger LOG = LoggerFactory.getLogger(AdminClientPool.class);
+
+  private final int maxConnectionsPerHost;
+  private final int maxIdleConnectionsPerHost;
+  private final long idleTimeoutMs;
+  private final long validateAfterIdleMs;
+  private final long borrowTimeoutMs;
+  private final ConcurrentMap<String, HostPool> hostPools;
+  private final ScheduledExecutorService evictor;
+
+  public AdminClientPool(int maxConnectionsPerHost, int maxIdleConnectionsPerHost,
+                         long idleTimeoutMs, long validateAfterIdleMs, long borrowTimeoutMs) {
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+    this.maxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+    this.idleTimeoutMs = idleTimeoutMs;
+    this.validateAfterIdleMs = validateAfterIdleMs;
+    this.borrowTimeoutMs = borrowTimeoutMs;
+    this.hostPools = new ConcurrentHashMap<>();
+    this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "AdminClientPool-evictor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long evictIntervalMs = Math.max(1000, idleTimeoutMs / 2);
+    this.evictor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          evictIdleConnections();
+        } catch (RuntimeException e) {
+          LOG.error("Failed to evict idle admin connections", e);
+        }
+      }
+    }, evictIntervalMs, evictIntervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Borrow a client connected to host:port. The returned lease must be closed to give the
+   * connection back to the pool, preferably with try-with-resources.
+   * @param host
+   * @param port
+   * @return a lease on a pooled client
+   * @throws TTransportException if no connection could be established within borrowTimeoutMs
+   */
+  public Lease borrow(String host, int port) throws TTransportException {
+    String key = host + ":" + String.valueOf(port);
+    HostPool pool = hostPools.get(key);
+    if (pool == null) {
+      HostPool newPool = new HostPool();
+      pool = hostPools.putIfAbsent(key, newPool);
+      if (pool == null) {
+        pool = newPool;
+      }
+    }
+
+    try {
+      if (!pool.permits.tryAcquire(borrowTimeoutMs, TimeUnit.MILLISECONDS)) {
+        throw new TTransportException(TTransportException.TIMED_OUT,
+            "Timed out waiting for an admin connection to " + key);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TTransportException(TTransportException.UNKNOWN,
+          "Interrupted while waiting for an admin connection to " + key, e);
+    }
+
+    boolean leased = false;
+    try {
+      Connection connection;
+      while ((connection = pool.pollIdle()) != null) {
+        if (isUsable(connection)) {
+          leased = true;
+          return new Lease(pool, connection);
+        }
+        connection.close();
+      }
+
+      connection = new Connection(host, port);
+      leased = true;
+      return new Lease(pool, connection);
+    } finally {
+      if (!leased) {
+        pool.permits.release();
+      }
+    }
+  }
+
+  /**
+   * Close all idle connections. Connections currently borrowed are closed when returned.
+   */
+  public void close() {
+    evictor.shutdownNow();
+    for (HostPool pool : hostPools.values()) {
+      for (Connection connection : pool.drainIdle()) {
+        connection.close();
+      }
+    }
+  }
+
+  private boolean isUsable(Connection connection) {
+    if (!connection.socket.isOpen()) {
+      return false;
+    }
+
+    if (System.currentTimeMillis() - connection.lastUsedMs < validateAfterIdleMs) {
+      return true;
+    }
+
+    try {
+      connection.client.ping();
+      return true;
+    } catch (TException e) {
+      LOG.error("Discard stale admin connection to " + connection.hostPort, e);
+      return false;
+    }
+  }
+
+  private void release(HostPool pool, Connection connection) {
+    try {
+      if (connection.broken || !connection.socket.isOpen()) {
+        connection.close();
+        return;
+      }
+
+      connection.lastUsedMs = System.currentTimeMillis();
+      if (!pool.offerIdle(connection, maxIdleConnectionsPerHost)) {
+        connection.close();
+      }
+    } finally {
+      pool.permits.release();
+    }
+  }
+
+  private void evictIdleConnections() {
+    long expireBeforeMs = System.currentTimeMillis() - idleTimeoutMs;
+    for (HostPool pool : hostPools.values()) {
+      for (Connection connection : pool.removeIdleBefore(expireBeforeMs)) {
+        connection.close();
+      }
+    }
+  }
+
+  /**
+   * A borrowed client. Closing the lease returns the underlying connection to the pool.
+   */
+  public final class Lease implements AutoCloseable {
+    private final HostPool pool;
+    private final Connection connection;
+    private boolean closed;
+
+    private Lease(HostPool pool, Connection connection) {
+      this.pool = pool;
+      this.connection = connection;
+      this.closed = false;
+    }
+
+    public Admin.Iface getClient() {
+      return connection.proxy;
+    }
+
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      release(pool, connection);
+    }
+  }
+
+  private final class HostPool {
+    private final Semaphore permits;
+    private final Deque<Connection> idle;
+
+    private HostPool() {
+      this.permits = new Semaphore(maxConnectionsPerHost, true);
+      this.idle = new ArrayDeque<>();
+    }
+
+    // Most recently used connections are handed out first, so that the least recently used ones
+    // at the tail age out and get evicted when the load drops.
+    private synchronized Connection pollIdle() {
+      return idle.pollFirst();
+    }
+
+    private synchronized boolean offerIdle(Connection connection, int maxIdle) {
+      if (idle.size() >= maxIdle) {
+        return false;
+      }
+      idle.offerFirst(connection);
+      return true;
+    }
+
+    private synchronized List<Connection> removeIdleBefore(long expireBeforeMs) {
+      List<Connection> expired = new ArrayList<>();
+      Iterator<Connection> iter = idle.descendingIterator();
+      while (iter.hasNext()) {
+        Connection connection = iter.next();
+        if (connection.lastUsedMs >= expireBeforeMs) {
+          break;
+        }
+        iter.remove();
+        expired.add(connection);
+      }
+      return expired;
+    }
+
+    private synchronized List<Connection> drainIdle() {
+      List<Connection> drained = new ArrayList<>(idle);
+      idle.clear();
+      return drained;
+    }
+  }
+
+  private static final class Connection implements InvocationHandler {
+    private final String hostPort;
+    private final TSocket socket;
+    private final Admin.Client client;
+    private final Admin.Iface proxy;
+    private volatile boolean broken;
+    private volatile long lastUsedMs;
+
+    private Connection(String host, int port) throws TTransportException {
+      this.hostPort = host + ":" + String.valueOf(port);
+      this.socket = new TSocket(host, port);
+      this.socket.open();
+      this.client = new Admin.Client(new TBinaryProtocol(socket));
+      this.proxy = (Admin.Iface) Proxy.newProxyInstance(Admin.Iface.class.getClassLoader(),
+          new Class<?>[]{Admin.Iface.class}, this);
+      this.broken = false;
+      this.lastUsedMs = System.currentTimeMillis();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      try {
+        return method.invoke(client, args);
+      } catch (InvocationTargetException e) {
+        if (!(e.getCause() instanceof AdminException)) {
+          broken = true;
+        }
+        throw e.getCause();
+      }
+    }
+
+    private void close() {
+      socket.close();
+    }
+  }
+}
@@ -0,0 +1,369 @@
+/// Copyright 2017 Pinterest Inc.
+///
+/// Licensed under the Apache License, Version 2.0 (the "License");
+/// you may not use this file except in compliance with the License.
+/// You may obtain a copy of the License at
+///
+/// http://www.apache.org/licenses/LICENSE-2.0
+
+/// Unless required by applicable law or agreed to in writing, software
+/// distributed under the License is distributed on an "AS IS" BASIS,
+/// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+/// See the License for the specific language governing permissions and
+/// limitations under the License.
+
+package com.pinterest.rocksplicator;
+
+import com.pinterest.rocksdb_admin.thrift.Admin;
+import com.pinterest.rocksdb_admin.thrift.AdminError;
+import com.pinterest.rocksdb_admin.thrift.AdminException;
+import com.pinterest.rocksdb_admin.thrift.CheckDBRequest;
+import com.pinterest.rocksdb_admin.thrift.CheckDBResponse;
+import com.pinterest.rocksdb_admin.thrift.CheckDBsRequest;
+import com.pinterest.rocksdb_admin.thrift.CheckDBsResponse;
+import com.pinterest.rocksdb_admin.thrift.CloseDBRequest;
+import com.pinterest.rocksdb_admin.thrift.CloseDBsRequest;
+import com.pinterest.rocksdb_admin.thrift.CloseDBsResponse;
+import com.pinterest.rocksdb_admin.thrift.GetSequenceNumberRequest;
+import com.pinterest.rocksdb_admin.thrift.GetSequenceNumbersRequest;
+import com.pinterest.rocksdb_admin.thrift.GetSequenceNumbersResponse;
+
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesce concurrent per DB admin calls to the same host into batch RPCs.
+ *
+ * State transitions of different partitions run on different Helix threads, so a participant
+ * restart issues one checkDB/closeDB/getSequenceNumber call per partition at roughly the same
+ * time. A call is sent right away if no other call for the same op and host:port is queued or in
+ * flight. Otherwise it is queued, and calls queued within windowMs of the first one are sent as
+ * a single checkDBs/closeDBs/getSequenceNumbers request, which is flushed early once it reaches
+ * maxBatchSize DBs or once the calls in flight finish. Callers still block until their own DB's
+ * result is available.
+ *
+ * Hosts running an admin server without the batch RPCs are remembered and served with per DB
+ * calls from then on.
+ */
+public class AdminRequestBatcher {
+  private static final Logger LOG = LoggerFactory.getLogger(AdminRequestBatcher.class);
+  private static final int NUM_EXECUTOR_THREADS = 16;
+
+  private enum Op {
+    CHECK_DB,
+    CLOSE_DB,
+    GET_SEQ_NUM,
+  }
+
+  private final long windowMs;
+  private final int maxBatchSize;
+  // guarded by pendingBatches
+  private final Map<String, Batch> pendingBatches;
+  // number of batches in flight per key, guarded by pendingBatches
+  private final Map<String, Integer> inFlightBatches;
+  private final Set<String> noBatchHosts;
+  private final ScheduledExecutorService scheduler;
+  private final ExecutorService executor;
+
+  public AdminRequestBatcher(long windowMs, int maxBatchSize) {
+    this.windowMs = windowMs;
+    this.maxBatchSize = maxBatchSize;
+    this.pendingBatches = new HashMap<>();
+    this.inFlightBatches = new HashMap<>();
+    this.noBatchHosts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(
+        new DaemonThreadFactory("AdminRequestBatcher-scheduler"));
+    this.executor = Executors.newFixedThreadPool(NUM_EXECUTOR_THREADS,
+        new DaemonThreadFactory("AdminRequestBatcher-executor"));
+  }
+
+  /**
+   * Check the status of the DB on host:adminPort
+   * @param host
+   * @param adminPort
+   * @param dbName
+   * @return the DB status
+   * @throws TException
+   */
+  public CheckDBResponse checkDB(String host, int adminPort, String dbName) throws TException {
+    return (CheckDBResponse) await(submit(Op.CHECK_DB, host, adminPort, dbName));
+  }
+
+  /**
+   * Close the DB on host:adminPort
+   * @param host
+   * @param adminPort
+   * @param dbName
+   * @throws TException
+   */
+  public void closeDB(String host, int adminPort, String dbName) throws TException {
+    await(submit(Op.CLOSE_DB, host, adminPort, dbName));
+  }
+
+  /**
+   * Get the latest sequence number of the DB on host:adminPort
+   * @param host
+   * @param adminPort
+   * @param dbName
+   * @return the latest sequence number
+   * @throws TException
+   */
+  public long getSequenceNumber(String host, int adminPort, String dbName) throws TException {
+    return (Long) await(submit(Op.GET_SEQ_NUM, host, adminPort, dbName));
+  }
+
+  private ResultFuture<Object> submit(Op op, String host, int adminPort, String dbName) {
+    final String key = op.name() + "@" + host + ":" + String.valueOf(adminPort);
+    Batch single = null;
+    Batch full = null;
+    ResultFuture<Object> future;
+    synchronized (pendingBatches) {
+      Batch pending = pendingBatches.get(key);
+      if (pending == null && !inFlightBatches.containsKey(key)) {
+        // nothing to batch with, send it from the calling thread without waiting for the window
+        single = new Batch(key, op, host, adminPort);
+        future = new ResultFuture<>();
+        single.futures.put(dbName, future);
+        addInFlight(key);
+      } else {
+        if (pending == null) {
+          pending = new Batch(key, op, host, adminPort);
+          pendingBatches.put(key, pending);
+          final Batch scheduled = pending;
+          scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+              flush(scheduled);
+            }
+          }, windowMs, TimeUnit.MILLISECONDS);
+        }
+
+        // the same DB requested twice in one window shares one result
+        future = pending.futures.get(dbName);
+        if (future == null) {
+          future = new ResultFuture<>();
+          pending.futures.put(dbName, future);
+        }
+        if (pending.futures.size() >= maxBatchSize) {
+          pendingBatches.remove(key);
+          addInFlight(key);
+          full = pending;
+        }
+      }
+    }
+
+    if (single != null) {
+      executeAndFlushNext(single);
+    } else if (full != null) {
+      executeAsync(full);
+    }
+    return future;
+  }
+
+  private void flush(Batch batch) {
+    synchronized (pendingBatches) {
+      if (pendingBatches.get(batch.key) != batch) {
+        // flushed already
+        return;
+      }
+      pendingBatches.remove(batch.key);
+      addInFlight(batch.key);
+    }
+    executeAsync(batch);
+  }
+
+  private void executeAsync(final Batch batch) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        executeAndFlushNext(batch);
+      }
+    });
+  }
+
+  // calls queued while the batch was in flight are sent as soon as the host is idle again
+  private void executeAndFlushNext(Batch batch) {
+    try {
+      execute(batch);
+    } finally {
+      Batch next = null;
+      synchronized (pendingBatches) {
+        int inFlight = inFlightBatches.get(batch.key) - 1;
+        if (inFlight > 0) {
+          inFlightBatches.put(batch.key, inFlight);
+        } else {
+          inFlightBatches.remove(batch.key);
+          next = pendingBatches.get(batch.key);
+        }
+      }
+      if (next != null) {
+        flush(next);
+      }
+    }
+  }
+
+  // guarded by pendingBatches
+  private void addInFlight(String key) {
+    Integer inFlight = inFlightBatches.get(key);
+    inFlightBatches.put(key, inFlight == null ? 1 : inFlight + 1);
+  }
+
+  private void execute(Batch batch) {
+    String hostPort = batch.host + ":" + String.valueOf(batch.adminPort);
+    try (AdminClientPool.Lease lease = Utils.borrowAdminClient(batch.host, batch.adminPort)) {
+      Admin.Iface client = lease.getClient();
+      if (batch.futures.size() == 1 || noBatchHosts.contains(hostPort)) {
+        executeOneByOne(client, batch);
+        return;
+      }
+
+      try {
+        executeBatch(client, batch);
+      } catch (TApplicationException e) {
+        if (e.getType() != TApplicationException.UNKNOWN_METHOD) {
+          throw e;
+        }
+        LOG.error(hostPort + " doesn't support batch admin requests, fall back to per DB calls");
+        noBatchHosts.add(hostPort);
+        executeOneByOne(client, batch);
+      }
+    } catch (TException | RuntimeException e) {
+      LOG.error("Failed to execute " + batch.op.name() + " for " +
+          String.valueOf(batch.futures.size()) + " DBs on " + hostPort, e);
+      for (ResultFuture<Object> future : batch.futures.values()) {
+        // no-op for futures completed already
+        future.fail(e);
+      }
+    }
+  }
+
+  private void executeBatch(Admin.Iface client, Batch batch) throws TException {
+    List<String> dbNames = new ArrayList<>(batch.futures.keySet());
+    Map<String, ?> results;
+    Map<String, AdminError> errors;
+    switch (batch.op) {
+      case CHECK_DB:
+        CheckDBsResponse checkResponse = client.checkDBs(new CheckDBsRequest(dbNames));
+        results = checkResponse.db_status;
+        errors = checkResponse.errors;
+        break;
+      case CLOSE_DB:
+        CloseDBsResponse closeResponse = client.closeDBs(new CloseDBsRequest(dbNames));
+        results = null;
+        errors = closeResponse.errors;
+        break;
+      case GET_SEQ_NUM:
+        GetSequenceNumbersResponse seqResponse =
+            client.getSequenceNumbers(new GetSequenceNumbersRequest(dbNames));
+        results = seqResponse.seq_nums;
+        errors = seqResponse.errors;
+        break;
+      default:
+        throw new IllegalStateException("Unknown op " + batch.op.name());
+    }
+
+    for (Map.Entry<String, ResultFuture<Object>> entry : batch.futures.entrySet()) {
+      String dbName = entry.getKey();
+      AdminError error = errors == null ? null : errors.get(dbName);
+      if (error != null) {
+        entry.getValue().fail(new AdminException(error.message, error.errorCode));
+      } else if (results == null) {
+        entry.getValue().complete(null);
+      } else if (results.containsKey(dbName)) {
+        entry.getValue().complete(results.get(dbName));
+      } else {
+        entry.getValue().fail(new TApplicationException(TApplicationException.MISSING_RESULT,
+            "No result for " + dbName + " in " + batch.op.name() + " batch response"));
+      }
+    }
+  }
+
+  // AdminException only fails the DB it is thrown for, any other error fails the rest of the batch
+  private void executeOneByOne(Admin.Iface client, Batch batch) throws TException {
+    for (Map.Entry<String, ResultFuture<Object>> entry : batch.futures.entrySet()) {
+      String dbName = entry.getKey();
+      try {
+        switch (batch.op) {
+          case CHECK_DB:
+            entry.getValue().complete(client.checkDB(new CheckDBRequest(dbName)));
+            break;
+          case CLOSE_DB:
+            client.closeDB(new CloseDBRequest(dbName));
+            entry.getValue().complete(null);
+            break;
+          case GET_SEQ_NUM:
+            entry.getValue().complete(
+                client.getSequenceNumber(new GetSequenceNumberRequest(dbName)).seq_num);
+            break;
+          default:
+            throw new IllegalStateException("Unknown op " + batch.op.name());
+        }
+      } catch (AdminException e) {
+        entry.getValue().fail(e);
+      }
+    }
+  }
+
+  private static Object await(ResultFuture<Object> future) throws TException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TException("Interrupted while waiting for a batched admin request", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof TException) {
+        throw (TException) e.getCause();
+      }
+      throw new TException(e.getCause());
+    }
+  }
+
+  private static final class Batch {
+    private final String key;
+    private final Op op;
+    private final String host;
+    private final int adminPort;
+    // keep the arrival order so that per DB fallback calls are issued first come first served
+    private final Map<String, ResultFuture<Object>> futures;
+
+    private Batch(String key, Op op, String host, int adminPort) {
+      this.key = key;
+      this.op = op;
+      this.host = host;
+      this.adminPort = adminPort;
+      this.futures = new LinkedHashMap<>();
+    }
+  }
+
+  private static final class DaemonThreadFactory implements ThreadFactory {
+    private final String name;
+
+    private DaemonThreadFactory(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, name);
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
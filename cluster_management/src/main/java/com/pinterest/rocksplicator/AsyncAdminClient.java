@@ -0,0 +1,395 @@
+/// Copyright 2017 Pinterest Inc.
+///
+/// Licensed under the Apache License, Version 2.0 (the "License");
+/// you may not use this file except in compliance with the License.
+/// You may obtain a copy of the License at
+///
+/// http://www.apache.org/licenses/LICENSE-2.0
+
+/// Unless required by applicable law or agreed to in writing, software
+/// distributed under the License is distributed on an "AS IS" BASIS,
+/// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+/// See the License for the specific language governing permissions and
+/// limitations under the License.
+
+package com.pinterest.rocksplicator;
+
+import com.pinterest.rocksdb_admin.thrift.Admin;
+import com.pinterest.rocksdb_admin.thrift.AdminException;
+import com.pinterest.rocksdb_admin.thrift.ChangeDBRoleAndUpstreamRequest;
+import com.pinterest.rocksdb_admin.thrift.CheckDBRequest;
+import com.pinterest.rocksdb_admin.thrift.CheckDBResponse;
+import com.pinterest.rocksdb_admin.thrift.CloseDBRequest;
+import com.pinterest.rocksdb_admin.thrift.GetSequenceNumberRequest;
+import com.pinterest.rocksdb_admin.thrift.GetSequenceNumbersRequest;
+import com.pinterest.rocksdb_admin.thrift.GetSequenceNumbersResponse;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TNonblockingSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking counterpart of the admin RPC helpers in {@link Utils}.
+ *
+ * All calls are driven by a single selector thread owned by a {@link TAsyncClientManager}, so
+ * one caller can keep hundreds of admin calls in flight and wait for the returned futures
+ * afterwards. A thrift async client can only run one call at a time, so idle clients are kept per
+ * host:port and reused by later calls. A client whose call failed for any reason other than an
+ * {@link AdminException} is closed instead of being reused.
+ *
+ * Calls that do not finish within timeoutMs fail with a {@link java.util.concurrent.TimeoutException}
+ * wrapped in the {@link java.util.concurrent.ExecutionException} thrown by the future.
+ */
+public class AsyncAdminClient {
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncAdminClient.class);
+
+  private final TAsyncClientManager clientManager;
+  private final TProtocolFactory protocolFactory;
+  private final long timeoutMs;
+  private final int maxIdleClientsPerHost;
+  private final ConcurrentMap<String, IdleClients> idleClients;
+
+  public AsyncAdminClient(long timeoutMs, int maxIdleClientsPerHost) throws IOException {
+    this.clientManager = new TAsyncClientManager();
+    this.protocolFactory = new TBinaryProtocol.Factory();
+    this.timeoutMs = timeoutMs;
+    this.maxIdleClientsPerHost = maxIdleClientsPerHost;
+    this.idleClients = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Get the latest sequence number of the DB on host:adminPort
+   * @param host
+   * @param adminPort
+   * @param dbName
+   * @return a future of the latest sequence number
+   */
+  public Future<Long> getSequenceNumber(String host, int adminPort, String dbName) {
+    final ResultFuture<Long> future = new ResultFuture<>();
+    PooledClient client = borrow(host, adminPort, future);
+    if (client == null) {
+      return future;
+    }
+
+    try {
+      client.client.getSequenceNumber(new GetSequenceNumberRequest(dbName),
+          new Callback<Admin.AsyncClient.getSequenceNumber_call, Long>(client, future) {
+            @Override
+            protected Long getResult(Admin.AsyncClient.getSequenceNumber_call call)
+                throws TException {
+              return call.getResult().seq_num;
+            }
+          });
+    } catch (TException e) {
+      discard(client);
+      future.fail(e);
+    }
+    return future;
+  }
+
+  /**
+   * Get the latest sequence numbers of multiple DBs on host:adminPort in a single call
+   * @param host
+   * @param adminPort
+   * @param dbNames
+   * @return a future of the sequence numbers, and the errors of the DBs which couldn't be read
+   */
+  public Future<GetSequenceNumbersResponse> getSequenceNumbers(String host, int adminPort,
+                                                               List<String> dbNames) {
+    final ResultFuture<GetSequenceNumbersResponse> future = new ResultFuture<>();
+    PooledClient client = borrow(host, adminPort, future);
+    if (client == null) {
+      return future;
+    }
+
+    try {
+      client.client.getSequenceNumbers(new GetSequenceNumbersRequest(dbNames),
+          new Callback<Admin.AsyncClient.getSequenceNumbers_call, GetSequenceNumbersResponse>(
+              client, future) {
+            @Override
+            protected GetSequenceNumbersResponse getResult(
+                Admin.AsyncClient.getSequenceNumbers_call call) throws TException {
+              return call.getResult();
+            }
+          });
+    } catch (TException e) {
+      discard(client);
+      future.fail(e);
+    }
+    return future;
+  }
+
+  /**
+   * Check the status of the DB on host:adminPort
+   * @param host
+   * @param adminPort
+   * @param dbName
+   * @return a future of the DB status
+   */
+  public Future<CheckDBResponse> checkDB(String host, int adminPort, String dbName) {
+    final ResultFuture<CheckDBResponse> future = new ResultFuture<>();
+    PooledClient client = borrow(host, adminPort, future);
+    if (client == null) {
+      return future;
+    }
+
+    try {
+      client.client.checkDB(new CheckDBRequest(dbName),
+          new Callback<Admin.AsyncClient.checkDB_call, CheckDBResponse>(client, future) {
+            @Override
+            protected CheckDBResponse getResult(Admin.AsyncClient.checkDB_call call)
+                throws TException {
+              return call.getResult();
+            }
+          });
+    } catch (TException e) {
+      discard(client);
+      future.fail(e);
+    }
+    return future;
+  }
+
+  /**
+   * Change DB role and upstream on host:adminPort
+   * @param host
+   * @param adminPort
+   * @param dbName
+   * @param role
+   * @param upstreamIP
+   * @param upstreamPort
+   * @return a future that completes once the change is applied
+   */
+  public Future<Void> changeDBRoleAndUpStream(String host, int adminPort, String dbName,
+                                              String role, String upstreamIP, int upstreamPort) {
+    final ResultFuture<Void> future = new ResultFuture<>();
+    PooledClient client = borrow(host, adminPort, future);
+    if (client == null) {
+      return future;
+    }
+
+    ChangeDBRoleAndUpstreamRequest request = new ChangeDBRoleAndUpstreamRequest(dbName, role);
+    request.setUpstream_ip(upstreamIP);
+    request.setUpstream_port((short) upstreamPort);
+    try {
+      client.client.changeDBRoleAndUpStream(request,
+          new Callback<Admin.AsyncClient.changeDBRoleAndUpStream_call, Void>(client, future) {
+            @Override
+            protected Void getResult(Admin.AsyncClient.changeDBRoleAndUpStream_call call)
+                throws TException {
+              call.getResult();
+              return null;
+            }
+          });
+    } catch (TException e) {
+      discard(client);
+      future.fail(e);
+    }
+    return future;
+  }
+
+  /**
+   * Close the DB on host:adminPort
+   * @param host
+   * @param adminPort
+   * @param dbName
+   * @return a future that completes once the DB is closed
+   */
+  public Future<Void> closeDB(String host, int adminPort, String dbName) {
+    final ResultFuture<Void> future = new ResultFuture<>();
+    PooledClient client = borrow(host, adminPort, future);
+    if (client == null) {
+      return future;
+    }
+
+    try {
+      client.client.closeDB(new CloseDBRequest(dbName),
+          new Callback<Admin.AsyncClient.closeDB_call, Void>(client, future) {
+            @Override
+            protected Void getResult(Admin.AsyncClient.closeDB_call call) throws TException {
+              call.getResult();
+              return null;
+            }
+          });
+    } catch (TException e) {
+      discard(client);
+      future.fail(e);
+    }
+    return future;
+  }
+
+  /**
+   * Ping the admin server on host:adminPort
+   * @param host
+   * @param adminPort
+   * @return a future that completes once the server responds
+   */
+  public Future<Void> ping(String host, int adminPort) {
+    final ResultFuture<Void> future = new ResultFuture<>();
+    PooledClient client = borrow(host, adminPort, future);
+    if (client == null) {
+      return future;
+    }
+
+    try {
+      client.client.ping(new Callback<Admin.AsyncClient.ping_call, Void>(client, future) {
+        @Override
+        protected Void getResult(Admin.AsyncClient.ping_call call) throws TException {
+          call.getResult();
+          return null;
+        }
+      });
+    } catch (TException e) {
+      discard(client);
+      future.fail(e);
+    }
+    return future;
+  }
+
+  /**
+   * Stop the selector thread and close all idle connections. In-flight calls fail.
+   */
+  public void close() {
+    clientManager.stop();
+    for (IdleClients clients : idleClients.values()) {
+      PooledClient client;
+      while ((client = clients.poll()) != null) {
+        client.transport.close();
+      }
+    }
+  }
+
+  // return null and fail the future if a new client can't be created
+  private PooledClient borrow(String host, int adminPort, ResultFuture<?> future) {
+    IdleClients clients = getIdleClients(host, adminPort);
+    PooledClient client;
+    while ((client = clients.poll()) != null) {
+      if (!client.client.hasError() && client.transport.isOpen()) {
+        return client;
+      }
+      client.transport.close();
+    }
+
+    try {
+      TNonblockingSocket transport = new TNonblockingSocket(host, adminPort);
+      Admin.AsyncClient asyncClient =
+          new Admin.AsyncClient(protocolFactory, clientManager, transport);
+      asyncClient.setTimeout(timeoutMs);
+      return new PooledClient(clients, transport, asyncClient);
+    } catch (IOException e) {
+      LOG.error("Failed to create async admin client to " + host + ":" + adminPort, e);
+      future.fail(e);
+      return null;
+    }
+  }
+
+  private void release(PooledClient client) {
+    if (client.client.hasError() || !client.transport.isOpen() ||
+        !client.owner.offer(client, maxIdleClientsPerHost)) {
+      client.transport.close();
+    }
+  }
+
+  private void discard(PooledClient client) {
+    client.transport.close();
+  }
+
+  private IdleClients getIdleClients(String host, int adminPort) {
+    String key = host + ":" + String.valueOf(adminPort);
+    IdleClients clients = idleClients.get(key);
+    if (clients == null) {
+      IdleClients newClients = new IdleClients();
+      clients = idleClients.putIfAbsent(key, newClients);
+      if (clients == null) {
+        clients = newClients;
+      }
+    }
+    return clients;
+  }
+
+  private abstract class Callback<C, R> implements AsyncMethodCallback<C> {
+    private final PooledClient client;
+    private final ResultFuture<R> future;
+
+    Callback(PooledClient client, ResultFuture<R> future) {
+      this.client = client;
+      this.future = future;
+    }
+
+    protected abstract R getResult(C call) throws TException;
+
+    @Override
+    public void onComplete(C call) {
+      R result;
+      try {
+        result = getResult(call);
+      } catch (AdminException e) {
+        // application level error, the connection itself is still good
+        release(client);
+        future.fail(e);
+        return;
+      } catch (TException e) {
+        discard(client);
+        future.fail(e);
+        return;
+      }
+
+      release(client);
+      future.complete(result);
+    }
+
+    @Override
+    public void onError(Exception e) {
+      discard(client);
+      future.fail(e);
+    }
+  }
+
+  private static final class PooledClient {
+    private final IdleClients owner;
+    private final TNonblockingSocket transport;
+    private final Admin.AsyncClient client;
+
+    private PooledClient(IdleClients owner, TNonblockingSocket transport,
+                         Admin.AsyncClient client) {
+      this.owner = owner;
+      this.transport = transport;
+      this.client = client;
+    }
+  }
+
+  private static final class IdleClients {
+    private final Queue<PooledClient> clients = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    private PooledClient poll() {
+      PooledClient client = clients.poll();
+      if (client != null) {
+        size.decrementAndGet();
+      }
+      return client;
+    }
+
+    private boolean offer(PooledClient client, int maxSize) {
+      if (size.incrementAndGet() > maxSize) {
+        size.decrementAndGet();
+        return false;
+      }
+      clients.offer(client);
+      return true;
+    }
+  }
+}
@@ -18,8 +18,6 @@
 
 package com.pinterest.rocksplicator;
 
-import com.pinterest.rocksdb_admin.thrift.AddS3SstFilesToDBRequest;
-import com.pinterest.rocksdb_admin.thrift.Admin;
 import com.pinterest.rocksdb_admin.thrift.StartMessageIngestionRequest;
 import com.pinterest.rocksdb_admin.thrift.StopMessageIngestionRequest;
 
@@ -144,11 +142,8 @@ public class BootstrapStateModelFactory extends StateModelFactory<StateModel> {
           LOG.error("Failed to parse s3_download_limit_mb", e);
         }
 
-        AddS3SstFilesToDBRequest req = new AddS3SstFilesToDBRequest(Utils.getDbName(partitionName),
-                s3Bucket, s3Path + Utils.getS3PartPrefix(partitionName));
-        req.setS3_download_limit_mb(s3_download_limit_mb);
-        Admin.Client client = Utils.getLocalAdminClient(adminPort);
-        client.addS3SstFilesToDB(req);
+        Utils.addS3SstFilesToLocalDB(adminPort, Utils.getDbName(partitionName), s3Bucket,
+            s3Path + Utils.getS3PartPrefix(partitionName), s3_download_limit_mb);
       } catch (Exception e) {
         LOG.error("Failed to add S3 files for " + partitionName, e);
         throw new RuntimeException(e);
@@ -167,8 +162,9 @@ public class BootstrapStateModelFactory extends StateModelFactory<StateModel> {
 
       try {
         StopMessageIngestionRequest req = new StopMessageIngestionRequest(Utils.getDbName(partitionName));
-        Admin.Client client = Utils.getLocalAdminClient(adminPort);
-        client.stopMessageIngestion(req);
+        try (AdminClientPool.Lease lease = Utils.borrowLocalAdminClient(adminPort)) {
+          lease.getClient().stopMessageIngestion(req);
+        }
       } catch (Exception e) {
         LOG.error("Failed to Offline " + partitionName, e);
         throw new RuntimeException(e);
@@ -190,8 +186,9 @@ public class BootstrapStateModelFactory extends StateModelFactory<StateModel> {
 
       try {
         StopMessageIngestionRequest req = new StopMessageIngestionRequest(Utils.getDbName(partitionName));
-        Admin.Client client = Utils.getLocalAdminClient(adminPort);
-        client.stopMessageIngestion(req);
+        try (AdminClientPool.Lease lease = Utils.borrowLocalAdminClient(adminPort)) {
+          lease.getClient().stopMessageIngestion(req);
+        }
       } catch (Exception e) {
         LOG.error("Failed to Offline " + partitionName, e);
         throw new RuntimeException(e);
@@ -220,8 +217,9 @@ public class BootstrapStateModelFactory extends StateModelFactory<StateModel> {
         StartMessageIngestionRequest req =
                 new StartMessageIngestionRequest(Utils.getDbName(partitionName), topicName,
                         kafkaBrokerServersetPath, replay_timestamp_ms, isKafkaPayloadSerialized);
-        Admin.Client client = Utils.getLocalAdminClient(adminPort);
-        client.startMessageIngestion(req);
+        try (AdminClientPool.Lease lease = Utils.borrowLocalAdminClient(adminPort)) {
+          lease.getClient().startMessageIngestion(req);
+        }
       } catch (Exception e) {
         LOG.error("Failed to replay kafka for : " + partitionName, e);
         throw new RuntimeException(e);
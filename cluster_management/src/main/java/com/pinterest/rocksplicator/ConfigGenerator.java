@@ -18,57 +18,213 @@
 
 package com.pinterest.rocksplicator;
 
+import com.pinterest.rocksdb_admin.thrift.ShardMap;
+import com.pinterest.rocksdb_admin.thrift.ShardMapHostReplicas;
+import com.pinterest.rocksdb_admin.thrift.ShardMapResource;
+import com.pinterest.rocksdb_admin.thrift.ShardMapRole;
+
+import com.google.gson.stream.JsonWriter;
+import org.apache.commons.codec.binary.Base64;
 import org.apache.helix.api.listeners.PreFetch;
+import org.apache.helix.AccessOption;
 import org.apache.helix.HelixAdmin;
 import org.apache.helix.HelixConstants;
+import org.apache.helix.HelixDataAccessor;
 import org.apache.helix.HelixManager;
 import org.apache.helix.NotificationContext;
+import org.apache.helix.PropertyKey;
+import org.apache.helix.ZNRecord;
 import org.apache.helix.model.ExternalView;
 import org.apache.helix.model.IdealState;
 import org.apache.helix.model.InstanceConfig;
 import org.apache.helix.participant.CustomCodeCallbackHandler;
 import org.apache.helix.spectator.RoutingTableProvider;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 public class ConfigGenerator extends RoutingTableProvider implements CustomCodeCallbackHandler {
   private static final Logger LOG = LoggerFactory.getLogger(ConfigGenerator.class);
+  private static final long DEFAULT_DEBOUNCE_MS = 1000;
+  private static final long MIN_RETRY_DELAY_MS = 1000;
+  private static final long MAX_RETRY_DELAY_MS = 60 * 1000;
+  private static final int MAX_FRAGMENT_BUILDERS = 16;
 
   private final String clusterName;
   private HelixManager helixManager;
   private Map<String, String> hostToHostWithDomain;
-  private final String postUrl;
-  private JSONObject dataParameters;
-  private String lastPostedContent;
+  private final List<PublisherState> publishers;
+  private final int snapshotInterval;
+  private final boolean binaryShardMap;
+  private final ResourceSlotAssigner slotAssigner;
+  private final int slot;
+  private final ReplicaLagMonitor lagMonitor;
   private Set<String> disabledHosts;
+  private Map<String, ResourceFragment> resourceFragments;
+  private final ConcurrentMap<String, String> resourceToStateModel;
+  private final StringWriter jsonBuffer;
+  private final ForkJoinPool fragmentBuilders;
+
+  // publisher state, guarded by pendingLock
+  private final Object pendingLock;
+  private final ScheduledExecutorService publisher;
+  private final long debounceMs;
+  private boolean scheduled;
+  private boolean dirty;
+  private boolean instanceConfigsDirty;
+  private List<InstanceConfig> pendingConfigs;
+  private List<ExternalView> pendingViews;
+
+  // only accessed by publish runs, which never overlap
+  private String pendingContent;
+  private Map<String, ResourceFragment> pendingFragments;
+  private long pendingGeneration;
+  // whether any publisher has accepted pendingGeneration
+  private boolean pendingAccepted;
+  private long nextGeneration;
+  private int failedPosts;
+  private boolean instanceConfigsLoaded;
 
   public ConfigGenerator(String clusterName, HelixManager helixManager, String configPostUrl) {
+    this(clusterName, helixManager, Collections.<ShardMapPublisher>singletonList(
+        new HttpShardMapPublisher(configPostUrl, false)), DEFAULT_DEBOUNCE_MS, 0, false,
+        newPublisherExecutor(1), newFragmentBuilderPool());
+  }
+
+  /**
+   * @param publishers every generation is published to all of them, and retried until all of
+   *                   them succeed
+   * @param debounceMs changes observed within this window after the first one are coalesced into
+   *                   a single generation and publish
+   * @param snapshotInterval if greater than 1, publishers are also given the resources changed
+   *                         since the generation each of them accepted last, with a full
+   *                         snapshot every snapshotInterval generations
+   * @param binaryShardMap publish the shard map as a base64 encoded compact thrift ShardMap
+   *                       instead of JSON
+   * @param publisher runs generation and publishing, may be shared by the generators of many
+   *                  clusters
+   * @param fragmentBuilders builds resource configs in parallel, may be shared as well. Every ZK
+   *                         read is done before handing the builds over, so they never block
+   */
+  public ConfigGenerator(String clusterName, HelixManager helixManager,
+                         List<ShardMapPublisher> publishers, long debounceMs,
+                         int snapshotInterval, boolean binaryShardMap,
+                         ScheduledExecutorService publisher, ForkJoinPool fragmentBuilders) {
+    this(clusterName, helixManager, publishers, debounceMs, snapshotInterval, binaryShardMap,
+        publisher, fragmentBuilders, new ResourceSlotAssigner(1), 0, null);
+  }
+
+  /**
+   * Generate and publish the shard map of only the resources assigned to slot, so that the
+   * shard map of a very large cluster can be split across slotAssigner.getNumSlots() leaders.
+   * @param lagMonitor if not null, SLAVEs lagging behind their MASTER are left out of the shard
+   *                   map until they catch up
+   */
+  public ConfigGenerator(String clusterName, HelixManager helixManager,
+                         List<ShardMapPublisher> publishers, long debounceMs,
+                         int snapshotInterval, boolean binaryShardMap,
+                         ScheduledExecutorService publisher, ForkJoinPool fragmentBuilders,
+                         ResourceSlotAssigner slotAssigner, int slot,
+                         ReplicaLagMonitor lagMonitor) {
+    if (slot < 0 || slot >= slotAssigner.getNumSlots()) {
+      throw new IllegalArgumentException("Invalid slot " + slot + " out of " +
+          slotAssigner.getNumSlots());
+    }
     this.clusterName = clusterName;
     this.helixManager = helixManager;
-    this.hostToHostWithDomain = new HashMap<String, String>();
-    this.postUrl = configPostUrl;
-    this.dataParameters = new JSONObject();
-    this.dataParameters.put("config_version", "v3");
-    this.dataParameters.put("author", "ConfigGenerator");
-    this.dataParameters.put("comment", "new shard config");
-    this.dataParameters.put("content", "{}");
-    this.lastPostedContent = null;
+    this.hostToHostWithDomain = new ConcurrentHashMap<String, String>();
+    this.publishers = new ArrayList<PublisherState>(publishers.size());
+    for (ShardMapPublisher shardMapPublisher : publishers) {
+      this.publishers.add(new PublisherState(shardMapPublisher));
+    }
+    this.snapshotInterval = snapshotInterval;
+    this.binaryShardMap = binaryShardMap;
+    this.slotAssigner = slotAssigner;
+    this.slot = slot;
+    this.lagMonitor = lagMonitor;
     this.disabledHosts = new HashSet<>();
+    this.resourceFragments = new TreeMap<String, ResourceFragment>();
+    this.jsonBuffer = new StringWriter();
+    this.fragmentBuilders = fragmentBuilders;
+    this.resourceToStateModel = new ConcurrentHashMap<String, String>();
+    this.pendingLock = new Object();
+    this.publisher = publisher;
+    this.debounceMs = debounceMs;
+    this.scheduled = false;
+    this.dirty = false;
+    this.instanceConfigsDirty = false;
+    this.pendingConfigs = null;
+    this.pendingViews = null;
+    this.pendingContent = null;
+    this.pendingFragments = null;
+    this.pendingGeneration = 0;
+    this.pendingAccepted = false;
+    // seeded from the wall clock, so that generations keep increasing across restarts
+    this.nextGeneration = System.currentTimeMillis();
+    this.failedPosts = 0;
+    this.instanceConfigsLoaded = false;
+  }
+
+  /**
+   * Start the replica lag monitor if any. Called once the generator is fully constructed,
+   * before it is registered with Helix.
+   */
+  public void start() {
+    if (lagMonitor != null) {
+      lagMonitor.start(new ReplicaLagMonitor.Listener() {
+        @Override
+        public void onLaggingReplicasChange(Set<String> resources) {
+          invalidateFragments(resources);
+          markDirty(null);
+        }
+      });
+    }
+  }
+
+  public static ScheduledExecutorService newPublisherExecutor(int numThreads) {
+    return Executors.newScheduledThreadPool(numThreads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ConfigGenerator-publisher");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public static ForkJoinPool newFragmentBuilderPool() {
+    return new ForkJoinPool(
+        Math.min(MAX_FRAGMENT_BUILDERS, Runtime.getRuntime().availableProcessors()));
   }
 
   @Override
@@ -76,183 +232,758 @@ public class ConfigGenerator extends RoutingTableProvider implements CustomCodeC
     LOG.error("Received notification: " + notificationContext.getChangeType());
 
     if (notificationContext.getChangeType() == HelixConstants.ChangeType.EXTERNAL_VIEW) {
-      generateShardConfig();
+      markDirty(null);
     } else if (notificationContext.getChangeType() == HelixConstants.ChangeType.INSTANCE_CONFIG) {
-      if (updateDisabledHosts()) {
-        generateShardConfig();
-      }
+      markInstanceConfigsDirty(null);
     }
   }
 
   @Override
-  @PreFetch(enabled = false)
+  @PreFetch(enabled = true)
   public void onConfigChange(List<InstanceConfig> configs, NotificationContext changeContext) {
-    if (updateDisabledHosts()) {
-      generateShardConfig();
+    if (changeContext.getType() == NotificationContext.Type.FINALIZE) {
+      return;
     }
+    markInstanceConfigsDirty(configs);
   }
 
   @Override
   @PreFetch(enabled = false)
   public void onExternalViewChange(List<ExternalView> externalViewList, NotificationContext changeContext) {
-    generateShardConfig();
+    markDirty(null);
+  }
+
+  /**
+   * Ask the publisher thread to generate and post a new shard config. Returns immediately.
+   * @param externalViews the latest ExternalViews of the cluster, or null to read them from ZK
+   */
+  protected void markDirty(List<ExternalView> externalViews) {
+    synchronized (pendingLock) {
+      dirty = true;
+      pendingViews = externalViews;
+      scheduleLocked(debounceMs);
+    }
+  }
+
+  // configs is the latest instance configs of the cluster, or null to read them from ZK
+  private void markInstanceConfigsDirty(List<InstanceConfig> configs) {
+    synchronized (pendingLock) {
+      instanceConfigsDirty = true;
+      pendingConfigs = configs;
+      scheduleLocked(debounceMs);
+    }
+  }
+
+  private void scheduleLocked(long delayMs) {
+    if (scheduled) {
+      // the already scheduled or running publish picks up the latest state
+      return;
+    }
+    scheduled = true;
+    publisher.schedule(new Runnable() {
+      @Override
+      public void run() {
+        long retryDelayMs = -1;
+        try {
+          if (!publish()) {
+            retryDelayMs = getRetryDelayMs();
+          }
+        } catch (RuntimeException e) {
+          LOG.error("Failed to publish the shard config", e);
+          synchronized (pendingLock) {
+            // regenerate from ZK on retry
+            dirty = true;
+            instanceConfigsDirty = true;
+          }
+          retryDelayMs = getRetryDelayMs();
+        }
+
+        // the publisher may be shared by many generators, so publish runs of this generator are
+        // serialized by only scheduling the next one after this one is done
+        synchronized (pendingLock) {
+          scheduled = false;
+          if (retryDelayMs >= 0) {
+            scheduleLocked(retryDelayMs);
+          } else if (dirty || instanceConfigsDirty) {
+            scheduleLocked(debounceMs);
+          }
+        }
+      }
+    }, delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  private long getRetryDelayMs() {
+    ++failedPosts;
+    long delayMs = Math.min(MAX_RETRY_DELAY_MS,
+        MIN_RETRY_DELAY_MS << Math.min(failedPosts - 1, 16));
+    LOG.error("Retry publishing the shard config in " + delayMs + " ms");
+    return delayMs;
   }
 
-  private void generateShardConfig() {
+  // return false if the new config needs to be retried
+  private boolean publish() {
+    boolean regenerate;
+    boolean checkInstanceConfigs;
+    List<ExternalView> views;
+    List<InstanceConfig> configs;
+    synchronized (pendingLock) {
+      regenerate = dirty;
+      checkInstanceConfigs = instanceConfigsDirty || !instanceConfigsLoaded;
+      views = pendingViews;
+      configs = pendingConfigs;
+      dirty = false;
+      instanceConfigsDirty = false;
+      pendingViews = null;
+      pendingConfigs = null;
+    }
+
+    if (checkInstanceConfigs) {
+      if (configs == null) {
+        // one batched read of all instance configs
+        HelixDataAccessor accessor = helixManager.getHelixDataAccessor();
+        configs = accessor.getChildValues(accessor.keyBuilder().instanceConfigs());
+      }
+      if (updateInstanceConfigs(configs)) {
+        regenerate = true;
+      }
+      instanceConfigsLoaded = true;
+    }
+
+    if (regenerate) {
+      // the newest state always wins over a config that failed to be posted
+      String content = views == null ? generateShardConfig() : generateShardConfig(views);
+      if (isAcceptedByAll(digest(content))) {
+        LOG.error("Identical external view observed, skip updating config.");
+        pendingContent = null;
+        pendingFragments = null;
+      } else {
+        if (pendingContent == null || pendingAccepted) {
+          // a config which never reached any publisher is replaced under the same generation,
+          // so that generations only advance for configs somebody has seen
+          pendingGeneration = nextGeneration++;
+          pendingAccepted = false;
+        }
+        pendingContent = content;
+        pendingFragments = resourceFragments;
+      }
+    }
+
+    if (pendingContent == null) {
+      failedPosts = 0;
+      return true;
+    }
+
+    if (!postShardConfig(pendingContent, pendingFragments, pendingGeneration)) {
+      return false;
+    }
+
+    pendingContent = null;
+    pendingFragments = null;
+    failedPosts = 0;
+    return true;
+  }
+
+  private synchronized String generateShardConfig() {
     HelixAdmin admin = helixManager.getClusterManagmentTool();
+    final HelixDataAccessor accessor = helixManager.getHelixDataAccessor();
+    final PropertyKey.Builder keyBuilder = accessor.keyBuilder();
 
     List<String> resources = admin.getResourcesInCluster(clusterName);
+    retainSlotResources(resources);
     filterOutTaskResources(resources);
 
-    Set<String> existingHosts = new HashSet<String>();
+    // Resources starting with PARTICIPANT_LEADER is for HelixCustomCodeRunner
+    Iterator<String> iter = resources.iterator();
+    while (iter.hasNext()) {
+      if (iter.next().startsWith("PARTICIPANT_LEADER")) {
+        iter.remove();
+      }
+    }
 
-    // compose cluster config
-    JSONObject config = new JSONObject();
+    // one batched stat read tells which ExternalViews changed since the last generation
+    List<String> paths = new ArrayList<String>(resources.size());
     for (String resource : resources) {
-      // Resources starting with PARTICIPANT_LEADER is for HelixCustomCodeRunner
-      if (resource.startsWith("PARTICIPANT_LEADER")) {
+      paths.add(keyBuilder.externalView(resource).getPath());
+    }
+    Stat[] stats = accessor.getBaseDataAccessor().getStats(paths, AccessOption.PERSISTENT);
+
+    Map<String, ResourceFragment> fragments = new TreeMap<String, ResourceFragment>();
+    List<String> changedResources = new ArrayList<String>();
+    List<Stat> changedStats = new ArrayList<Stat>();
+    List<PropertyKey> changedKeys = new ArrayList<PropertyKey>();
+    for (int i = 0; i < resources.size(); ++i) {
+      String resource = resources.get(i);
+      Stat stat = stats == null ? null : stats[i];
+      if (stat == null) {
+        LOG.error("No ExternalView found for " + resource);
         continue;
       }
 
-      ExternalView externalView = admin.getResourceExternalView(clusterName, resource);
-      Set<String> partitions = externalView.getPartitionSet();
+      ResourceFragment fragment = resourceFragments.get(resource);
+      if (fragment != null && fragment.isSameVersion(stat.getVersion(), stat.getCtime())) {
+        fragments.put(resource, fragment);
+        continue;
+      }
 
-      // compose resource config
-      JSONObject resourceConfig = new JSONObject();
-      String partitionsStr = externalView.getRecord().getSimpleField("NUM_PARTITIONS");
-      resourceConfig.put("num_shards", Integer.parseInt(partitionsStr));
+      changedResources.add(resource);
+      changedStats.add(stat);
+      changedKeys.add(keyBuilder.externalView(resource));
+    }
 
-      // build host to partition list map
-      Map<String, List<String>> hostToPartitionList = new HashMap<String, List<String>>();
-      for (String partition : partitions) {
-        String[] parts = partition.split("_");
-        String partitionNumber =
-            String.format("%05d", Integer.parseInt(parts[parts.length - 1]));
-        Map<String, String> hostToState = externalView.getStateMap(partition);
-        for (Map.Entry<String, String> entry : hostToState.entrySet()) {
-          existingHosts.add(entry.getKey());
+    // read the changed ExternalViews and the domains of their new hosts in batches on this
+    // thread, so that the fragment builders never block on ZK and a shared pool isn't starved by
+    // slow reads
+    List<ExternalView> changedViews = changedKeys.isEmpty() ?
+        new ArrayList<ExternalView>() : accessor.<ExternalView>getProperty(changedKeys);
+    final Map<String, String> hostDomains = resolveHostDomains(changedViews);
+    Map<String, Callable<ResourceFragment>> builders =
+        new HashMap<String, Callable<ResourceFragment>>();
+    for (int i = 0; i < changedResources.size(); ++i) {
+      final String resource = changedResources.get(i);
+      final Stat stat = changedStats.get(i);
+      final ExternalView externalView = changedViews.get(i);
+      if (externalView == null) {
+        LOG.error("ExternalView disappeared for " + resource);
+        continue;
+      }
 
-          if (disabledHosts.contains(entry.getKey())) {
-            // exclude disabled hosts from the shard map config
-            continue;
-          }
+      builders.put(resource, new Callable<ResourceFragment>() {
+        @Override
+        public ResourceFragment call() {
+          return buildResourceFragment(externalView, stat.getVersion(), stat.getCtime(),
+              hostDomains);
+        }
+      });
+    }
 
-          String state = entry.getValue();
-          if (!state.equalsIgnoreCase("ONLINE") &&
-              !state.equalsIgnoreCase("MASTER") &&
-              !state.equalsIgnoreCase("SLAVE")) {
-            // Only ONLINE, MASTER and SLAVE states are ready for serving traffic
-            continue;
-          }
+    fragments.putAll(buildResourceFragments(builders));
+    return composeShardConfig(fragments, builders.size());
+  }
 
-          String hostWithDomain = getHostWithDomain(entry.getKey());
-          List<String> partitionList = hostToPartitionList.get(hostWithDomain);
-          if (partitionList == null) {
-            partitionList = new ArrayList<String>();
-            hostToPartitionList.put(hostWithDomain, partitionList);
-          }
+  /**
+   * Generate the shard config from ExternalViews already read by the caller, e.g. the list
+   * prefetched by Helix for an ExternalView change callback. Resources missing from the list are
+   * dropped from the shard config.
+   */
+  private synchronized String generateShardConfig(List<ExternalView> externalViews) {
+    Map<String, ExternalView> views = new HashMap<String, ExternalView>();
+    for (ExternalView externalView : externalViews) {
+      if (!externalView.getResourceName().startsWith("PARTICIPANT_LEADER")) {
+        views.put(externalView.getResourceName(), externalView);
+      }
+    }
 
-          if (state.equalsIgnoreCase("SLAVE")) {
-            partitionList.add(partitionNumber + ":S");
-          } else if (state.equalsIgnoreCase("MASTER")) {
-            partitionList.add(partitionNumber + ":M");
-          } else {
-            partitionList.add(partitionNumber);
-          }
+    List<String> resources = new ArrayList<String>(views.keySet());
+    retainSlotResources(resources);
+    filterOutTaskResources(resources);
+
+    Map<String, ResourceFragment> fragments = new TreeMap<String, ResourceFragment>();
+    List<ExternalView> changedViews = new ArrayList<ExternalView>();
+    for (String resource : resources) {
+      ExternalView externalView = views.get(resource);
+      ZNRecord record = externalView.getRecord();
+      ResourceFragment fragment = resourceFragments.get(resource);
+      if (fragment != null &&
+          fragment.isSameVersion(record.getVersion(), record.getCreationTime())) {
+        fragments.put(resource, fragment);
+        continue;
+      }
+      changedViews.add(externalView);
+    }
+
+    final Map<String, String> hostDomains = resolveHostDomains(changedViews);
+    Map<String, Callable<ResourceFragment>> builders =
+        new HashMap<String, Callable<ResourceFragment>>();
+    for (final ExternalView externalView : changedViews) {
+      final ZNRecord record = externalView.getRecord();
+      builders.put(externalView.getResourceName(), new Callable<ResourceFragment>() {
+        @Override
+        public ResourceFragment call() {
+          return buildResourceFragment(
+              externalView, record.getVersion(), record.getCreationTime(), hostDomains);
         }
+      });
+    }
+
+    fragments.putAll(buildResourceFragments(builders));
+    return composeShardConfig(fragments, builders.size());
+  }
+
+  // run the builders on the fragment builder pool, resources whose builder returns null are
+  // left out of the result
+  private Map<String, ResourceFragment> buildResourceFragments(
+      Map<String, Callable<ResourceFragment>> builders) {
+    Map<String, ResourceFragment> fragments = new HashMap<String, ResourceFragment>();
+    if (builders.isEmpty()) {
+      return fragments;
+    }
+
+    List<String> resources = new ArrayList<String>(builders.keySet());
+    List<Callable<ResourceFragment>> tasks = new ArrayList<Callable<ResourceFragment>>();
+    for (String resource : resources) {
+      tasks.add(builders.get(resource));
+    }
+
+    try {
+      List<Future<ResourceFragment>> results;
+      if (tasks.size() == 1) {
+        // not worth a hand off for a single changed resource
+        results = new ArrayList<Future<ResourceFragment>>();
+        FutureTask<ResourceFragment> task = new FutureTask<ResourceFragment>(tasks.get(0));
+        task.run();
+        results.add(task);
+      } else {
+        results = fragmentBuilders.invokeAll(tasks);
       }
 
-      // Add host to partition list map to the resource config
-      for (Map.Entry<String, List<String>> entry : hostToPartitionList.entrySet()) {
-        JSONArray jsonArray = new JSONArray();
-        for (String p : entry.getValue()) {
-          jsonArray.add(p);
+      for (int i = 0; i < resources.size(); ++i) {
+        ResourceFragment fragment = results.get(i).get();
+        if (fragment != null) {
+          fragments.put(resources.get(i), fragment);
         }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while building resource configs", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Failed to build resource config", e.getCause());
+    }
+    return fragments;
+  }
 
-        resourceConfig.put(entry.getKey(), jsonArray);
+  private String composeShardConfig(Map<String, ResourceFragment> fragments, int rebuilt) {
+    // drop fragments of removed resources
+    resourceFragments = fragments;
+    if (lagMonitor != null) {
+      lagMonitor.retainResources(fragments.keySet());
+    }
+    LOG.error("Rebuilt " + rebuilt + " of " + fragments.size() + " resource configs");
+
+    // compose cluster config from the per resource fragments
+    JsonWriter writer = newJsonWriter();
+    try {
+      writer.beginObject();
+      for (Map.Entry<String, ResourceFragment> entry : fragments.entrySet()) {
+        writer.name(entry.getKey()).jsonValue(entry.getValue().json);
       }
+      writer.endObject();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
 
-      // add the resource config to the cluster config
-      config.put(resource, resourceConfig);
+    return jsonBuffer.toString();
+  }
+
+  // start writing a new JSON document into the reused buffer
+  private JsonWriter newJsonWriter() {
+    jsonBuffer.getBuffer().setLength(0);
+    return new JsonWriter(jsonBuffer);
+  }
+
+  // first 64 bits of the SHA-256 of the content
+  private static long digest(String content) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256")
+          .digest(content.getBytes(StandardCharsets.UTF_8));
+      return ByteBuffer.wrap(hash).getLong();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
     }
+  }
 
-    // remove host that doesn't exist in the ExternalView from hostToHostWithDomain
-    hostToHostWithDomain.keySet().retainAll(existingHosts);
+  // resources whose config changed since the previous config
+  private static Map<String, ResourceFragment> getUpdatedFragments(
+      Map<String, ResourceFragment> previous, Map<String, ResourceFragment> current) {
+    Map<String, ResourceFragment> updated = new TreeMap<String, ResourceFragment>();
+    for (Map.Entry<String, ResourceFragment> entry : current.entrySet()) {
+      ResourceFragment previousFragment = previous.get(entry.getKey());
+      if (previousFragment == null || !previousFragment.json.equals(entry.getValue().json)) {
+        updated.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return updated;
+  }
 
-    String newContent = config.toString();
-    if (lastPostedContent != null && lastPostedContent.equals(newContent)) {
-      LOG.error("Identical external view observed, skip updating config.");
-      return;
+  private static List<String> getRemovedResources(Map<String, ResourceFragment> previous,
+                                                  Map<String, ResourceFragment> current) {
+    List<String> removed = new ArrayList<String>();
+    for (String resource : previous.keySet()) {
+      if (!current.containsKey(resource)) {
+        removed.add(resource);
+      }
+    }
+    return removed;
+  }
+
+  // compose the resources updated and removed since the previous config, as
+  // {"updated": {"resource1": {...}}, "removed": ["resource2"]} where each updated resource has
+  // the same config as in the full shard config
+  private String composeShardConfigDelta(Map<String, ResourceFragment> updated,
+                                         List<String> removed) {
+    JsonWriter writer = newJsonWriter();
+    try {
+      writer.beginObject();
+      writer.name("updated").beginObject();
+      for (Map.Entry<String, ResourceFragment> entry : updated.entrySet()) {
+        writer.name(entry.getKey()).jsonValue(entry.getValue().json);
+      }
+      writer.endObject();
+      writer.name("removed").beginArray();
+      for (String resource : removed) {
+        writer.value(resource);
+      }
+      writer.endArray();
+      writer.endObject();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return jsonBuffer.toString();
+  }
+
+  // encode the resources as a base64 encoded compact thrift ShardMap
+  private static String encodeShardMap(Map<String, ResourceFragment> fragments,
+                                       List<String> removed, long generation)
+      throws TException {
+    Map<String, Integer> hostIds = new HashMap<String, Integer>();
+    List<String> hosts = new ArrayList<String>();
+    List<ShardMapResource> resources = new ArrayList<ShardMapResource>(fragments.size());
+    for (Map.Entry<String, ResourceFragment> entry : fragments.entrySet()) {
+      ResourceFragment fragment = entry.getValue();
+      List<ShardMapHostReplicas> hostReplicas =
+          new ArrayList<ShardMapHostReplicas>(fragment.replicas.size());
+      for (Map.Entry<String, List<Integer>> replicas : fragment.replicas.entrySet()) {
+        Integer hostId = hostIds.get(replicas.getKey());
+        if (hostId == null) {
+          hostId = hosts.size();
+          hostIds.put(replicas.getKey(), hostId);
+          hosts.add(replicas.getKey());
+        }
+        hostReplicas.add(new ShardMapHostReplicas(hostId, replicas.getValue()));
+      }
+      resources.add(new ShardMapResource(entry.getKey(), fragment.numShards, hostReplicas));
     }
 
-    // Write the config to ZK
-    LOG.error("Generating a new shard config...");
+    ShardMap shardMap = new ShardMap(hosts, resources);
+    shardMap.setGeneration(generation);
+    if (!removed.isEmpty()) {
+      shardMap.setRemoved_resources(removed);
+    }
+    byte[] bytes = new TSerializer(new TCompactProtocol.Factory()).serialize(shardMap);
+    return Base64.encodeBase64String(bytes);
+  }
 
-    this.dataParameters.remove("content");
-    this.dataParameters.put("content", newContent);
-    HttpPost httpPost = new HttpPost(this.postUrl);
+  // return true if every publisher has accepted a config with the digest
+  private boolean isAcceptedByAll(long digest) {
+    for (PublisherState state : publishers) {
+      if (state.acceptedFragments == null || state.acceptedDigest != digest) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // return true if the config is accepted by all publishers. Publishers which accepted the
+  // generation in an earlier attempt are skipped, and every other publisher gets a delta against
+  // the generation it accepted last, or the full config if there is none.
+  private boolean postShardConfig(String newContent, Map<String, ResourceFragment> fragments,
+                                  long generation) {
+    LOG.error("Generating a new shard config of generation " + generation);
+
+    long newDigest = digest(newContent);
+    String encoding = binaryShardMap ?
+        ShardMapPublisher.Update.ENCODING_THRIFT_COMPACT_BASE64 :
+        ShardMapPublisher.Update.ENCODING_JSON;
+    String fullContent = newContent;
+    // publishers which accepted the same base generation share the same delta
+    Map<Long, String> baseGenerationToDelta = new HashMap<Long, String>();
+    boolean published = true;
     try {
-      httpPost.setEntity(new StringEntity(this.dataParameters.toString()));
-      HttpResponse response = new DefaultHttpClient().execute(httpPost);
-      if (response.getStatusLine().getStatusCode() == 200) {
-        lastPostedContent = newContent;
-        LOG.error("Succeed to generate a new shard config, sleep for 2 seconds");
-        TimeUnit.SECONDS.sleep(2);
-      } else {
-        LOG.error(response.getStatusLine().getReasonPhrase());
+      if (binaryShardMap) {
+        fullContent = encodeShardMap(fragments, new ArrayList<String>(), generation);
       }
-    } catch (Exception e) {
-      LOG.error("Failed to post the new config", e);
+
+      for (PublisherState state : publishers) {
+        if (state.acceptedGeneration == generation) {
+          continue;
+        }
+
+        boolean delta = snapshotInterval > 1 && state.acceptedFragments != null &&
+            state.deltasSinceSnapshot < snapshotInterval - 1;
+        String deltaContent = null;
+        if (delta) {
+          deltaContent = baseGenerationToDelta.get(state.acceptedGeneration);
+          if (deltaContent == null) {
+            Map<String, ResourceFragment> updated =
+                getUpdatedFragments(state.acceptedFragments, fragments);
+            List<String> removed = getRemovedResources(state.acceptedFragments, fragments);
+            deltaContent = binaryShardMap ?
+                encodeShardMap(updated, removed, generation) :
+                composeShardConfigDelta(updated, removed);
+            baseGenerationToDelta.put(state.acceptedGeneration, deltaContent);
+          }
+        }
+
+        ShardMapPublisher.Update update = new ShardMapPublisher.Update(generation, encoding,
+            fullContent, deltaContent, delta ? state.acceptedGeneration : 0, slot,
+            slotAssigner.getNumSlots());
+        if (!state.publisher.publish(update)) {
+          published = false;
+          continue;
+        }
+
+        state.acceptedGeneration = generation;
+        state.acceptedFragments = fragments;
+        state.acceptedDigest = newDigest;
+        state.deltasSinceSnapshot = delta ? state.deltasSinceSnapshot + 1 : 0;
+        pendingAccepted = true;
+      }
+    } catch (TException e) {
+      LOG.error("Failed to encode the new config", e);
+      return false;
     }
+
+    if (!published) {
+      return false;
+    }
+
+    LOG.error("Succeed to generate a new shard config of generation " + generation);
+    return true;
   }
 
-  private String getHostWithDomain(String host) {
-    String hostWithDomain = hostToHostWithDomain.get(host);
-    if (hostWithDomain != null) {
-      return hostWithDomain;
+  // only CPU work, as it runs on the fragment builder pool. hostDomains must have the domain of
+  // every serving replica, see resolveHostDomains()
+  private ResourceFragment buildResourceFragment(ExternalView externalView, int version,
+                                                 long ctime, Map<String, String> hostDomains) {
+    Set<String> partitions = externalView.getPartitionSet();
+    if (lagMonitor != null) {
+      lagMonitor.setExternalView(externalView);
     }
 
-    // local cache missed, read from ZK
-    HelixAdmin admin = helixManager.getClusterManagmentTool();
-    InstanceConfig instanceConfig = admin.getInstanceConfig(clusterName, host);
-    String domain = instanceConfig.getDomain();
-    String[] parts = domain.split(",");
-    String az = parts[0].split("=")[1];
-    String pg = parts[1].split("=")[1];
-    hostWithDomain = host.replace('_', ':') + ":" + az + "_" + pg;
-    hostToHostWithDomain.put(host, hostWithDomain);
-    return hostWithDomain;
-  }
-
-  // update disabledHosts, return true if there is any changes
-  private boolean updateDisabledHosts() {
-    HelixAdmin admin = helixManager.getClusterManagmentTool();
+    String partitionsStr = externalView.getRecord().getSimpleField("NUM_PARTITIONS");
+    int numShards = Integer.parseInt(partitionsStr);
+
+    // build host to partition list map, and the same replicas in the binary encoding
+    Map<String, List<String>> hostToPartitionList = new TreeMap<String, List<String>>();
+    Map<String, List<Integer>> hostToReplicas = new TreeMap<String, List<Integer>>();
+    for (String partition : partitions) {
+      String[] parts = partition.split("_");
+      int shardId = Integer.parseInt(parts[parts.length - 1]);
+      String partitionNumber = String.format("%05d", shardId);
+      Map<String, String> hostToState = externalView.getStateMap(partition);
+      for (Map.Entry<String, String> entry : hostToState.entrySet()) {
+        if (disabledHosts.contains(entry.getKey())) {
+          // exclude disabled hosts from the shard map config
+          continue;
+        }
+
+        String state = entry.getValue();
+        if (!isServingState(state)) {
+          continue;
+        }
+
+        if (lagMonitor != null && state.equalsIgnoreCase("SLAVE") &&
+            lagMonitor.isLagging(partition, entry.getKey())) {
+          // exclude SLAVEs too far behind their MASTER to serve reads
+          continue;
+        }
+
+        String hostWithDomain = hostDomains.get(entry.getKey());
+        List<String> partitionList = hostToPartitionList.get(hostWithDomain);
+        if (partitionList == null) {
+          partitionList = new ArrayList<String>();
+          hostToPartitionList.put(hostWithDomain, partitionList);
+          hostToReplicas.put(hostWithDomain, new ArrayList<Integer>());
+        }
+
+        ShardMapRole role;
+        if (state.equalsIgnoreCase("SLAVE")) {
+          partitionList.add(partitionNumber + ":S");
+          role = ShardMapRole.SLAVE;
+        } else if (state.equalsIgnoreCase("MASTER")) {
+          partitionList.add(partitionNumber + ":M");
+          role = ShardMapRole.MASTER;
+        } else {
+          partitionList.add(partitionNumber);
+          role = ShardMapRole.ONLINE;
+        }
+        hostToReplicas.get(hostWithDomain).add(shardId << 2 | role.getValue());
+      }
+    }
+
+    // compose resource config, hosts and partitions are sorted so that the same topology is
+    // always serialized to the same string
+    // fragments may be built concurrently, so they don't share the reused buffer
+    StringWriter buffer = new StringWriter();
+    JsonWriter writer = new JsonWriter(buffer);
+    try {
+      writer.beginObject();
+      writer.name("num_shards").value(numShards);
+      for (Map.Entry<String, List<String>> entry : hostToPartitionList.entrySet()) {
+        Collections.sort(entry.getValue());
+        writer.name(entry.getKey()).beginArray();
+        for (String p : entry.getValue()) {
+          writer.value(p);
+        }
+        writer.endArray();
+      }
+      writer.endObject();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    for (List<Integer> replicas : hostToReplicas.values()) {
+      Collections.sort(replicas);
+    }
+
+    return new ResourceFragment(
+        version, ctime, buffer.toString(), numShards, hostToReplicas);
+  }
+
+  // Only ONLINE, MASTER and SLAVE states are ready for serving traffic
+  private static boolean isServingState(String state) {
+    return state.equalsIgnoreCase("ONLINE") ||
+        state.equalsIgnoreCase("MASTER") ||
+        state.equalsIgnoreCase("SLAVE");
+  }
+
+  // return the host domains with those of every serving replica in the views, reading the ones
+  // missing from the local cache (e.g. instances added after the last bulk read) with a single
+  // batched read
+  private Map<String, String> resolveHostDomains(List<ExternalView> externalViews) {
+    Set<String> missingHosts = new HashSet<String>();
+    for (ExternalView externalView : externalViews) {
+      for (String partition : externalView.getPartitionSet()) {
+        for (Map.Entry<String, String> entry : externalView.getStateMap(partition).entrySet()) {
+          if (!disabledHosts.contains(entry.getKey()) && isServingState(entry.getValue()) &&
+              !hostToHostWithDomain.containsKey(entry.getKey())) {
+            missingHosts.add(entry.getKey());
+          }
+        }
+      }
+    }
+    if (missingHosts.isEmpty()) {
+      return hostToHostWithDomain;
+    }
 
-    Set<String> latestDisabledInstances = new HashSet<>(
-        admin.getInstancesInClusterWithTag(clusterName, "disabled"));
+    HelixDataAccessor accessor = helixManager.getHelixDataAccessor();
+    List<String> hosts = new ArrayList<String>(missingHosts);
+    List<PropertyKey> keys = new ArrayList<PropertyKey>(hosts.size());
+    for (String host : hosts) {
+      keys.add(accessor.keyBuilder().instanceConfig(host));
+    }
+    List<InstanceConfig> configs = accessor.getProperty(keys);
+    for (int i = 0; i < hosts.size(); ++i) {
+      InstanceConfig config = configs.get(i);
+      if (config == null) {
+        throw new RuntimeException("No instance config found for " + hosts.get(i));
+      }
+      hostToHostWithDomain.put(hosts.get(i), toHostWithDomain(hosts.get(i), config.getDomain()));
+    }
+    LOG.error("Read the domains of " + hosts.size() + " hosts missing from the local cache");
+    return hostToHostWithDomain;
+  }
 
-    if (disabledHosts.equals(latestDisabledInstances)) {
+  // "az=us-east-1a,pg=placement_group" -> "host:port:us-east-1a_placement_group"
+  private static String toHostWithDomain(String host, String domain) {
+    int azStart = domain.indexOf('=') + 1;
+    int azEnd = domain.indexOf(',', azStart);
+    int pgStart = domain.indexOf('=', azEnd) + 1;
+    int pgEnd = domain.indexOf(',', pgStart);
+    if (pgEnd < 0) {
+      pgEnd = domain.length();
+    }
+    return host.replace('_', ':') + ":" + domain.substring(azStart, azEnd) + "_" +
+        domain.substring(pgStart, pgEnd);
+  }
+
+  // update disabledHosts and the host domains from all instance configs of the cluster,
+  // return true if there is any changes to the shard config
+  private synchronized boolean updateInstanceConfigs(List<InstanceConfig> configs) {
+    Set<String> latestDisabledInstances = new HashSet<>();
+    Map<String, String> latestHostToHostWithDomain = new ConcurrentHashMap<String, String>();
+    for (InstanceConfig config : configs) {
+      String host = config.getInstanceName();
+      if (config.containsTag("disabled")) {
+        latestDisabledInstances.add(host);
+      }
+      String domain = config.getDomain();
+      if (domain != null && domain.indexOf(',') >= 0) {
+        latestHostToHostWithDomain.put(host, toHostWithDomain(host, domain));
+      }
+    }
+
+    // hosts whose domain changed, removed hosts are dropped from the shard config anyway
+    boolean domainChanged = false;
+    for (Map.Entry<String, String> entry : hostToHostWithDomain.entrySet()) {
+      String hostWithDomain = latestHostToHostWithDomain.get(entry.getKey());
+      if (hostWithDomain != null && !hostWithDomain.equals(entry.getValue())) {
+        domainChanged = true;
+        break;
+      }
+    }
+    hostToHostWithDomain = latestHostToHostWithDomain;
+
+    if (!domainChanged && disabledHosts.equals(latestDisabledInstances)) {
       // no changes
       LOG.error("No changes to disabled instances");
       return false;
     }
 
     disabledHosts = latestDisabledInstances;
+    // disabled hosts and domains are part of every resource config
+    resourceFragments = new TreeMap<String, ResourceFragment>();
     return true;
   }
 
+  // rebuild the configs of the resources at the next generation
+  private synchronized void invalidateFragments(Set<String> resources) {
+    // the current map may be shared with the pending or last posted config, so don't modify it
+    Map<String, ResourceFragment> fragments =
+        new TreeMap<String, ResourceFragment>(resourceFragments);
+    fragments.keySet().removeAll(resources);
+    resourceFragments = fragments;
+  }
+
+  // drop the resources of other slots
+  private void retainSlotResources(List<String> resources) {
+    if (slotAssigner.getNumSlots() == 1) {
+      return;
+    }
+    Iterator<String> iter = resources.iterator();
+    while (iter.hasNext()) {
+      if (slotAssigner.getSlot(iter.next()) != slot) {
+        iter.remove();
+      }
+    }
+  }
+
   /**
    * filter out resources with "Task" state model (ie. workflows and jobs);
-   * only keep db resources from ideal states
+   * only keep db resources from ideal states.
+   * The state model of a resource never changes, so it is only read from the ideal state the
+   * first time a resource is seen. Resources not in the list are evicted from the cache.
    */
   public void filterOutTaskResources(List<String> resources) {
+    resourceToStateModel.keySet().retainAll(resources);
+
     HelixAdmin admin = helixManager.getClusterManagmentTool();
     Iterator<String> iter = resources.iterator();
     while (iter.hasNext()) {
       String res = iter.next();
+      String stateMode = resourceToStateModel.get(res);
+      if (stateMode != null) {
+        if (stateMode.equals("Task")) {
+          iter.remove();
+        }
+        continue;
+      }
+
       IdealState ideal = admin.getResourceIdealState(clusterName, res);
       if (ideal != null) {
-        String stateMode = ideal.getStateModelDefRef();
+        stateMode = ideal.getStateModelDefRef();
+        if (stateMode != null) {
+          resourceToStateModel.put(res, stateMode);
+        }
         if (stateMode != null && stateMode.equals("Task")) {
           iter.remove();
         }
@@ -264,4 +995,48 @@ public class ConfigGenerator extends RoutingTableProvider implements CustomCodeC
     }
   }
 
+  // what a publisher has accepted so far, only accessed by publish runs
+  private static final class PublisherState {
+    private final ShardMapPublisher publisher;
+    private long acceptedGeneration;
+    // null until the first config is accepted
+    private Map<String, ResourceFragment> acceptedFragments;
+    private long acceptedDigest;
+    private int deltasSinceSnapshot;
+
+    private PublisherState(ShardMapPublisher publisher) {
+      this.publisher = publisher;
+      this.acceptedGeneration = 0;
+      this.acceptedFragments = null;
+      this.acceptedDigest = 0;
+      this.deltasSinceSnapshot = 0;
+    }
+  }
+
+  /**
+   * The serialized config of a single resource, valid as long as the version of its ExternalView
+   * ZK node stays the same. ctime is compared as well to catch a resource that was dropped and
+   * re-added in between.
+   */
+  private static final class ResourceFragment {
+    private final int version;
+    private final long ctime;
+    private final String json;
+    private final int numShards;
+    // host with domain to replicas encoded as (shard_id << 2 | role)
+    private final Map<String, List<Integer>> replicas;
+
+    private ResourceFragment(int version, long ctime, String json, int numShards,
+                             Map<String, List<Integer>> replicas) {
+      this.version = version;
+      this.ctime = ctime;
+      this.json = json;
+      this.numShards = numShards;
+      this.replicas = replicas;
+    }
+
+    private boolean isSameVersion(int version, long ctime) {
+      return this.version == version && this.ctime == ctime;
+    }
+  }
 }
@@ -0,0 +1,110 @@
+/// Copyright 2017 Pinterest Inc.
+///
+/// Licensed under the Apache License, Version 2.0 (the "License");
+/// you may not use this file except in compliance with the License.
+/// You may obtain a copy of the License at
+///
+/// http://www.apache.org/licenses/LICENSE-2.0
+
+/// Unless required by applicable law or agreed to in writing, software
+/// distributed under the License is distributed on an "AS IS" BASIS,
+/// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+/// See the License for the specific language governing permissions and
+/// limitations under the License.
+
+package com.pinterest.rocksplicator;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.helix.HelixDataAccessor;
+import org.apache.helix.HelixManager;
+import org.apache.helix.PropertyKey;
+import org.apache.helix.model.ExternalView;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wait for the ExternalView of a partition to reach a state by watching its ZK node, instead of
+ * polling it through HelixAdmin. The ExternalView is read through Helix, so that bucketized and
+ * compressed views are handled, and only re-read when ZK reports a change.
+ */
+public class ExternalViewWaiter {
+  private static final Logger LOG = LoggerFactory.getLogger(ExternalViewWaiter.class);
+
+  private final CuratorFramework zkClient;
+
+  public ExternalViewWaiter(CuratorFramework zkClient) {
+    this.zkClient = zkClient;
+  }
+
+  /**
+   * Wait until no replica of the partition is MASTER in the ExternalView
+   * @param helixManager
+   * @param resourceName
+   * @param partitionName
+   * @param timeoutMs
+   * @return the state map of the partition without MASTER, empty if the partition is not in the
+   *         ExternalView
+   * @throws RuntimeException if a MASTER still exists after timeoutMs
+   */
+  public Map<String, String> waitForNoMaster(HelixManager helixManager, String resourceName,
+                                             String partitionName, long timeoutMs)
+      throws Exception {
+    HelixDataAccessor accessor = helixManager.getHelixDataAccessor();
+    PropertyKey key = accessor.keyBuilder().externalView(resourceName);
+    long startMs = System.currentTimeMillis();
+    long deadlineMs = startMs + timeoutMs;
+
+    // a single watcher for the whole wait, re-armed only after it fires
+    final Semaphore changed = new Semaphore(0);
+    Watcher watcher = new Watcher() {
+      @Override
+      public void process(WatchedEvent event) {
+        changed.release();
+      }
+    };
+    // armed before reading, so that no change after the read is missed
+    watch(key.getPath(), watcher);
+    while (true) {
+      Map<String, String> stateMap = readStateMap(accessor, key, partitionName);
+      if (!stateMap.containsValue("MASTER")) {
+        return stateMap;
+      }
+
+      long remainingMs = deadlineMs - System.currentTimeMillis();
+      if (remainingMs <= 0) {
+        throw new RuntimeException("Existing Master detected!");
+      }
+
+      if (changed.tryAcquire(remainingMs, TimeUnit.MILLISECONDS)) {
+        changed.drainPermits();
+        watch(key.getPath(), watcher);
+      }
+      LOG.error("Waited for " + String.valueOf(System.currentTimeMillis() - startMs) +
+          " ms for 0 Master of " + partitionName);
+    }
+  }
+
+  // leave a watch on the ExternalView node, which fires on creation, change and deletion
+  private void watch(String path, Watcher watcher) throws Exception {
+    zkClient.checkExists().usingWatcher(watcher).forPath(path);
+  }
+
+  private static Map<String, String> readStateMap(HelixDataAccessor accessor, PropertyKey key,
+                                                  String partitionName) {
+    ExternalView view = accessor.getProperty(key);
+    if (view == null) {
+      LOG.error("No ExternalView found at " + key.getPath());
+      return new HashMap<>();
+    }
+
+    Map<String, String> stateMap = view.getStateMap(partitionName);
+    return stateMap == null ? new HashMap<String, String>() : stateMap;
+  }
+}
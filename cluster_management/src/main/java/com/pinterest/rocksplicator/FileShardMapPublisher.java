@@ -0,0 +1,135 @@
+/// Copyright 2017 Pinterest Inc.
+///
+/// Licensed under the Apache License, Version 2.0 (the "License");
+/// you may not use this file except in compliance with the License.
+/// You may obtain a copy of the License at
+///
+/// http://www.apache.org/licenses/LICENSE-2.0
+
+/// Unless required by applicable law or agreed to in writing, software
+/// distributed under the License is distributed on an "AS IS" BASIS,
+/// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+/// See the License for the specific language governing permissions and
+/// limitations under the License.
+
+package com.pinterest.rocksplicator;
+
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Write shard maps to a local file for co-located consumers. Only full shard maps are written,
+ * JSON as is and thrift encoded shard maps as raw bytes.
+ *
+ * By default each generation is written to a temp file which is then renamed over path, so
+ * readers (e.g. a FilePoller) always see a complete file.
+ *
+ * With useMmap, path is instead a memory-mapped file updated in place, laid out big endian as
+ *   0: int64 sequence, odd while the payload is being rewritten
+ *   8: int64 generation
+ *  16: int32 payload length
+ *  20: payload
+ * Readers copy the payload and accept it only if the sequence is even and unchanged afterwards.
+ * The file only grows; readers re-map it when its size changes.
+ *
+ * Plain stores to a mapped buffer may be reordered by the JIT or the CPU, so the sequence
+ * stores are separated from the payload stores by volatile writes, which HotSpot surrounds with
+ * memory barriers. Readers must load the sequence with acquire semantics before and after copying
+ * the payload, e.g., std::atomic loads with memory_order_acquire, or a volatile read in between
+ * on the JVM.
+ */
+public class FileShardMapPublisher implements ShardMapPublisher {
+  private static final Logger LOG = LoggerFactory.getLogger(FileShardMapPublisher.class);
+  private static final int HEADER_BYTES = 20;
+  private static final int MIN_MAPPED_BYTES = 1024 * 1024;
+
+  private final Path path;
+  private final boolean useMmap;
+  private MappedByteBuffer mapped;
+  // written only to order the stores to mapped, see writeMapped()
+  private volatile long fence;
+
+  public FileShardMapPublisher(String path, boolean useMmap) {
+    this.path = Paths.get(path);
+    this.useMmap = useMmap;
+    this.mapped = null;
+    this.fence = 0;
+  }
+
+  @Override
+  public synchronized boolean publish(Update update) {
+    byte[] payload;
+    if (Update.ENCODING_THRIFT_COMPACT_BASE64.equals(update.getEncoding())) {
+      payload = Base64.decodeBase64(update.getContent());
+    } else {
+      payload = update.getContent().getBytes(StandardCharsets.UTF_8);
+    }
+
+    try {
+      if (useMmap) {
+        writeMapped(update.getGeneration(), payload);
+      } else {
+        writeAndRename(payload);
+      }
+      return true;
+    } catch (IOException e) {
+      LOG.error("Failed to write the shard map to " + path, e);
+      return false;
+    }
+  }
+
+  private void writeAndRename(byte[] payload) throws IOException {
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.wrap(payload);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(true);
+    }
+    Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private void writeMapped(long generation, byte[] payload) throws IOException {
+    int needed = HEADER_BYTES + payload.length;
+    if (mapped == null || mapped.capacity() < needed) {
+      int size = Math.max(needed, MIN_MAPPED_BYTES);
+      if (mapped != null) {
+        size = (int) Math.min(Integer.MAX_VALUE, Math.max((long) size, 2L * mapped.capacity()));
+      }
+      // the mapping stays valid after the channel is closed
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+          StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        size = (int) Math.max(size, channel.size());
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+    }
+
+    // continue from the sequence left by a previous writer, odd if it died while writing
+    long sequence = mapped.getLong(0) | 1;
+    mapped.putLong(0, sequence);
+    // the odd sequence must be visible before any payload byte changes
+    fence = sequence;
+    mapped.putLong(8, generation);
+    mapped.putInt(16, payload.length);
+    mapped.position(HEADER_BYTES);
+    mapped.put(payload);
+    // and the payload before the even sequence
+    fence = sequence + 1;
+    mapped.putLong(0, sequence + 1);
+    mapped.force();
+  }
+}
@@ -0,0 +1,163 @@
+/// Copyright 2017 Pinterest Inc.
+///
+/// Licensed under the Apache License, Version 2.0 (the "License");
+/// you may not use this file except in compliance with the License.
+/// You may obtain a copy of the License at
+///
+/// http://www.apache.org/licenses/LICENSE-2.0
+
+/// Unless required by applicable law or agreed to in writing, software
+/// distributed under the License is distributed on an "AS IS" BASIS,
+/// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+/// See the License for the specific language governing permissions and
+/// limitations under the License.
+
+package com.pinterest.rocksplicator;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Post shard maps to the config service at postUrl over a pooled keep-alive client.
+ *
+ * The body is a JSON object with the shard map in "content" (encoded as "content_encoding" if
+ * not JSON), "format" of "full" or "delta" (applied on top of "base_generation") and
+ * "generation". If the shard map of a cluster is split into slots (see
+ * {@link ResourceSlotAssigner}), every slot posts to its own postUrl with the resources of that
+ * slot only, tagged by "slot" and "num_slots". The resources of all slots are disjoint, so the
+ * full shard map of the cluster is the union of the latest posts of slots 0 to num_slots - 1.
+ */
+public class HttpShardMapPublisher implements ShardMapPublisher {
+  private static final Logger LOG = LoggerFactory.getLogger(HttpShardMapPublisher.class);
+  private static final int POST_CONNECT_TIMEOUT_MS = 10 * 1000;
+  private static final int POST_SOCKET_TIMEOUT_MS = 60 * 1000;
+
+  private final String postUrl;
+  private final CloseableHttpClient httpClient;
+  private final boolean compressPosts;
+  private JSONObject dataParameters;
+
+  /**
+   * @param postUrl
+   * @param compressPosts gzip the body of config posts, the config service must accept
+   *                      Content-Encoding: gzip
+   */
+  public HttpShardMapPublisher(String postUrl, boolean compressPosts) {
+    // posts of a single generator never overlap, so a couple of kept-alive connections suffice
+    this(newHttpClient(2), postUrl, compressPosts);
+  }
+
+  /**
+   * @param httpClient may be shared by the publishers of many clusters
+   * @param postUrl
+   * @param compressPosts
+   */
+  public HttpShardMapPublisher(CloseableHttpClient httpClient, String postUrl,
+                               boolean compressPosts) {
+    this.postUrl = postUrl;
+    this.httpClient = httpClient;
+    this.compressPosts = compressPosts;
+    this.dataParameters = new JSONObject();
+    this.dataParameters.put("config_version", "v3");
+    this.dataParameters.put("author", "ConfigGenerator");
+    this.dataParameters.put("comment", "new shard config");
+    this.dataParameters.put("content", "{}");
+  }
+
+  /**
+   * Create a pooled keep-alive client
+   * @param maxConnections the max number of concurrent posts
+   */
+  public static CloseableHttpClient newHttpClient(int maxConnections) {
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnections);
+    return HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectTimeout(POST_CONNECT_TIMEOUT_MS)
+            .setSocketTimeout(POST_SOCKET_TIMEOUT_MS)
+            .build())
+        .evictIdleConnections(60L, TimeUnit.SECONDS)
+        .build();
+  }
+
+  @Override
+  public boolean publish(Update update) {
+    this.dataParameters.put("generation", update.getGeneration());
+    this.dataParameters.remove("content");
+    if (update.getDelta() != null) {
+      // consumers apply a delta only on top of base_generation
+      this.dataParameters.put("format", "delta");
+      this.dataParameters.put("base_generation", update.getBaseGeneration());
+      this.dataParameters.put("content", update.getDelta());
+    } else {
+      this.dataParameters.put("format", "full");
+      this.dataParameters.remove("base_generation");
+      this.dataParameters.put("content", update.getContent());
+    }
+    if (update.getNumSlots() > 1) {
+      // consumers merge the shard maps of all slots
+      this.dataParameters.put("slot", update.getSlot());
+      this.dataParameters.put("num_slots", update.getNumSlots());
+    } else {
+      this.dataParameters.remove("slot");
+      this.dataParameters.remove("num_slots");
+    }
+    if (Update.ENCODING_JSON.equals(update.getEncoding())) {
+      this.dataParameters.remove("content_encoding");
+    } else {
+      this.dataParameters.put("content_encoding", update.getEncoding());
+    }
+
+    HttpPost httpPost = new HttpPost(this.postUrl);
+    try {
+      if (compressPosts) {
+        ByteArrayEntity entity = new ByteArrayEntity(
+            gzip(this.dataParameters.toString()), ContentType.APPLICATION_JSON);
+        entity.setContentEncoding("gzip");
+        httpPost.setEntity(entity);
+      } else {
+        httpPost.setEntity(new StringEntity(this.dataParameters.toString(),
+            ContentType.APPLICATION_JSON));
+      }
+
+      try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
+        // fully read the response so the connection can be reused
+        EntityUtils.consume(response.getEntity());
+        if (response.getStatusLine().getStatusCode() == 200) {
+          return true;
+        }
+        LOG.error(response.getStatusLine().getReasonPhrase());
+      }
+    } catch (Exception e) {
+      LOG.error("Failed to post the new config", e);
+    }
+    return false;
+  }
+
+  private static byte[] gzip(String content) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length() / 4);
+    try (GZIPOutputStream gzipStream = new GZIPOutputStream(bytes)) {
+      gzipStream.write(content.getBytes(StandardCharsets.UTF_8));
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -34,7 +34,9 @@ import org.apache.helix.participant.statemachine.StateModelFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -55,7 +57,8 @@ import java.util.concurrent.TimeUnit;
  *
  * 1) Slave to Master
  *    a) sanity check that there is no Master existing in the cluster
- *    b) make sure the local replica has the highest seq # among all existing Slaves
+ *    b) make sure the local replica has the highest seq # among all existing Slaves which answer
+ *       within a deadline, all Slaves are queried concurrently
  *    c) changeDBRoleAndUpStream(me, "Master")
  *    d) changeDBRoleAndUpStream(all_other_slaves_or_offlines, "Slave", "my_ip_port")
  *
@@ -66,7 +69,9 @@ import java.util.concurrent.TimeUnit;
  *    a) addDB("127.0.0.1:9090")
  *    b) Check if the local replica needs to be rebuilt, i.e., there exist some other replicas in
  *       the cluster and latest data in local WAL is too old and way behind other replicas
- *    c) if yes, backupDB(// prefer Master), and then restoreDB()
+ *    c) if yes, stream a checkpoint from the upstream (prefer Master) if rebuildFromPeer is set,
+ *       otherwise (or if streaming fails) restoreDB() from a fresh enough backup in the snapshot
+ *       catalog, taking one with backupDB(// prefer Master) first if there is none
  *    d) changeDBRoleAndUpStream(me, "Slave", "Master_ip_port") if Master exists
  *
  * 4) Slave to Offline
@@ -91,14 +96,30 @@ public class MasterSlaveStateModelFactory extends StateModelFactory<StateModel>
   private CuratorFramework zkClient;
   private final boolean useS3Backup;
   private final String s3Bucket;
+  private final boolean rebuildFromPeer;
+  private final int rebuildLimitMbs;
 
   public MasterSlaveStateModelFactory(
       String host, int adminPort, String zkConnectString, String cluster, boolean useS3Backup, String s3Bucket) {
+    this(host, adminPort, zkConnectString, cluster, useS3Backup, s3Bucket, false, 0);
+  }
+
+  /**
+   * @param rebuildFromPeer stream checkpoints directly from the upstream when rebuilding a
+   *                        replica, instead of going through HDFS or S3
+   * @param rebuildLimitMbs rate limit in MB/s for streaming from the upstream, a non positive
+   *                        value means no limit
+   */
+  public MasterSlaveStateModelFactory(
+      String host, int adminPort, String zkConnectString, String cluster, boolean useS3Backup,
+      String s3Bucket, boolean rebuildFromPeer, int rebuildLimitMbs) {
     this.host = host;
     this.adminPort = adminPort;
     this.cluster = cluster;
     this.useS3Backup = useS3Backup;
     this.s3Bucket = s3Bucket;
+    this.rebuildFromPeer = rebuildFromPeer;
+    this.rebuildLimitMbs = rebuildLimitMbs;
     this.zkClient = CuratorFrameworkFactory.newClient(zkConnectString,
         new ExponentialBackoffRetry(1000, 3));
     zkClient.start();
@@ -107,13 +128,25 @@ public class MasterSlaveStateModelFactory extends StateModelFactory<StateModel>
   @Override
   public StateModel createNewStateModel(String resourceName, String partitionName) {
     LOG.error("Create a new state for " + partitionName);
-    return new MasterSlaveStateModel(
-        resourceName, partitionName, host, adminPort, cluster, zkClient, useS3Backup, s3Bucket);
+    return new MasterSlaveStateModel(resourceName, partitionName, host, adminPort, cluster,
+        zkClient, useS3Backup, s3Bucket, rebuildFromPeer, rebuildLimitMbs);
   }
 
 
   public static class MasterSlaveStateModel extends StateModel {
     private static final Logger LOG = LoggerFactory.getLogger(MasterSlaveStateModel.class);
+    // overall deadline for collecting seq # from other replicas during promotion
+    private static final long SEQ_NUM_FANOUT_TIMEOUT_MS = 5000;
+    // how long to wait for the old Master to disappear before promotion
+    private static final long NO_MASTER_WAIT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(60);
+    // how long to wait for the local replica to catch up before promotion
+    private static final long CATCH_UP_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(10);
+    // deadline for each replica when pointing other replicas to a new upstream
+    private static final long UPSTREAM_CHANGE_TIMEOUT_MS = 5000;
+    // max age of a backup reused to rebuild a replica, also bounded by half of the WAL TTL
+    private static final long SNAPSHOT_MAX_AGE_MS = TimeUnit.MINUTES.toMillis(30);
+    // how often to check on a backup taken by another replica
+    private static final long SNAPSHOT_POLL_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
 
     private final String resourceName;
     private final String partitionName;
@@ -123,7 +156,11 @@ public class MasterSlaveStateModelFactory extends StateModelFactory<StateModel>
     private CuratorFramework zkClient;
     private final boolean useS3Backup;
     private final String s3Bucket;
+    private final boolean rebuildFromPeer;
+    private final int rebuildLimitMbs;
     private InterProcessMutex partitionMutex;
+    private final ExternalViewWaiter externalViewWaiter;
+    private final SnapshotCatalog snapshotCatalog;
 
 
     /**
@@ -131,7 +168,8 @@ public class MasterSlaveStateModelFactory extends StateModelFactory<StateModel>
      */
     public MasterSlaveStateModel(String resourceName, String partitionName, String host,
                                   int adminPort, String cluster, CuratorFramework zkClient,
-                                  boolean useS3Backup, String s3Bucket) {
+                                  boolean useS3Backup, String s3Bucket,
+                                  boolean rebuildFromPeer, int rebuildLimitMbs) {
       this.resourceName = resourceName;
       this.partitionName = partitionName;
       this.host = host;
@@ -140,8 +178,12 @@ public class MasterSlaveStateModelFactory extends StateModelFactory<StateModel>
       this.zkClient = zkClient;
       this.useS3Backup = useS3Backup;
       this.s3Bucket = s3Bucket;
+      this.rebuildFromPeer = rebuildFromPeer;
+      this.rebuildLimitMbs = rebuildLimitMbs;
       this.partitionMutex = new InterProcessMutex(zkClient,
           getLockPath(cluster, resourceName, partitionName));
+      this.externalViewWaiter = new ExternalViewWaiter(zkClient);
+      this.snapshotCatalog = new SnapshotCatalog(zkClient, cluster);
     }
 
     /**
@@ -151,47 +193,30 @@ public class MasterSlaveStateModelFactory extends StateModelFactory<StateModel>
       Utils.logTransitionMessage(message);
 
       try (Locker locker = new Locker(partitionMutex)) {
-        HelixAdmin admin = context.getManager().getClusterManagmentTool();
-        Map<String, String> stateMap = null;
-
-        // sanity check no existing Master for up to 59 seconds
-        for (int i = 0; i < 60; ++i) {
-          ExternalView view = admin.getResourceExternalView(cluster, resourceName);
-          stateMap = view.getStateMap(partitionName);
-
-          if (!stateMap.containsValue("MASTER")) {
-            break;
-          }
-
-          if (i == 59) {
-            throw new RuntimeException("Existing Master detected!");
-          }
-
-          TimeUnit.SECONDS.sleep(1);
-          LOG.error("Slept for " + String.valueOf(i + 1) + " seconds for 0 Master");
-        }
+        // sanity check no existing Master for up to 60 seconds, woken up by ExternalView changes
+        Map<String, String> stateMap = externalViewWaiter.waitForNoMaster(
+            context.getManager(), resourceName, partitionName, NO_MASTER_WAIT_TIMEOUT_MS);
 
         final String dbName = Utils.getDbName(partitionName);
         // make sure local replica has the highest sequence number
         long localSeq = Utils.getLocalLatestSequenceNumber(dbName, adminPort);
-        String hostWithHighestSeq = null;
-        long highestSeq = localSeq;
+        List<String> otherInstances = new ArrayList<>();
         for (String instanceName : stateMap.keySet()) {
-          String hostName = instanceName.split("_")[0];
-          int port = Integer.parseInt(instanceName.split("_")[1]);
-          if (this.host.equals(hostName)) {
-            // myself
-            continue;
+          if (!this.host.equals(instanceName.split("_")[0])) {
+            otherInstances.add(instanceName);
           }
+        }
 
-          long seq = Utils.getLatestSequenceNumber(dbName, hostName, port);
-          if (seq == -1) {
-            LOG.error("Failed to get latest sequence number from " + hostName + " for " + dbName);
-            continue;
-          }
+        // query all other replicas concurrently, replicas not answering in time are skipped
+        Map<String, Long> seqNums = Utils.getLatestSequenceNumbers(
+            dbName, otherInstances, SEQ_NUM_FANOUT_TIMEOUT_MS);
+        String hostWithHighestSeq = null;
+        long highestSeq = localSeq;
+        for (Map.Entry<String, Long> instanceNameAndSeq : seqNums.entrySet()) {
+          long seq = instanceNameAndSeq.getValue();
           if (highestSeq < seq) {
             highestSeq = seq;
-            hostWithHighestSeq = hostName;
+            hostWithHighestSeq = instanceNameAndSeq.getKey().split("_")[0];
           }
         }
 
@@ -201,10 +226,18 @@ public class MasterSlaveStateModelFactory extends StateModelFactory<StateModel>
           Utils.changeDBRoleAndUpStream(
               "localhost", adminPort, dbName, "SLAVE", hostWithHighestSeq, adminPort);
 
-          // wait for up to 10 mins
-          for (int i = 0; i < 600; ++i) {
-            TimeUnit.SECONDS.sleep(1);
-            long newLocalSeq = Utils.getLocalLatestSequenceNumber(dbName, adminPort);
+          // wait for up to 10 mins, the local admin server returns as soon as highestSeq is
+          // applied, or once its own max wait time passes so that we can log the progress
+          long catchUpStartMs = System.currentTimeMillis();
+          long catchUpDeadlineMs = catchUpStartMs + CATCH_UP_TIMEOUT_MS;
+          while (highestSeq > localSeq) {
+            long remainingMs = catchUpDeadlineMs - System.currentTimeMillis();
+            if (remainingMs <= 0) {
+              break;
+            }
+
+            long newLocalSeq = Utils.waitForSequenceNumber("localhost", adminPort, dbName,
+                highestSeq, remainingMs);
             LOG.error("Replicated [" + String.valueOf(localSeq) + ", " + String.valueOf(newLocalSeq) +
               ") from " + hostWithHighestSeq + " for " + dbName);
             localSeq = newLocalSeq;
@@ -212,7 +245,8 @@ public class MasterSlaveStateModelFactory extends StateModelFactory<StateModel>
               LOG.error(dbName + " catched up!");
               break;
             }
-            LOG.error("Slept for " + String.valueOf(i + 1) + " seconds for replicating " + dbName);
+            LOG.error("Waited for " + String.valueOf(System.currentTimeMillis() - catchUpStartMs)
+                + " ms for replicating " + dbName);
           }
 
           if (highestSeq > localSeq) {
@@ -226,25 +260,26 @@ public class MasterSlaveStateModelFactory extends StateModelFactory<StateModel>
         "", adminPort);
 
         // changeDBRoleAndUpStream(all_other_slaves_or_offlines, "Slave", "my_ip_port")
+        List<String> slavesAndOfflines = new ArrayList<>();
         for (Map.Entry<String, String> instanceNameAndRole : stateMap.entrySet()) {
           String hostName = instanceNameAndRole.getKey().split("_")[0];
-          int port = Integer.parseInt(instanceNameAndRole.getKey().split("_")[1]);
           if (this.host.equals(hostName)) {
             // myself
             continue;
           }
 
-          try {
-            // setup upstream for Slaves and Offlines with best-efforts
-            if (instanceNameAndRole.getValue().equalsIgnoreCase("SLAVE") ||
-                instanceNameAndRole.getValue().equalsIgnoreCase("OFFLINE")) {
-              Utils.changeDBRoleAndUpStream(
-                  hostName, port, dbName, "SLAVE", this.host, adminPort);
-            }
-          } catch (RuntimeException e) {
-            LOG.error("Failed to set upstream for " + dbName + " on " + hostName + e.toString());
+          if (instanceNameAndRole.getValue().equalsIgnoreCase("SLAVE") ||
+              instanceNameAndRole.getValue().equalsIgnoreCase("OFFLINE")) {
+            slavesAndOfflines.add(instanceNameAndRole.getKey());
           }
         }
+
+        // setup upstream for Slaves and Offlines concurrently with best-efforts
+        List<String> failedInstances = Utils.changeDBRoleAndUpStream(
+            slavesAndOfflines, dbName, "SLAVE", this.host, adminPort, UPSTREAM_CHANGE_TIMEOUT_MS);
+        if (!failedInstances.isEmpty()) {
+          LOG.error("Failed to set upstream for " + dbName + " on " + failedInstances.toString());
+        }
       } catch (RuntimeException e) {
         LOG.error(e.toString());
         throw e;
@@ -281,6 +316,8 @@ public class MasterSlaveStateModelFactory extends StateModelFactory<StateModel>
       String dbName = Utils.getDbName(partitionName);
       String snapshotHost = null;
       int snapshotPort = 0;
+      long walTtlSeconds = 0;
+      long localSeqNum = -1;
       int checkTimes = 0;
       while (true) {
         ++checkTimes;
@@ -336,6 +373,8 @@ public class MasterSlaveStateModelFactory extends StateModelFactory<StateModel>
 
           // check if the local replica needs rebuild
           CheckDBResponse localStatus = Utils.checkLocalDB(dbName, adminPort);
+          walTtlSeconds = localStatus.wal_ttl_seconds;
+          localSeqNum = localStatus.seq_num;
 
           boolean needRebuild = true;
           if (liveHostAndRole.isEmpty()) {
@@ -378,28 +417,161 @@ public class MasterSlaveStateModelFactory extends StateModelFactory<StateModel>
         // There is a small chance that snapshotHost removes the db after we release the lock and
         // before we call backupDB() below. In that case, we will throw and let Helix mark the
         // local partition as error.
+        if (rebuildFromPeer) {
+          // stream a checkpoint from the upstream host directly
+          Utils.closeDB(dbName, adminPort);
+          try {
+            Utils.restoreLocalDBFromPeer(adminPort, dbName, snapshotHost, snapshotPort,
+                snapshotHost, snapshotPort, rebuildLimitMbs);
+            continue;
+          } catch (RuntimeException e) {
+            // e.g. the upstream runs an admin server without checkpoint streaming
+            LOG.error("Failed to restore " + dbName + " from " + snapshotHost +
+                ", fall back to remote storage", e);
+          }
+        }
+
+        // replicas rebuilding at the same time share one backup through the snapshot catalog
+        SnapshotCatalog.Snapshot snapshot =
+            findOrCreateSnapshot(dbName, snapshotHost, snapshotPort, walTtlSeconds, localSeqNum);
+        Utils.closeDB(dbName, adminPort);
         if (!useS3Backup) {
-          String hdfsPath = "/rocksplicator/" + cluster + "/" + dbName + "/" + snapshotHost + "_"
-            + String.valueOf(snapshotPort) + "/" + String.valueOf(System.currentTimeMillis());
+          LOG.error("Restore " + dbName + " from " + snapshot.path);
+          Utils.restoreLocalDB(adminPort, dbName, snapshot.path, snapshotHost, snapshotPort);
+        } else {
+          LOG.error("S3 Restore " + dbName + " from " + snapshot.path);
+          Utils.restoreLocalDBFromS3(adminPort, dbName, s3Bucket, snapshot.path, snapshotHost,
+              snapshotPort);
+        }
+      }
+    }
 
-          // backup a snapshot from the upstream host, and restore it locally
+    /**
+     * Reuse a backup of the DB taken recently enough for the upstream to still have the WAL
+     * since then, and no older than the local replica, waiting for it if it is still being taken
+     * by another replica. Otherwise backup the upstream, and record it in the snapshot catalog
+     * for the other replicas. The catalog mutex is only held to find or claim an entry.
+     */
+    private SnapshotCatalog.Snapshot findOrCreateSnapshot(String dbName, String snapshotHost,
+                                                          int snapshotPort, long walTtlSeconds,
+                                                          long minSeqNum) {
+      String storage = useS3Backup ? "s3" : "hdfs";
+      String bucket = useS3Backup ? s3Bucket : "";
+      long maxAgeMs = Math.min(SNAPSHOT_MAX_AGE_MS,
+          TimeUnit.SECONDS.toMillis(walTtlSeconds) / 2);
+      while (true) {
+        SnapshotCatalog.Snapshot snapshot;
+        SnapshotCatalog.Snapshot claimed = null;
+        try (Locker locker = new Locker(snapshotCatalog.getMutex(dbName))) {
+          snapshot = snapshotCatalog.findFreshSnapshot(dbName, storage, bucket, maxAgeMs,
+              minSeqNum);
+          if (snapshot == null) {
+            claimed = claimSnapshot(dbName, snapshotHost, snapshotPort, storage, bucket);
+          }
+        } catch (RuntimeException e) {
+          throw e;
+        } catch (Exception e) {
+          LOG.error("Failed to lock snapshot catalog of " + dbName, e);
+          throw new RuntimeException(e);
+        }
+
+        if (claimed != null) {
+          return takeSnapshot(dbName, snapshotHost, snapshotPort, claimed);
+        }
+
+        if (!snapshot.pending) {
+          LOG.error("Reuse snapshot of " + dbName + " at " + snapshot.path + " taken from " +
+              snapshot.source + " with seq # " + String.valueOf(snapshot.seqNum));
+          return snapshot;
+        }
+
+        // taken by another replica, look again once it completes, fails or goes stale
+        LOG.error("Wait for snapshot of " + dbName + " at " + snapshot.path + " taken from " +
+            snapshot.source);
+        waitForSnapshot(dbName, snapshot.path, snapshot.createdMs + maxAgeMs);
+      }
+    }
+
+    // record a pending snapshot in the catalog, unless the upstream seq # is unknown
+    private SnapshotCatalog.Snapshot claimSnapshot(String dbName, String snapshotHost,
+                                                   int snapshotPort, String storage,
+                                                   String bucket) throws Exception {
+      // any update after this seq # is replicated from the upstream after restore
+      long seqNum = Utils.getLatestSequenceNumber(dbName, snapshotHost, snapshotPort);
+      long nowMs = System.currentTimeMillis();
+      String source = snapshotHost + "_" + String.valueOf(snapshotPort);
+      String path = useS3Backup ?
+          "backup/" + cluster + "/" + dbName + "/" + source + "/" + String.valueOf(nowMs) :
+          "/rocksplicator/" + cluster + "/" + dbName + "/" + source + "/" + String.valueOf(nowMs);
+      SnapshotCatalog.Snapshot snapshot =
+          new SnapshotCatalog.Snapshot(storage, bucket, path, source, seqNum, nowMs);
+      snapshot.pending = true;
+      if (seqNum == -1) {
+        // unknown seq #, usable by this replica only
+        LOG.error("Unknown seq # of " + dbName + " on " + source + ", skip recording snapshot");
+      } else {
+        snapshotCatalog.addSnapshot(dbName, snapshot);
+      }
+      return snapshot;
+    }
+
+    private SnapshotCatalog.Snapshot takeSnapshot(String dbName, String snapshotHost,
+                                                  int snapshotPort,
+                                                  SnapshotCatalog.Snapshot claimed) {
+      boolean recorded = claimed.seqNum != -1;
+      try {
+        if (!useS3Backup) {
+          // backup a snapshot from the upstream host
           LOG.error("Backup " + dbName + " from " + snapshotHost);
-          Utils.backupDB(snapshotHost, snapshotPort, dbName, hdfsPath);
-          LOG.error("Restore " + dbName + " from " + hdfsPath);
-          Utils.closeDB(dbName, adminPort);
-          Utils.restoreLocalDB(adminPort, dbName, hdfsPath, snapshotHost, snapshotPort);
+          Utils.backupDB(snapshotHost, snapshotPort, dbName, claimed.path);
         } else {
-          String s3Path = "backup/" + cluster + "/" + dbName + "/" + snapshotHost + "_"
-            + String.valueOf(snapshotPort) + "/" + String.valueOf(System.currentTimeMillis());
-
-          // backup a snapshot from the upstream host, and restore it locally
+          // backup a snapshot from the upstream host
           LOG.error("S3 Backup " + dbName + " from " + snapshotHost);
-          Utils.backupDBToS3(snapshotHost, snapshotPort, dbName, s3Bucket, s3Path);
-          LOG.error("S3 Restore " + dbName + " from " + s3Path);
-          Utils.closeDB(dbName, adminPort);
-          Utils.restoreLocalDBFromS3(adminPort, dbName, s3Bucket, s3Path, snapshotHost, snapshotPort);
+          Utils.backupDBToS3(snapshotHost, snapshotPort, dbName, s3Bucket, claimed.path);
+        }
+      } catch (RuntimeException e) {
+        if (recorded) {
+          try {
+            snapshotCatalog.removeSnapshot(dbName, claimed.path);
+          } catch (Exception removeException) {
+            // waiters stop waiting once it goes stale
+            LOG.error("Failed to remove snapshot of " + dbName + " at " + claimed.path,
+                removeException);
+          }
+        }
+        throw e;
+      }
+
+      if (recorded) {
+        try {
+          snapshotCatalog.completeSnapshot(dbName, claimed.path);
+        } catch (Exception e) {
+          // the backup is still usable by this replica
+          LOG.error("Failed to record snapshot of " + dbName + " at " + claimed.path, e);
         }
       }
+      claimed.pending = false;
+      return claimed;
+    }
+
+    // return once the snapshot is no longer pending, or deadlineMs passes
+    private void waitForSnapshot(String dbName, String path, long deadlineMs) {
+      try {
+        while (System.currentTimeMillis() < deadlineMs) {
+          SnapshotCatalog.Snapshot snapshot = snapshotCatalog.getSnapshot(dbName, path);
+          if (snapshot == null || !snapshot.pending) {
+            return;
+          }
+          Thread.sleep(Math.min(SNAPSHOT_POLL_INTERVAL_MS,
+              Math.max(1, deadlineMs - System.currentTimeMillis())));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (Exception e) {
+        LOG.error("Failed to read snapshot catalog of " + dbName, e);
+        throw new RuntimeException(e);
+      }
     }
 
     /**
@@ -446,25 +618,26 @@ public class MasterSlaveStateModelFactory extends StateModelFactory<StateModel>
           String upstreamName = upstream.split("_")[0];
           int upstreamPort = Integer.parseInt(upstream.split("_")[1]);
 
+          List<String> slavesAndOfflines = new ArrayList<>();
           for (Map.Entry<String, String> instanceNameAndRole : stateMap.entrySet()) {
             String hostName = instanceNameAndRole.getKey().split("_")[0];
-            int port = Integer.parseInt(instanceNameAndRole.getKey().split("_")[1]);
             if (this.host.equals(hostName) || upstreamName.equals(hostName)) {
               //  mysel or upstream
               continue;
             }
 
-            try {
-              // setup upstream for Slaves and Offlines with best-efforts
-              if (instanceNameAndRole.getValue().equalsIgnoreCase("SLAVE") ||
-                  instanceNameAndRole.getValue().equalsIgnoreCase("OFFLINE")) {
-                Utils.changeDBRoleAndUpStream(
-                    hostName, port, dbName, "SLAVE", upstreamName, upstreamPort);
-              }
-            } catch (RuntimeException e) {
-              LOG.error("Failed to set upstream for " + dbName + " on " + hostName + e.toString());
+            if (instanceNameAndRole.getValue().equalsIgnoreCase("SLAVE") ||
+                instanceNameAndRole.getValue().equalsIgnoreCase("OFFLINE")) {
+              slavesAndOfflines.add(instanceNameAndRole.getKey());
             }
           }
+
+          // setup upstream for Slaves and Offlines concurrently with best-efforts
+          List<String> failedInstances = Utils.changeDBRoleAndUpStream(slavesAndOfflines, dbName,
+              "SLAVE", upstreamName, upstreamPort, UPSTREAM_CHANGE_TIMEOUT_MS);
+          if (!failedInstances.isEmpty()) {
+            LOG.error("Failed to set upstream for " + dbName + " on " + failedInstances.toString());
+          }
         }
 
         // close DB
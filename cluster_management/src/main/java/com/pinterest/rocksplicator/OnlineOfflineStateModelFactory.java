@@ -18,9 +18,6 @@
 
 package com.pinterest.rocksplicator;
 
-import com.pinterest.rocksdb_admin.thrift.AddS3SstFilesToDBRequest;
-import com.pinterest.rocksdb_admin.thrift.Admin;
-
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
@@ -108,11 +105,8 @@ public class OnlineOfflineStateModelFactory extends StateModelFactory<StateModel
           LOG.error("Failed to parse s3_download_limit_mb", e);
         }
 
-        AddS3SstFilesToDBRequest req = new AddS3SstFilesToDBRequest(Utils.getDbName(partitionName),
-            s3Bucket, s3Path + Utils.getS3PartPrefix(partitionName));
-        req.setS3_download_limit_mb(s3_download_limit_mb);
-        Admin.Client client = Utils.getLocalAdminClient(adminPort);
-        client.addS3SstFilesToDB(req);
+        Utils.addS3SstFilesToLocalDB(adminPort, Utils.getDbName(partitionName), s3Bucket,
+            s3Path + Utils.getS3PartPrefix(partitionName), s3_download_limit_mb);
       } catch (Exception e) {
         LOG.error("Failed to add S3 files for " + partitionName, e);
         throw new RuntimeException(e);
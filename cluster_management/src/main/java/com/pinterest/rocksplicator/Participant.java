@@ -21,8 +21,11 @@ package com.pinterest.rocksplicator;
 import com.pinterest.rocksplicator.task.BackupTaskFactory;
 import com.pinterest.rocksplicator.task.DedupTaskFactory;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -67,6 +70,12 @@ public class Participant {
   private static final String configPostUrl = "configPostUrl";
   private static final String s3Bucket = "s3Bucket";
   private static final String disableSpectator = "disableSpectator";
+  private static final String rebuildFromPeer = "rebuildFromPeer";
+  private static final String rebuildLimitMbs = "rebuildLimitMbs";
+  private static final String maxConcurrentTransfers = "maxConcurrentTransfers";
+  private static final String transferBudgetMbs = "transferBudgetMbs";
+  private static final String configGeneratorSlots = "configGeneratorSlots";
+  private static final String SLOT_PLACEHOLDER = "{slot}";
 
   private static HelixManager helixManager;
   private StateModelFactory<StateModel> stateModelFactory;
@@ -109,7 +118,9 @@ public class Participant {
     stateModelOption.setArgName("StateModel Type (Required)");
 
     Option configPostUrlOption =
-        OptionBuilder.withLongOpt(configPostUrl).withDescription("URL to post config").create();
+        OptionBuilder.withLongOpt(configPostUrl)
+            .withDescription("URL to post config, with {slot} replaced by the config generator " +
+                "slot").create();
     configPostUrlOption.setArgs(1);
     configPostUrlOption.setRequired(true);
     configPostUrlOption.setArgName("URL to post config (Required)");
@@ -126,6 +137,42 @@ public class Participant {
     disableSpectatorOption.setRequired(false);
     disableSpectatorOption.setArgName("Disable Spectator (Optional)");
 
+    Option rebuildFromPeerOption =
+        OptionBuilder.withLongOpt(rebuildFromPeer)
+            .withDescription("Rebuild replicas by streaming checkpoints from the upstream").create();
+    rebuildFromPeerOption.setArgs(0);
+    rebuildFromPeerOption.setRequired(false);
+    rebuildFromPeerOption.setArgName("Rebuild from peer (Optional)");
+
+    Option rebuildLimitMbsOption =
+        OptionBuilder.withLongOpt(rebuildLimitMbs)
+            .withDescription("Rate limit in MB/s for rebuilding from peer").create();
+    rebuildLimitMbsOption.setArgs(1);
+    rebuildLimitMbsOption.setRequired(false);
+    rebuildLimitMbsOption.setArgName("Rebuild rate limit in MB/s (Optional)");
+
+    Option maxConcurrentTransfersOption =
+        OptionBuilder.withLongOpt(maxConcurrentTransfers)
+            .withDescription("Max number of concurrent backups/restores on this host").create();
+    maxConcurrentTransfersOption.setArgs(1);
+    maxConcurrentTransfersOption.setRequired(false);
+    maxConcurrentTransfersOption.setArgName("Max concurrent transfers (Optional)");
+
+    Option transferBudgetMbsOption =
+        OptionBuilder.withLongOpt(transferBudgetMbs)
+            .withDescription("Total MB/s shared by backups/restores on this host").create();
+    transferBudgetMbsOption.setArgs(1);
+    transferBudgetMbsOption.setRequired(false);
+    transferBudgetMbsOption.setArgName("Transfer budget in MB/s (Optional)");
+
+    Option configGeneratorSlotsOption =
+        OptionBuilder.withLongOpt(configGeneratorSlots)
+            .withDescription("Split the shard map across this many config generator leaders")
+            .create();
+    configGeneratorSlotsOption.setArgs(1);
+    configGeneratorSlotsOption.setRequired(false);
+    configGeneratorSlotsOption.setArgName("Number of config generator slots (Optional)");
+
     Options options = new Options();
     options.addOption(zkServerOption)
         .addOption(clusterOption)
@@ -135,7 +182,12 @@ public class Participant {
         .addOption(stateModelOption)
         .addOption(configPostUrlOption)
         .addOption(s3BucketOption)
-        .addOption(disableSpectatorOption);
+        .addOption(disableSpectatorOption)
+        .addOption(rebuildFromPeerOption)
+        .addOption(rebuildLimitMbsOption)
+        .addOption(maxConcurrentTransfersOption)
+        .addOption(transferBudgetMbsOption)
+        .addOption(configGeneratorSlotsOption);
     return options;
   }
 
@@ -169,10 +221,38 @@ public class Participant {
       s3BucketName = cmd.getOptionValue(s3Bucket);
     }
     final boolean runSpectator = !cmd.hasOption(disableSpectator);
+    final boolean useRebuildFromPeer = cmd.hasOption(rebuildFromPeer);
+    int rebuildLimit = 0;
+    if (cmd.hasOption(rebuildLimitMbs)) {
+      rebuildLimit = Integer.parseInt(cmd.getOptionValue(rebuildLimitMbs));
+    }
+    int numSlots = 1;
+    if (cmd.hasOption(configGeneratorSlots)) {
+      numSlots = Integer.parseInt(cmd.getOptionValue(configGeneratorSlots));
+    }
+    // each slot only posts its own resources, so slots must not overwrite each other
+    if (numSlots > 1 && runSpectator && !postUrl.contains(SLOT_PLACEHOLDER)) {
+      throw new IllegalArgumentException("--" + configPostUrl + " must contain " +
+          SLOT_PLACEHOLDER + " when --" + configGeneratorSlots + " is greater than 1");
+    }
+
+    Utils.setLocalHost(host);
+    if (cmd.hasOption(maxConcurrentTransfers) || cmd.hasOption(transferBudgetMbs)) {
+      int maxTransfers = Utils.DEFAULT_MAX_CONCURRENT_TRANSFERS;
+      if (cmd.hasOption(maxConcurrentTransfers)) {
+        maxTransfers = Integer.parseInt(cmd.getOptionValue(maxConcurrentTransfers));
+      }
+      int budget = 0;
+      if (cmd.hasOption(transferBudgetMbs)) {
+        budget = Integer.parseInt(cmd.getOptionValue(transferBudgetMbs));
+      }
+      Utils.setTransferLimits(maxTransfers, budget);
+    }
 
     LOG.error("Starting participant with ZK:" + zkConnectString);
     Participant participant = new Participant(zkConnectString, clusterName, instanceName,
-        stateModelType, Integer.parseInt(port), postUrl, useS3Backup, s3BucketName, runSpectator);
+        stateModelType, Integer.parseInt(port), postUrl, useS3Backup, s3BucketName, runSpectator,
+        useRebuildFromPeer, rebuildLimit, numSlots);
 
     HelixAdmin helixAdmin = new ZKHelixAdmin(zkConnectString);
     HelixConfigScope scope =
@@ -196,7 +276,8 @@ public class Participant {
 
   private Participant(String zkConnectString, String clusterName, String instanceName,
                       String stateModelType, int port, String postUrl, boolean useS3Backup,
-                      String s3BucketName, boolean runSpectator) throws Exception {
+                      String s3BucketName, boolean runSpectator, boolean useRebuildFromPeer,
+                      int rebuildLimit, int numSlots) throws Exception {
     helixManager = HelixManagerFactory.getZKHelixManager(clusterName, instanceName,
         InstanceType.PARTICIPANT, zkConnectString);
 
@@ -209,14 +290,16 @@ public class Participant {
       stateModelFactory = new CacheStateModelFactory();
     } else if (stateModelType.equals("MasterSlave")) {
       stateModelFactory = new MasterSlaveStateModelFactory(instanceName.split("_")[0],
-          port, zkConnectString, clusterName, useS3Backup, s3BucketName);
+          port, zkConnectString, clusterName, useS3Backup, s3BucketName, useRebuildFromPeer,
+          rebuildLimit);
     } else if (stateModelType.equals("Bootstrap")) {
       stateModelFactory = new BootstrapStateModelFactory(instanceName.split("_")[0],
           port, zkConnectString, clusterName);
     } else if (stateModelType.equals("MasterSlave;Task")) {
       stateModelType = "MasterSlave";
       stateModelFactory = new MasterSlaveStateModelFactory(instanceName.split("_")[0],
-          port, zkConnectString, clusterName, useS3Backup, s3BucketName);
+          port, zkConnectString, clusterName, useS3Backup, s3BucketName, useRebuildFromPeer,
+          rebuildLimit);
 
       // TODO: register restore factories
       taskFactoryRegistry
@@ -252,7 +335,7 @@ public class Participant {
         Message.MessageType.STATE_TRANSITION.name(), stateMach);
     Runtime.getRuntime().addShutdownHook(new HelixManagerShutdownHook(helixManager));
 
-    if (runSpectator) {
+    if (runSpectator && numSlots == 1) {
       // Add callback to create rocksplicator shard config
       HelixCustomCodeRunner codeRunner = new HelixCustomCodeRunner(helixManager, zkConnectString)
           .invoke(new ConfigGenerator(clusterName, helixManager, postUrl))
@@ -260,6 +343,26 @@ public class Participant {
           .usingLeaderStandbyModel("ConfigWatcher" + clusterName);
 
       codeRunner.start();
+    } else if (runSpectator) {
+      // one leader per slot, so that Helix spreads the slots of a large cluster across
+      // participants, and each leader only generates the shard config of its own resources
+      ResourceSlotAssigner slotAssigner = new ResourceSlotAssigner(numSlots);
+      ScheduledExecutorService publisher = ConfigGenerator.newPublisherExecutor(1);
+      ForkJoinPool fragmentBuilders = ConfigGenerator.newFragmentBuilderPool();
+      for (int slot = 0; slot < numSlots; ++slot) {
+        ConfigGenerator configGenerator = new ConfigGenerator(clusterName, helixManager,
+            Collections.<ShardMapPublisher>singletonList(
+                new HttpShardMapPublisher(
+                    postUrl.replace(SLOT_PLACEHOLDER, String.valueOf(slot)), false)),
+            1000, 0, false, publisher, fragmentBuilders, slotAssigner, slot, null);
+        HelixCustomCodeRunner codeRunner =
+            new HelixCustomCodeRunner(helixManager, zkConnectString)
+                .invoke(configGenerator)
+                .on(HelixConstants.ChangeType.EXTERNAL_VIEW, HelixConstants.ChangeType.CONFIG)
+                .usingLeaderStandbyModel("ConfigWatcher" + clusterName + "_" + slot);
+
+        codeRunner.start();
+      }
     }
   }
 }
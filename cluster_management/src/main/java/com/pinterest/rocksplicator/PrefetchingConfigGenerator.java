@@ -0,0 +1,53 @@
+/// Copyright 2017 Pinterest Inc.
+///
+/// Licensed under the Apache License, Version 2.0 (the "License");
+/// you may not use this file except in compliance with the License.
+/// You may obtain a copy of the License at
+///
+/// http://www.apache.org/licenses/LICENSE-2.0
+
+/// Unless required by applicable law or agreed to in writing, software
+/// distributed under the License is distributed on an "AS IS" BASIS,
+/// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+/// See the License for the specific language governing permissions and
+/// limitations under the License.
+
+package com.pinterest.rocksplicator;
+
+import org.apache.helix.HelixManager;
+import org.apache.helix.NotificationContext;
+import org.apache.helix.api.listeners.PreFetch;
+import org.apache.helix.model.ExternalView;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * A {@link ConfigGenerator} that asks Helix to prefetch all ExternalViews for every ExternalView
+ * change callback, and builds the shard config from the delivered list instead of reading each
+ * ExternalView again through ZK.
+ */
+public class PrefetchingConfigGenerator extends ConfigGenerator {
+
+  public PrefetchingConfigGenerator(String clusterName, HelixManager helixManager,
+                                    List<ShardMapPublisher> publishers, long debounceMs,
+                                    int snapshotInterval, boolean binaryShardMap,
+                                    ScheduledExecutorService publisher,
+                                    ForkJoinPool fragmentBuilders,
+                                    ResourceSlotAssigner slotAssigner, int slot,
+                                    ReplicaLagMonitor lagMonitor) {
+    super(clusterName, helixManager, publishers, debounceMs, snapshotInterval, binaryShardMap,
+        publisher, fragmentBuilders, slotAssigner, slot, lagMonitor);
+  }
+
+  @Override
+  @PreFetch(enabled = true)
+  public void onExternalViewChange(List<ExternalView> externalViewList,
+                                   NotificationContext changeContext) {
+    if (changeContext.getType() == NotificationContext.Type.FINALIZE) {
+      return;
+    }
+    markDirty(externalViewList);
+  }
+}
@@ -0,0 +1,269 @@
+/// Copyright 2017 Pinterest Inc.
+///
+/// Licensed under the Apache License, Version 2.0 (the "License");
+/// you may not use this file except in compliance with the License.
+/// You may obtain a copy of the License at
+///
+/// http://www.apache.org/licenses/LICENSE-2.0
+
+/// Unless required by applicable law or agreed to in writing, software
+/// distributed under the License is distributed on an "AS IS" BASIS,
+/// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+/// See the License for the specific language governing permissions and
+/// limitations under the License.
+
+package com.pinterest.rocksplicator;
+
+import com.pinterest.rocksdb_admin.thrift.GetSequenceNumbersResponse;
+
+import org.apache.helix.model.ExternalView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Periodically sample the latest sequence numbers of the MASTER and SLAVE replicas of every
+ * partition known from the ExternalViews, with a single getSequenceNumbers call per host, and
+ * track the SLAVEs which are more than maxLag updates behind their MASTER, so that
+ * {@link ConfigGenerator} can leave them out of the shard map until they catch up.
+ *
+ * A SLAVE only stops lagging once it is within maxLag / 2 of its MASTER, so that a replica
+ * hovering around the threshold doesn't flap in and out of the shard map. A replica which doesn't
+ * answer keeps its previous status; an unreachable host is dealt with by Helix, not here.
+ */
+public class ReplicaLagMonitor {
+  private static final Logger LOG = LoggerFactory.getLogger(ReplicaLagMonitor.class);
+
+  /**
+   * Notified on the sampler thread when replicas of some resources start or stop lagging.
+   */
+  public interface Listener {
+    void onLaggingReplicasChange(Set<String> resources);
+  }
+
+  private final AsyncAdminClient adminClient;
+  private final ScheduledExecutorService sampler;
+  private final long maxLag;
+  private final long sampleIntervalMs;
+  private final long sampleTimeoutMs;
+  private final ConcurrentMap<String, ExternalView> externalViews;
+  // "partition@instance" of the lagging replicas, replaced as a whole after every sample
+  private volatile Set<String> laggingReplicas;
+
+  /**
+   * @param adminClient used to sample the sequence numbers, may be shared with others
+   * @param sampler runs the sampling, may be shared by the monitors of many clusters
+   * @param maxLag a SLAVE more than this many updates behind its MASTER is lagging
+   * @param sampleIntervalMs delay between two samples
+   */
+  public ReplicaLagMonitor(AsyncAdminClient adminClient, ScheduledExecutorService sampler,
+                           long maxLag, long sampleIntervalMs) {
+    this.adminClient = adminClient;
+    this.sampler = sampler;
+    this.maxLag = maxLag;
+    this.sampleIntervalMs = sampleIntervalMs;
+    this.sampleTimeoutMs = Math.max(1000, sampleIntervalMs / 2);
+    this.externalViews = new ConcurrentHashMap<>();
+    this.laggingReplicas = Collections.emptySet();
+  }
+
+  public static ScheduledExecutorService newSamplerExecutor(int numThreads) {
+    return Executors.newScheduledThreadPool(numThreads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ReplicaLagMonitor-sampler");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public void start(final Listener listener) {
+    sampler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Set<String> changed = sample();
+          if (!changed.isEmpty()) {
+            LOG.error("Lagging replicas changed for " + changed);
+            listener.onLaggingReplicasChange(changed);
+          }
+        } catch (RuntimeException e) {
+          LOG.error("Failed to sample replica lags", e);
+        }
+      }
+    }, sampleIntervalMs, sampleIntervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Track the replicas of the resource from its latest ExternalView
+   * @param externalView
+   */
+  public void setExternalView(ExternalView externalView) {
+    externalViews.put(externalView.getResourceName(), externalView);
+  }
+
+  /**
+   * Stop tracking resources not in the collection
+   * @param resources
+   */
+  public void retainResources(Collection<String> resources) {
+    externalViews.keySet().retainAll(resources);
+  }
+
+  /**
+   * @param partition e.g. "p2p1_1"
+   * @param instance in host_port format
+   * @return true if the replica was lagging behind its MASTER in the latest sample
+   */
+  public boolean isLagging(String partition, String instance) {
+    return laggingReplicas.contains(partition + "@" + instance);
+  }
+
+  // return the resources whose lagging replicas changed
+  Set<String> sample() {
+    List<ExternalView> views = new ArrayList<>(externalViews.values());
+
+    // the DBs to sample on every host, so that each host gets a single call
+    Map<String, List<String>> instanceToDbNames = new HashMap<>();
+    for (ExternalView externalView : views) {
+      for (String partition : externalView.getPartitionSet()) {
+        Map<String, String> stateMap = getSampledStateMap(externalView, partition);
+        if (stateMap == null) {
+          continue;
+        }
+        String dbName = Utils.getDbName(partition);
+        for (Map.Entry<String, String> entry : stateMap.entrySet()) {
+          if (entry.getValue().equals("MASTER") || entry.getValue().equals("SLAVE")) {
+            List<String> dbNames = instanceToDbNames.get(entry.getKey());
+            if (dbNames == null) {
+              dbNames = new ArrayList<>();
+              instanceToDbNames.put(entry.getKey(), dbNames);
+            }
+            dbNames.add(dbName);
+          }
+        }
+      }
+    }
+    Map<String, Map<String, Long>> seqNums = getSequenceNumbers(instanceToDbNames);
+
+    Set<String> previous = laggingReplicas;
+    Set<String> lagging = new HashSet<>();
+    Set<String> changed = new HashSet<>();
+    for (ExternalView externalView : views) {
+      for (String partition : externalView.getPartitionSet()) {
+        Map<String, String> stateMap = getSampledStateMap(externalView, partition);
+        if (stateMap == null) {
+          continue;
+        }
+        String dbName = Utils.getDbName(partition);
+        Long masterSeqNum = null;
+        for (Map.Entry<String, String> entry : stateMap.entrySet()) {
+          if (entry.getValue().equals("MASTER")) {
+            masterSeqNum = getSeqNum(seqNums, entry.getKey(), dbName);
+          }
+        }
+
+        for (Map.Entry<String, String> entry : stateMap.entrySet()) {
+          if (!entry.getValue().equals("SLAVE")) {
+            continue;
+          }
+          String replica = partition + "@" + entry.getKey();
+          boolean wasLagging = previous.contains(replica);
+          Long seqNum = getSeqNum(seqNums, entry.getKey(), dbName);
+          boolean isLagging = wasLagging;
+          if (masterSeqNum != null && seqNum != null) {
+            long lag = masterSeqNum - seqNum;
+            isLagging = wasLagging ? lag > maxLag / 2 : lag > maxLag;
+          }
+          if (isLagging) {
+            lagging.add(replica);
+          }
+          if (isLagging != wasLagging) {
+            LOG.error(replica + (isLagging ? " is lagging" : " caught up") + " with seq number " +
+                seqNum + " vs " + masterSeqNum);
+            changed.add(externalView.getResourceName());
+          }
+        }
+      }
+    }
+
+    // replicas no longer tracked, e.g. dropped resources or SLAVEs turned into MASTER
+    for (String replica : previous) {
+      if (!lagging.contains(replica)) {
+        String partition = replica.substring(0, replica.indexOf('@'));
+        changed.add(partition.substring(0, partition.lastIndexOf('_')));
+      }
+    }
+    laggingReplicas = Collections.unmodifiableSet(lagging);
+    return changed;
+  }
+
+  /**
+   * Get the latest sequence numbers with one getSequenceNumbers call per host
+   * @param instanceToDbNames the DBs to sample on each instance in host_port format
+   * @return instance to DB name to sequence number, for the instances which answered in time
+   */
+  Map<String, Map<String, Long>> getSequenceNumbers(Map<String, List<String>> instanceToDbNames) {
+    Map<String, Future<GetSequenceNumbersResponse>> futures = new HashMap<>();
+    for (Map.Entry<String, List<String>> entry : instanceToDbNames.entrySet()) {
+      String host = entry.getKey().split("_")[0];
+      int port = Integer.parseInt(entry.getKey().split("_")[1]);
+      futures.put(entry.getKey(), adminClient.getSequenceNumbers(host, port, entry.getValue()));
+    }
+
+    long deadlineMs = System.currentTimeMillis() + sampleTimeoutMs;
+    Map<String, Map<String, Long>> seqNums = new HashMap<>();
+    for (Map.Entry<String, Future<GetSequenceNumbersResponse>> entry : futures.entrySet()) {
+      long remainingMs = Math.max(0, deadlineMs - System.currentTimeMillis());
+      try {
+        seqNums.put(entry.getKey(),
+            entry.getValue().get(remainingMs, TimeUnit.MILLISECONDS).getSeq_nums());
+      } catch (TimeoutException e) {
+        LOG.error("Timed out sampling sequence numbers from " + entry.getKey());
+        entry.getValue().cancel(false);
+      } catch (ExecutionException e) {
+        LOG.error("Failed to sample sequence numbers from " + entry.getKey(), e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+    }
+    return seqNums;
+  }
+
+  // the state map of the partition if it has both MASTER and SLAVE replicas, otherwise null
+  private static Map<String, String> getSampledStateMap(ExternalView externalView,
+                                                        String partition) {
+    Map<String, String> stateMap = externalView.getStateMap(partition);
+    if (stateMap == null || !stateMap.containsValue("MASTER") ||
+        !stateMap.containsValue("SLAVE")) {
+      return null;
+    }
+    return stateMap;
+  }
+
+  // null if the replica didn't answer in time
+  private static Long getSeqNum(Map<String, Map<String, Long>> seqNums, String instance,
+                                String dbName) {
+    Map<String, Long> instanceSeqNums = seqNums.get(instance);
+    return instanceSeqNums == null ? null : instanceSeqNums.get(dbName);
+  }
+}
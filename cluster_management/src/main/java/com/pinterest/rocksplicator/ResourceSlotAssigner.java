@@ -0,0 +1,83 @@
+/// Copyright 2017 Pinterest Inc.
+///
+/// Licensed under the Apache License, Version 2.0 (the "License");
+/// you may not use this file except in compliance with the License.
+/// You may obtain a copy of the License at
+///
+/// http://www.apache.org/licenses/LICENSE-2.0
+
+/// Unless required by applicable law or agreed to in writing, software
+/// distributed under the License is distributed on an "AS IS" BASIS,
+/// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+/// See the License for the specific language governing permissions and
+/// limitations under the License.
+
+package com.pinterest.rocksplicator;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assign the resources of a cluster to one of numSlots config generator slots, so that the shard
+ * map of a very large cluster can be generated and published by several leaders, each covering
+ * the resources of its own slot.
+ *
+ * Resources are placed on a consistent hash ring with VIRTUAL_NODES points per slot, so changing
+ * the number of slots only moves about 1/numSlots of the resources to a different slot. The
+ * assignment only depends on the resource name and numSlots, so all leaders agree on it without
+ * any coordination.
+ */
+public class ResourceSlotAssigner {
+  private static final int VIRTUAL_NODES = 128;
+
+  private final int numSlots;
+  private final TreeMap<Long, Integer> ring;
+
+  public ResourceSlotAssigner(int numSlots) {
+    if (numSlots <= 0) {
+      throw new IllegalArgumentException("Invalid number of slots " + numSlots);
+    }
+    this.numSlots = numSlots;
+    this.ring = new TreeMap<>();
+    for (int slot = 0; slot < numSlots; ++slot) {
+      for (int i = 0; i < VIRTUAL_NODES; ++i) {
+        ring.put(hash("slot_" + slot + "#" + i), slot);
+      }
+    }
+  }
+
+  public int getNumSlots() {
+    return numSlots;
+  }
+
+  /**
+   * Get the slot a resource belongs to
+   * @param resource
+   * @return the slot in [0, numSlots)
+   */
+  public int getSlot(String resource) {
+    if (numSlots == 1) {
+      return 0;
+    }
+    Map.Entry<Long, Integer> entry = ring.ceilingEntry(hash(resource));
+    if (entry == null) {
+      // wrap around the ring
+      entry = ring.firstEntry();
+    }
+    return entry.getValue();
+  }
+
+  // first 64 bits of the MD5 of the key
+  private static long hash(String key) {
+    try {
+      byte[] hash = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+      return ByteBuffer.wrap(hash).getLong();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
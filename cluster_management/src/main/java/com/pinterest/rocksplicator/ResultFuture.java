@@ -0,0 +1,40 @@
+/// Copyright 2017 Pinterest Inc.
+///
+/// Licensed under the Apache License, Version 2.0 (the "License");
+/// you may not use this file except in compliance with the License.
+/// You may obtain a copy of the License at
+///
+/// http://www.apache.org/licenses/LICENSE-2.0
+
+/// Unless required by applicable law or agreed to in writing, software
+/// distributed under the License is distributed on an "AS IS" BASIS,
+/// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+/// See the License for the specific language governing permissions and
+/// limitations under the License.
+
+package com.pinterest.rocksplicator;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A future completed explicitly by callbacks or batch executions. It is never run as a task.
+ */
+final class ResultFuture<T> extends FutureTask<T> {
+  ResultFuture() {
+    super(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        throw new IllegalStateException("ResultFuture is completed by callbacks only");
+      }
+    });
+  }
+
+  void complete(T result) {
+    set(result);
+  }
+
+  void fail(Throwable t) {
+    setException(t);
+  }
+}
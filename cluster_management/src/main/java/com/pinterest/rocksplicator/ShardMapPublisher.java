@@ -0,0 +1,111 @@
+/// Copyright 2017 Pinterest Inc.
+///
+/// Licensed under the Apache License, Version 2.0 (the "License");
+/// you may not use this file except in compliance with the License.
+/// You may obtain a copy of the License at
+///
+/// http://www.apache.org/licenses/LICENSE-2.0
+
+/// Unless required by applicable law or agreed to in writing, software
+/// distributed under the License is distributed on an "AS IS" BASIS,
+/// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+/// See the License for the specific language governing permissions and
+/// limitations under the License.
+
+package com.pinterest.rocksplicator;
+
+/**
+ * Destination of the shard maps generated by {@link ConfigGenerator}. Publish calls come from a
+ * single publisher thread, and a failed publish is retried later with a newer or the same
+ * generation.
+ */
+public interface ShardMapPublisher {
+
+  /**
+   * Publish a new generation of the shard map
+   * @param update
+   * @return true if the shard map is published
+   */
+  boolean publish(Update update);
+
+  /**
+   * A generation of the shard map. The full shard map is always set; a delta against
+   * baseGeneration is set as well if the generator is configured to produce deltas, and
+   * publishers are free to ignore it. If numSlots is greater than 1, the shard map only covers
+   * the resources assigned to slot, see {@link ResourceSlotAssigner}. Each slot must be published
+   * to its own destination, and the full shard map is the union of the latest shard maps of all
+   * slots.
+   *
+   * Generations of a publisher strictly increase, and a failed publish is retried under the same
+   * generation unless a newer shard map replaces it. The delta given to a publisher is always
+   * against baseGeneration, the last generation that publisher accepted, so it is only
+   * applicable on top of that generation; otherwise the full shard map must be used.
+   *
+   * The delta is not a JSON patch. With {@link #ENCODING_JSON}, it is an object holding the
+   * complete config of every added or changed resource, and the names of removed resources:
+   * <pre>
+   *   {"updated": {"resource1": {...}, "resource2": {...}}, "removed": ["resource3"]}
+   * </pre>
+   * where each resource config has the same shape as in the full shard map. With
+   * {@link #ENCODING_THRIFT_COMPACT_BASE64}, it is a ShardMap holding the added or changed
+   * resources, with the names of removed resources in removed_resources.
+   */
+  final class Update {
+    public static final String ENCODING_JSON = "json";
+    public static final String ENCODING_THRIFT_COMPACT_BASE64 = "thrift_compact_base64";
+
+    private final long generation;
+    private final String encoding;
+    private final String content;
+    private final String delta;
+    private final long baseGeneration;
+    private final int slot;
+    private final int numSlots;
+
+    public Update(long generation, String encoding, String content, String delta,
+                  long baseGeneration) {
+      this(generation, encoding, content, delta, baseGeneration, 0, 1);
+    }
+
+    public Update(long generation, String encoding, String content, String delta,
+                  long baseGeneration, int slot, int numSlots) {
+      this.generation = generation;
+      this.encoding = encoding;
+      this.content = content;
+      this.delta = delta;
+      this.baseGeneration = baseGeneration;
+      this.slot = slot;
+      this.numSlots = numSlots;
+    }
+
+    public long getGeneration() {
+      return generation;
+    }
+
+    public String getEncoding() {
+      return encoding;
+    }
+
+    public String getContent() {
+      return content;
+    }
+
+    // null if this update carries no delta
+    public String getDelta() {
+      return delta;
+    }
+
+    // only meaningful if this update carries a delta
+    public long getBaseGeneration() {
+      return baseGeneration;
+    }
+
+    public int getSlot() {
+      return slot;
+    }
+
+    public int getNumSlots() {
+      return numSlots;
+    }
+  }
+}
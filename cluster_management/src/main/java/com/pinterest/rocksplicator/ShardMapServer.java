@@ -0,0 +1,285 @@
+/// Copyright 2017 Pinterest Inc.
+///
+/// Licensed under the Apache License, Version 2.0 (the "License");
+/// you may not use this file except in compliance with the License.
+/// You may obtain a copy of the License at
+///
+/// http://www.apache.org/licenses/LICENSE-2.0
+
+/// Unless required by applicable law or agreed to in writing, software
+/// distributed under the License is distributed on an "AS IS" BASIS,
+/// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+/// See the License for the specific language governing permissions and
+/// limitations under the License.
+
+package com.pinterest.rocksplicator;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serve the latest shard map of each cluster over HTTP at /shard_map/{cluster}, so that clients
+ * can fetch it from the spectator directly instead of polling a central config store.
+ *
+ * Responses carry the generation as the ETag and in the X-Shard-Map-Generation header; a
+ * request with a matching If-None-Match gets a 304. A request with ?since=generation is held
+ * until a newer generation is published, or answered with a 304 after timeout_ms (default 30
+ * seconds). Held requests don't hold a thread, so a few threads serve thousands of pollers.
+ * Bodies are the full shard map, JSON or compact thrift, gzipped if the client accepts it.
+ *
+ * A shard map is only served once it is added, i.e., by the leader of the cluster, so other
+ * spectators answer 404 and clients should try the next spectator.
+ */
+public class ShardMapServer {
+  private static final Logger LOG = LoggerFactory.getLogger(ShardMapServer.class);
+  private static final String PATH = "/shard_map/";
+  private static final long DEFAULT_POLL_TIMEOUT_MS = 30 * 1000;
+  private static final long MAX_POLL_TIMEOUT_MS = 5 * 60 * 1000;
+  private static final int NUM_THREADS = 4;
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final ScheduledExecutorService timer;
+
+  public ShardMapServer(int port) throws IOException {
+    ThreadFactory threadFactory = new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ShardMapServer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    this.executor = Executors.newFixedThreadPool(NUM_THREADS, threadFactory);
+    this.timer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    this.server = HttpServer.create(new InetSocketAddress(port), 0);
+    this.server.setExecutor(executor);
+    this.server.start();
+  }
+
+  /**
+   * Start serving the shard map of a cluster at /shard_map/{cluster}, call it only after
+   * becoming the leader of the cluster
+   * @param cluster the cluster name, or {cluster}/{slot} for a shard map split into slots
+   * @return the publisher to give the shard maps of the cluster to
+   */
+  public ShardMapPublisher addShardMap(String cluster) {
+    final ShardMapEndpoint endpoint = new ShardMapEndpoint();
+    final String path = PATH + cluster;
+    server.createContext(path, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        // contexts match by prefix, don't serve /shard_map/foobar as /shard_map/foo
+        if (!path.equals(exchange.getRequestURI().getPath())) {
+          sendStatus(exchange, 404);
+          return;
+        }
+        endpoint.handleRequest(exchange);
+      }
+    });
+    return endpoint;
+  }
+
+  // the bound port, e.g., if created with port 0
+  int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  public void stop() {
+    server.stop(0);
+    timer.shutdownNow();
+    executor.shutdownNow();
+  }
+
+  // the shard map of a single cluster
+  private final class ShardMapEndpoint implements ShardMapPublisher {
+    private final Object lock = new Object();
+    // guarded by lock
+    private Snapshot current = null;
+    private final Set<Poller> pollers = new LinkedHashSet<>();
+
+    @Override
+    public boolean publish(Update update) {
+      Snapshot snapshot;
+      try {
+        snapshot = new Snapshot(update);
+      } catch (IOException e) {
+        LOG.error("Failed to compress shard map of generation " + update.getGeneration(), e);
+        return false;
+      }
+
+      final List<Poller> notified;
+      synchronized (lock) {
+        current = snapshot;
+        notified = new ArrayList<>(pollers);
+        pollers.clear();
+      }
+
+      for (final Poller poller : notified) {
+        poller.timeout.cancel(false);
+        final Snapshot latest = snapshot;
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            sendSnapshot(poller.exchange, latest, poller.gzip);
+          }
+        });
+      }
+      return true;
+    }
+
+    private void handleRequest(HttpExchange exchange) {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        sendStatus(exchange, 405);
+        return;
+      }
+
+      long since = -1;
+      long timeoutMs = DEFAULT_POLL_TIMEOUT_MS;
+      try {
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null) {
+          for (String param : query.split("&")) {
+            if (param.startsWith("since=")) {
+              since = Long.parseLong(param.substring("since=".length()));
+            } else if (param.startsWith("timeout_ms=")) {
+              timeoutMs = Math.min(MAX_POLL_TIMEOUT_MS,
+                  Long.parseLong(param.substring("timeout_ms=".length())));
+            }
+          }
+        }
+      } catch (NumberFormatException e) {
+        sendStatus(exchange, 400);
+        return;
+      }
+
+      String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+      boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+      String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+
+      Snapshot snapshot;
+      synchronized (lock) {
+        snapshot = current;
+        if (since >= 0 && (snapshot == null || snapshot.generation <= since)) {
+          // hold the request until a newer generation is published
+          final Poller poller = new Poller(exchange, gzip);
+          pollers.add(poller);
+          poller.timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+              synchronized (lock) {
+                if (!pollers.remove(poller)) {
+                  // already answered by publish()
+                  return;
+                }
+              }
+              sendStatus(poller.exchange, 304);
+            }
+          }, timeoutMs, TimeUnit.MILLISECONDS);
+          return;
+        }
+      }
+
+      if (snapshot == null) {
+        sendStatus(exchange, 503);
+      } else if (snapshot.etag.equals(ifNoneMatch)) {
+        sendStatus(exchange, 304);
+      } else {
+        sendSnapshot(exchange, snapshot, gzip);
+      }
+    }
+  }
+
+  private static void sendSnapshot(HttpExchange exchange, Snapshot snapshot, boolean gzip) {
+    try {
+      Headers headers = exchange.getResponseHeaders();
+      headers.set("ETag", snapshot.etag);
+      headers.set("X-Shard-Map-Generation", String.valueOf(snapshot.generation));
+      headers.set("Content-Type", snapshot.contentType);
+      byte[] body = snapshot.body;
+      if (gzip) {
+        headers.set("Content-Encoding", "gzip");
+        body = snapshot.gzippedBody;
+      }
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream output = exchange.getResponseBody()) {
+        output.write(body);
+      }
+    } catch (IOException e) {
+      LOG.error("Failed to send shard map to " + exchange.getRemoteAddress(), e);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static void sendStatus(HttpExchange exchange, int code) {
+    try {
+      exchange.sendResponseHeaders(code, -1);
+    } catch (IOException e) {
+      LOG.error("Failed to respond to " + exchange.getRemoteAddress(), e);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static final class Poller {
+    private final HttpExchange exchange;
+    private final boolean gzip;
+    private ScheduledFuture<?> timeout;
+
+    private Poller(HttpExchange exchange, boolean gzip) {
+      this.exchange = exchange;
+      this.gzip = gzip;
+    }
+  }
+
+  // a published generation, encoded once and shared by all responses
+  private static final class Snapshot {
+    private final long generation;
+    private final String etag;
+    private final String contentType;
+    private final byte[] body;
+    private final byte[] gzippedBody;
+
+    private Snapshot(ShardMapPublisher.Update update) throws IOException {
+      this.generation = update.getGeneration();
+      this.etag = "\"" + update.getGeneration() + "\"";
+      if (ShardMapPublisher.Update.ENCODING_THRIFT_COMPACT_BASE64.equals(
+          update.getEncoding())) {
+        this.contentType = "application/x-thrift";
+        this.body = Base64.decodeBase64(update.getContent());
+      } else {
+        this.contentType = "application/json";
+        this.body = update.getContent().getBytes(StandardCharsets.UTF_8);
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4);
+      try (GZIPOutputStream gzipStream = new GZIPOutputStream(bytes)) {
+        gzipStream.write(body);
+      }
+      this.gzippedBody = bytes.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,264 @@
+/// Copyright 2017 Pinterest Inc.
+///
+/// Licensed under the Apache License, Version 2.0 (the "License");
+/// you may not use this file except in compliance with the License.
+/// You may obtain a copy of the License at
+///
+/// http://www.apache.org/licenses/LICENSE-2.0
+
+/// Unless required by applicable law or agreed to in writing, software
+/// distributed under the License is distributed on an "AS IS" BASIS,
+/// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+/// See the License for the specific language governing permissions and
+/// limitations under the License.
+
+package com.pinterest.rocksplicator;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A catalog of recent DB backups in remote storage, kept in ZK per cluster and DB.
+ *
+ * When several replicas of a partition are rebuilt at the same time, the first one claims a
+ * pending entry here while holding the catalog mutex of the DB, releases the mutex, backs up the
+ * upstream and then marks the entry complete. The others find the pending entry, wait for it to
+ * complete, and then restore from the recorded backup instead of uploading another full copy of
+ * the DB from the same upstream. An entry whose backup failed is removed, and one whose owner
+ * died goes stale once it is older than the max age readers accept.
+ *
+ * Entries are stored as a JSON list in /rocksplicator/{cluster}/snapshots/{dbName}, the mutex
+ * lives under /rocksplicator/{cluster}/snapshots/{dbName}_lock.
+ */
+public class SnapshotCatalog {
+  private static final Logger LOG = LoggerFactory.getLogger(SnapshotCatalog.class);
+  private static final Type SNAPSHOT_LIST_TYPE = new TypeToken<List<Snapshot>>() {}.getType();
+  // entries older than this are pruned when a new snapshot is added
+  private static final long MAX_RETENTION_MS = 24 * 3600 * 1000L;
+  private static final int MAX_UPDATE_RETRIES = 5;
+
+  private final CuratorFramework zkClient;
+  private final String cluster;
+  private final Gson gson;
+
+  public SnapshotCatalog(CuratorFramework zkClient, String cluster) {
+    this.zkClient = zkClient;
+    this.cluster = cluster;
+    this.gson = new Gson();
+  }
+
+  /**
+   * A backup of a DB in HDFS or S3
+   */
+  public static class Snapshot {
+    // "hdfs" or "s3"
+    public String storage;
+    // empty for hdfs
+    public String bucket;
+    public String path;
+    // host_port of the replica which was backed up
+    public String source;
+    // seq # of the source replica right before the backup started
+    public long seqNum;
+    public long createdMs;
+    // true while the backup is in progress
+    public boolean pending;
+
+    public Snapshot(String storage, String bucket, String path, String source, long seqNum,
+                    long createdMs) {
+      this.storage = storage;
+      this.bucket = bucket;
+      this.path = path;
+      this.source = source;
+      this.seqNum = seqNum;
+      this.createdMs = createdMs;
+      this.pending = false;
+    }
+  }
+
+  /**
+   * Get the mutex which serializes backups of a DB across the cluster
+   * @param dbName
+   * @return the mutex
+   */
+  public InterProcessMutex getMutex(String dbName) {
+    return new InterProcessMutex(zkClient, getPath(dbName) + "_lock");
+  }
+
+  /**
+   * Find the newest snapshot of the DB in the storage, which is no older than maxAgeMs and taken
+   * at or after minSeqNum. A complete snapshot is preferred over a pending one.
+   * @param dbName
+   * @param storage
+   * @param bucket
+   * @param maxAgeMs
+   * @param minSeqNum
+   * @return the snapshot, or null if none is fresh enough
+   * @throws Exception
+   */
+  public Snapshot findFreshSnapshot(String dbName, String storage, String bucket, long maxAgeMs,
+                                    long minSeqNum)
+      throws Exception {
+    long createdAfterMs = System.currentTimeMillis() - maxAgeMs;
+    Snapshot freshest = null;
+    for (Snapshot snapshot : read(dbName, null)) {
+      if (!storage.equals(snapshot.storage) || !bucket.equals(snapshot.bucket) ||
+          snapshot.createdMs < createdAfterMs || snapshot.seqNum < minSeqNum) {
+        continue;
+      }
+
+      if (freshest == null || (freshest.pending && !snapshot.pending) ||
+          (freshest.pending == snapshot.pending && freshest.createdMs < snapshot.createdMs)) {
+        freshest = snapshot;
+      }
+    }
+    return freshest;
+  }
+
+  /**
+   * Find the snapshot of the DB at path
+   * @param dbName
+   * @param path
+   * @return the snapshot, or null if it has been removed
+   * @throws Exception
+   */
+  public Snapshot getSnapshot(String dbName, String path) throws Exception {
+    for (Snapshot snapshot : read(dbName, null)) {
+      if (path.equals(snapshot.path)) {
+        return snapshot;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Record a new snapshot of the DB, and prune entries older than a day
+   * @param dbName
+   * @param snapshot
+   * @throws Exception
+   */
+  public void addSnapshot(String dbName, final Snapshot snapshot) throws Exception {
+    update(dbName, new Mutation() {
+      @Override
+      public void apply(List<Snapshot> snapshots) {
+        snapshots.add(snapshot);
+      }
+    });
+  }
+
+  /**
+   * Mark the pending snapshot of the DB at path as complete
+   * @param dbName
+   * @param path
+   * @throws Exception
+   */
+  public void completeSnapshot(String dbName, final String path) throws Exception {
+    update(dbName, new Mutation() {
+      @Override
+      public void apply(List<Snapshot> snapshots) {
+        for (Snapshot snapshot : snapshots) {
+          if (path.equals(snapshot.path)) {
+            snapshot.pending = false;
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Remove the snapshot of the DB at path, e.g., after its backup failed
+   * @param dbName
+   * @param path
+   * @throws Exception
+   */
+  public void removeSnapshot(String dbName, final String path) throws Exception {
+    update(dbName, new Mutation() {
+      @Override
+      public void apply(List<Snapshot> snapshots) {
+        Iterator<Snapshot> iter = snapshots.iterator();
+        while (iter.hasNext()) {
+          if (path.equals(iter.next().path)) {
+            iter.remove();
+          }
+        }
+      }
+    });
+  }
+
+  private interface Mutation {
+    void apply(List<Snapshot> snapshots);
+  }
+
+  // apply the mutation to the unexpired entries with optimistic concurrency control
+  private void update(String dbName, Mutation mutation) throws Exception {
+    String path = getPath(dbName);
+    for (int i = 0; i < MAX_UPDATE_RETRIES; ++i) {
+      Stat stat = new Stat();
+      List<Snapshot> snapshots = read(dbName, stat);
+      long createdAfterMs = System.currentTimeMillis() - MAX_RETENTION_MS;
+      List<Snapshot> updated = new ArrayList<>();
+      for (Snapshot existing : snapshots) {
+        if (existing.createdMs >= createdAfterMs) {
+          updated.add(existing);
+        }
+      }
+      mutation.apply(updated);
+
+      byte[] data = gson.toJson(updated, SNAPSHOT_LIST_TYPE).getBytes(StandardCharsets.UTF_8);
+      try {
+        if (stat.getVersion() < 0) {
+          zkClient.create().creatingParentsIfNeeded().forPath(path, data);
+        } else {
+          zkClient.setData().withVersion(stat.getVersion()).forPath(path, data);
+        }
+        return;
+      } catch (KeeperException.BadVersionException | KeeperException.NodeExistsException e) {
+        // raced with another writer, re-read and retry
+        LOG.error("Concurrent update to " + path + ", retrying");
+      }
+    }
+    throw new RuntimeException("Failed to update snapshots at " + path);
+  }
+
+  // stat gets version -1 if the node doesn't exist yet
+  private List<Snapshot> read(String dbName, Stat stat) throws Exception {
+    String path = getPath(dbName);
+    byte[] data;
+    try {
+      data = stat == null ?
+          zkClient.getData().forPath(path) : zkClient.getData().storingStatIn(stat).forPath(path);
+    } catch (KeeperException.NoNodeException e) {
+      if (stat != null) {
+        stat.setVersion(-1);
+      }
+      return new ArrayList<>();
+    }
+
+    try {
+      List<Snapshot> snapshots =
+          gson.fromJson(new String(data, StandardCharsets.UTF_8), SNAPSHOT_LIST_TYPE);
+      return snapshots == null ? new ArrayList<Snapshot>() : snapshots;
+    } catch (JsonParseException e) {
+      LOG.error("Ignore corrupted snapshot catalog at " + path, e);
+      return new ArrayList<>();
+    }
+  }
+
+  private String getPath(String dbName) {
+    return "/rocksplicator/" + cluster + "/snapshots/" + dbName;
+  }
+}
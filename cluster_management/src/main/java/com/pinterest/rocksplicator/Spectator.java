@@ -18,8 +18,12 @@
 
 package com.pinterest.rocksplicator;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.GnuParser;
@@ -41,6 +45,7 @@ import org.apache.helix.manager.zk.ZKHelixAdmin;
 import org.apache.helix.model.HelixConfigScope;
 import org.apache.helix.model.Message;
 import org.apache.helix.model.builder.HelixConfigScopeBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Level;
@@ -56,6 +61,20 @@ public class Spectator {
   private static final String hostAddress = "host";
   private static final String hostPort = "port";
   private static final String configPostUrl = "configPostUrl";
+  private static final String usePrefetchedViews = "usePrefetchedViews";
+  private static final String configDebounceMs = "configDebounceMs";
+  private static final String gzipConfigPosts = "gzipConfigPosts";
+  private static final String configSnapshotInterval = "configSnapshotInterval";
+  private static final String binaryShardMap = "binaryShardMap";
+  private static final String shardMapPath = "shardMapPath";
+  private static final String shardMapMmap = "shardMapMmap";
+  private static final String shardMapServerPort = "shardMapServerPort";
+  private static final String configGeneratorSlots = "configGeneratorSlots";
+  private static final String maxReplicaLag = "maxReplicaLag";
+  private static final String replicaLagSampleMs = "replicaLagSampleMs";
+  private static final String CLUSTER_PLACEHOLDER = "{cluster}";
+  private static final String SLOT_PLACEHOLDER = "{slot}";
+  private static final int MAX_PUBLISHER_THREADS = 4;
 
   private HelixManager helixManager;
 
@@ -67,10 +86,11 @@ public class Spectator {
     zkServerOption.setArgName("ZookeeperServerAddresses(Required)");
 
     Option clusterOption =
-        OptionBuilder.withLongOpt(cluster).withDescription("Provide cluster name").create();
+        OptionBuilder.withLongOpt(cluster)
+            .withDescription("Provide comma separated cluster names").create();
     clusterOption.setArgs(1);
     clusterOption.setRequired(true);
-    clusterOption.setArgName("Cluster name (Required)");
+    clusterOption.setArgName("Cluster names (Required)");
 
     Option hostOption =
         OptionBuilder.withLongOpt(hostAddress).withDescription("Provide host name").create();
@@ -85,17 +105,111 @@ public class Spectator {
     portOption.setArgName("Host port (Required)");
 
     Option configPostUrlOption =
-        OptionBuilder.withLongOpt(configPostUrl).withDescription("URL to post config").create();
+        OptionBuilder.withLongOpt(configPostUrl)
+            .withDescription("URL to post config, with {cluster} and {slot} replaced by the " +
+                "cluster name and the config generator slot").create();
     configPostUrlOption.setArgs(1);
-    configPostUrlOption.setRequired(true);
-    configPostUrlOption.setArgName("URL to post config (Required)");
+    configPostUrlOption.setRequired(false);
+    configPostUrlOption.setArgName("URL to post config (Optional)");
+
+    Option usePrefetchedViewsOption =
+        OptionBuilder.withLongOpt(usePrefetchedViews)
+            .withDescription("Build the config from ExternalViews prefetched by Helix").create();
+    usePrefetchedViewsOption.setArgs(0);
+    usePrefetchedViewsOption.setRequired(false);
+    usePrefetchedViewsOption.setArgName("Use prefetched ExternalViews (Optional)");
+
+    Option configDebounceMsOption =
+        OptionBuilder.withLongOpt(configDebounceMs)
+            .withDescription("Coalesce changes within this window before posting config").create();
+    configDebounceMsOption.setArgs(1);
+    configDebounceMsOption.setRequired(false);
+    configDebounceMsOption.setArgName("Config debounce window in ms (Optional)");
+
+    Option gzipConfigPostsOption =
+        OptionBuilder.withLongOpt(gzipConfigPosts)
+            .withDescription("Gzip the body of config posts").create();
+    gzipConfigPostsOption.setArgs(0);
+    gzipConfigPostsOption.setRequired(false);
+    gzipConfigPostsOption.setArgName("Gzip config posts (Optional)");
+
+    Option configSnapshotIntervalOption =
+        OptionBuilder.withLongOpt(configSnapshotInterval)
+            .withDescription("Post deltas with a full config every N generations").create();
+    configSnapshotIntervalOption.setArgs(1);
+    configSnapshotIntervalOption.setRequired(false);
+    configSnapshotIntervalOption.setArgName("Full config interval in generations (Optional)");
+
+    Option binaryShardMapOption =
+        OptionBuilder.withLongOpt(binaryShardMap)
+            .withDescription("Post the shard map as compact thrift instead of JSON").create();
+    binaryShardMapOption.setArgs(0);
+    binaryShardMapOption.setRequired(false);
+    binaryShardMapOption.setArgName("Binary shard map (Optional)");
+
+    Option shardMapPathOption =
+        OptionBuilder.withLongOpt(shardMapPath)
+            .withDescription("Local file to write the shard map to, with {cluster} and {slot} " +
+                "replaced by the cluster name and the config generator slot").create();
+    shardMapPathOption.setArgs(1);
+    shardMapPathOption.setRequired(false);
+    shardMapPathOption.setArgName("Shard map file (Optional)");
+
+    Option shardMapMmapOption =
+        OptionBuilder.withLongOpt(shardMapMmap)
+            .withDescription("Update the shard map file in place through mmap").create();
+    shardMapMmapOption.setArgs(0);
+    shardMapMmapOption.setRequired(false);
+    shardMapMmapOption.setArgName("Memory-mapped shard map file (Optional)");
+
+    Option shardMapServerPortOption =
+        OptionBuilder.withLongOpt(shardMapServerPort)
+            .withDescription("Port to serve the shard maps on at /shard_map/{cluster}, with ETag " +
+                "and long-poll").create();
+    shardMapServerPortOption.setArgs(1);
+    shardMapServerPortOption.setRequired(false);
+    shardMapServerPortOption.setArgName("Shard map server port (Optional)");
+
+    Option configGeneratorSlotsOption =
+        OptionBuilder.withLongOpt(configGeneratorSlots)
+            .withDescription("Split the shard map of each cluster across this many leaders")
+            .create();
+    configGeneratorSlotsOption.setArgs(1);
+    configGeneratorSlotsOption.setRequired(false);
+    configGeneratorSlotsOption.setArgName("Number of config generator slots (Optional)");
+
+    Option maxReplicaLagOption =
+        OptionBuilder.withLongOpt(maxReplicaLag)
+            .withDescription("Exclude SLAVEs more than this many updates behind their MASTER")
+            .create();
+    maxReplicaLagOption.setArgs(1);
+    maxReplicaLagOption.setRequired(false);
+    maxReplicaLagOption.setArgName("Max replica lag in sequence numbers (Optional)");
+
+    Option replicaLagSampleMsOption =
+        OptionBuilder.withLongOpt(replicaLagSampleMs)
+            .withDescription("Interval between two samples of replica lags").create();
+    replicaLagSampleMsOption.setArgs(1);
+    replicaLagSampleMsOption.setRequired(false);
+    replicaLagSampleMsOption.setArgName("Replica lag sample interval in ms (Optional)");
 
     Options options = new Options();
     options.addOption(zkServerOption)
         .addOption(clusterOption)
         .addOption(hostOption)
         .addOption(portOption)
-        .addOption(configPostUrlOption);
+        .addOption(configPostUrlOption)
+        .addOption(usePrefetchedViewsOption)
+        .addOption(configDebounceMsOption)
+        .addOption(gzipConfigPostsOption)
+        .addOption(configSnapshotIntervalOption)
+        .addOption(binaryShardMapOption)
+        .addOption(shardMapPathOption)
+        .addOption(shardMapMmapOption)
+        .addOption(shardMapServerPortOption)
+        .addOption(configGeneratorSlotsOption)
+        .addOption(maxReplicaLagOption)
+        .addOption(replicaLagSampleMsOption);
     return options;
   }
 
@@ -106,7 +220,7 @@ public class Spectator {
   }
 
   /**
-   * Start a Helix spectator.
+   * Start a Helix spectator for each of the given clusters.
    * @param args command line parameters
    */
   public static void main(String[] args) throws Exception {
@@ -116,25 +230,144 @@ public class Spectator {
     ));
     CommandLine cmd = processCommandLineArgs(args);
     final String zkConnectString = cmd.getOptionValue(zkServer);
-    final String clusterName = cmd.getOptionValue(cluster);
+    final List<String> clusterNames = new ArrayList<>();
+    for (String clusterName : cmd.getOptionValue(cluster).split(",")) {
+      if (!clusterName.trim().isEmpty()) {
+        clusterNames.add(clusterName.trim());
+      }
+    }
     final String host = cmd.getOptionValue(hostAddress);
     final String port = cmd.getOptionValue(hostPort);
     final String postUrl = cmd.getOptionValue(configPostUrl);
+    final String filePath = cmd.getOptionValue(shardMapPath);
+    final boolean mmap = cmd.hasOption(shardMapMmap);
+    final boolean prefetch = cmd.hasOption(usePrefetchedViews);
+    final boolean gzip = cmd.hasOption(gzipConfigPosts);
+    final boolean binary = cmd.hasOption(binaryShardMap);
+    int snapshotInterval = 0;
+    if (cmd.hasOption(configSnapshotInterval)) {
+      snapshotInterval = Integer.parseInt(cmd.getOptionValue(configSnapshotInterval));
+    }
+    long debounceMs = 1000;
+    if (cmd.hasOption(configDebounceMs)) {
+      debounceMs = Long.parseLong(cmd.getOptionValue(configDebounceMs));
+    }
+    int numSlots = 1;
+    if (cmd.hasOption(configGeneratorSlots)) {
+      numSlots = Integer.parseInt(cmd.getOptionValue(configGeneratorSlots));
+    }
+    final long maxLag = cmd.hasOption(maxReplicaLag) ?
+        Long.parseLong(cmd.getOptionValue(maxReplicaLag)) : -1;
+    long sampleMs = 10000;
+    if (cmd.hasOption(replicaLagSampleMs)) {
+      sampleMs = Long.parseLong(cmd.getOptionValue(replicaLagSampleMs));
+    }
     final String instanceName = host + "_" + port;
 
-    LOG.error("Starting spectator with ZK:" + zkConnectString);
-    Spectator spectator= new Spectator(zkConnectString, clusterName, instanceName);
+    if (clusterNames.isEmpty()) {
+      throw new IllegalArgumentException("--" + cluster + " is empty");
+    }
+    if (postUrl == null && filePath == null && !cmd.hasOption(shardMapServerPort)) {
+      throw new IllegalArgumentException("At least one of --" + configPostUrl + ", --" +
+          shardMapPath + " and --" + shardMapServerPort + " is required");
+    }
+    if (clusterNames.size() > 1 &&
+        ((postUrl != null && !postUrl.contains(CLUSTER_PLACEHOLDER)) ||
+         (filePath != null && !filePath.contains(CLUSTER_PLACEHOLDER)))) {
+      throw new IllegalArgumentException("--" + configPostUrl + " and --" + shardMapPath +
+          " must contain " + CLUSTER_PLACEHOLDER + " when serving multiple clusters");
+    }
+    // each slot only publishes its own resources, so slots must not overwrite each other
+    if (numSlots > 1 &&
+        ((postUrl != null && !postUrl.contains(SLOT_PLACEHOLDER)) ||
+         (filePath != null && !filePath.contains(SLOT_PLACEHOLDER)))) {
+      throw new IllegalArgumentException("--" + configPostUrl + " and --" + shardMapPath +
+          " must contain " + SLOT_PLACEHOLDER + " when --" + configGeneratorSlots +
+          " is greater than 1");
+    }
 
-    CuratorFramework zkClient = CuratorFrameworkFactory.newClient(zkConnectString, new ExponentialBackoffRetry(1000, 3));
+    // resources shared by all clusters
+    final CuratorFramework zkClient = CuratorFrameworkFactory.newClient(
+        zkConnectString, new ExponentialBackoffRetry(1000, 3));
     zkClient.start();
-    InterProcessMutex mutex = new InterProcessMutex(zkClient, getClusterLockPath(clusterName));
-    try (Locker locker = new Locker(mutex)) {
-      spectator.startListener(postUrl);
-      Thread.currentThread().join();
-    } catch (RuntimeException e) {
-      LOG.error("RuntimeException thrown by cluster " + clusterName, e);
-    } catch (Exception e) {
-      LOG.error("Failed to release the mutex for cluster " + clusterName, e);
+    final CloseableHttpClient httpClient = postUrl == null ? null :
+        HttpShardMapPublisher.newHttpClient(Math.max(2, clusterNames.size()));
+    final ShardMapServer shardMapServer = !cmd.hasOption(shardMapServerPort) ? null :
+        new ShardMapServer(Integer.parseInt(cmd.getOptionValue(shardMapServerPort)));
+    final ScheduledExecutorService publisher = ConfigGenerator.newPublisherExecutor(
+        Math.min(clusterNames.size() * numSlots, MAX_PUBLISHER_THREADS));
+    final ForkJoinPool fragmentBuilders = ConfigGenerator.newFragmentBuilderPool();
+    final long finalDebounceMs = debounceMs;
+    final int finalSnapshotInterval = snapshotInterval;
+    final ResourceSlotAssigner slotAssigner = new ResourceSlotAssigner(numSlots);
+    final ScheduledExecutorService lagSampler = maxLag < 0 ? null :
+        ReplicaLagMonitor.newSamplerExecutor(
+            Math.min(clusterNames.size() * numSlots, MAX_PUBLISHER_THREADS));
+    final long finalSampleMs = sampleMs;
+    // the slots of a cluster share one HelixManager, connected by the first slot we lead
+    final Map<String, Spectator> spectators = new HashMap<>();
+
+    LOG.error("Starting spectator for " + clusterNames + " with ZK:" + zkConnectString);
+    List<Thread> threads = new ArrayList<>();
+    for (final String clusterName : clusterNames) {
+      // each slot has its own leader, so the slots of a large cluster can be spread across
+      // spectator hosts
+      for (int i = 0; i < numSlots; ++i) {
+        final int slot = i;
+        final String leaderName = numSlots == 1 ? clusterName : clusterName + "/" + slot;
+        Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            // the shard map is published to the config service, a local file and/or over HTTP
+            List<ShardMapPublisher> publishers = new ArrayList<>();
+            if (postUrl != null) {
+              publishers.add(new HttpShardMapPublisher(httpClient, postUrl
+                  .replace(CLUSTER_PLACEHOLDER, clusterName)
+                  .replace(SLOT_PLACEHOLDER, String.valueOf(slot)), gzip));
+            }
+            if (filePath != null) {
+              publishers.add(new FileShardMapPublisher(filePath
+                  .replace(CLUSTER_PLACEHOLDER, clusterName)
+                  .replace(SLOT_PLACEHOLDER, String.valueOf(slot)), mmap));
+            }
+
+            InterProcessMutex mutex = new InterProcessMutex(zkClient,
+                getClusterLockPath(clusterName, slot, slotAssigner.getNumSlots()));
+            try (Locker locker = new Locker(mutex)) {
+              // standby spectators answer 404, so that clients move on to the leader
+              if (shardMapServer != null) {
+                publishers.add(shardMapServer.addShardMap(leaderName));
+              }
+              // only connect to Helix once we lead the cluster, so that standby spectators
+              // don't hold a ZK session per cluster
+              Spectator spectator;
+              synchronized (spectators) {
+                spectator = spectators.get(clusterName);
+                if (spectator == null) {
+                  spectator = new Spectator(zkConnectString, clusterName, instanceName);
+                  spectators.put(clusterName, spectator);
+                }
+              }
+              ReplicaLagMonitor lagMonitor = lagSampler == null ? null : new ReplicaLagMonitor(
+                  Utils.getAsyncAdminClient(), lagSampler, maxLag, finalSampleMs);
+              spectator.startListener(publishers, prefetch, finalDebounceMs,
+                  finalSnapshotInterval, binary, publisher, fragmentBuilders, slotAssigner, slot,
+                  lagMonitor);
+              Thread.currentThread().join();
+            } catch (RuntimeException e) {
+              LOG.error("RuntimeException thrown by " + leaderName, e);
+            } catch (Exception e) {
+              LOG.error("Failed to release the mutex for " + leaderName, e);
+            }
+          }
+        }, "Spectator-" + leaderName);
+        thread.start();
+        threads.add(thread);
+      }
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
     }
   }
 
@@ -144,13 +377,29 @@ public class Spectator {
     Runtime.getRuntime().addShutdownHook(new HelixManagerShutdownHook(helixManager));
   }
 
-  private void startListener(String postUrl) throws Exception {
-    ConfigGenerator configGenerator = new ConfigGenerator(helixManager.getClusterName(), helixManager, postUrl);
+  private void startListener(List<ShardMapPublisher> publishers, boolean prefetch,
+                             long debounceMs, int snapshotInterval, boolean binary,
+                             ScheduledExecutorService publisher, ForkJoinPool fragmentBuilders,
+                             ResourceSlotAssigner slotAssigner, int slot,
+                             ReplicaLagMonitor lagMonitor)
+      throws Exception {
+    String clusterName = helixManager.getClusterName();
+    ConfigGenerator configGenerator = prefetch ?
+        new PrefetchingConfigGenerator(clusterName, helixManager, publishers, debounceMs,
+            snapshotInterval, binary, publisher, fragmentBuilders, slotAssigner, slot,
+            lagMonitor) :
+        new ConfigGenerator(clusterName, helixManager, publishers, debounceMs,
+            snapshotInterval, binary, publisher, fragmentBuilders, slotAssigner, slot,
+            lagMonitor);
+    configGenerator.start();
     helixManager.addExternalViewChangeListener(configGenerator);
     helixManager.addConfigChangeListener(configGenerator);
   }
 
-  private static String getClusterLockPath(String cluster) {
-    return "/rocksplicator/" + cluster + "/spectator/lock";
+  private static String getClusterLockPath(String cluster, int slot, int numSlots) {
+    if (numSlots == 1) {
+      return "/rocksplicator/" + cluster + "/spectator/lock";
+    }
+    return "/rocksplicator/" + cluster + "/spectator/slot_" + slot + "/lock";
   }
 }
@@ -0,0 +1,251 @@
+/// Copyright 2017 Pinterest Inc.
+///
+/// Licensed under the Apache License, Version 2.0 (the "License");
+/// you may not use this file except in compliance with the License.
+/// You may obtain a copy of the License at
+///
+/// http://www.apache.org/licenses/LICENSE-2.0
+
+/// Unless required by applicable law or agreed to in writing, software
+/// distributed under the License is distributed on an "AS IS" BASIS,
+/// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+/// See the License for the specific language governing permissions and
+/// limitations under the License.
+
+package com.pinterest.rocksplicator;
+
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Host wide scheduler for data transfers, i.e., backup, restore and SST loading, which move data
+ * into or out of this host.
+ *
+ * At most maxConcurrency transfers run at the same time. Waiting transfers are grouped by
+ * resource, and a free slot is handed to the resources in round robin order, so that a resource
+ * with hundreds of partitions to restore can't starve the others.
+ *
+ * When a transfer starts, it gets an even share of budgetMbs among the transfers running or
+ * waiting, capped by the part of budgetMbs not given to running transfers yet. So a lone transfer
+ * gets the whole budget, and the total bandwidth used by all running transfers never exceeds
+ * budgetMbs. A transfer keeps its rate limit until it finishes, and waiting transfers are held
+ * back while less than budgetMbs / maxConcurrency, or the requested limit if lower, is left.
+ * A non positive budgetMbs means no limit.
+ */
+public class TransferScheduler {
+  private static final Logger LOG = LoggerFactory.getLogger(TransferScheduler.class);
+
+  /**
+   * A data transfer which honours the rate limit it is given
+   */
+  public interface Transfer {
+    /**
+     * @param limitMbs rate limit in MB/s, a non positive value means no limit
+     * @throws TException
+     */
+    void run(int limitMbs) throws TException;
+  }
+
+  private int maxConcurrency;
+  private int budgetMbs;
+  // resource -> waiters of the resource, in arrival order
+  private final Map<String, Deque<Waiter>> waiters;
+  // resources with waiters, the head one gets the next free slot
+  private final Deque<String> resourceOrder;
+  private int numWaiting;
+  private int running;
+  // sum of the rate limits of running transfers
+  private int allocatedMbs;
+
+  public TransferScheduler(int maxConcurrency, int budgetMbs) {
+    checkMaxConcurrency(maxConcurrency);
+    this.maxConcurrency = maxConcurrency;
+    this.budgetMbs = budgetMbs;
+    this.waiters = new HashMap<>();
+    this.resourceOrder = new ArrayDeque<>();
+    this.numWaiting = 0;
+    this.running = 0;
+    this.allocatedMbs = 0;
+  }
+
+  /**
+   * Change the limits in place. Running transfers keep their rate limits, and waiting transfers
+   * are scheduled with the new limits.
+   * @param maxConcurrency max number of transfers running at the same time
+   * @param budgetMbs total rate limit in MB/s, a non positive value means no limit
+   */
+  public synchronized void setLimits(int maxConcurrency, int budgetMbs) {
+    checkMaxConcurrency(maxConcurrency);
+    this.maxConcurrency = maxConcurrency;
+    this.budgetMbs = budgetMbs;
+    dispatch();
+  }
+
+  /**
+   * Run the transfer once a slot is available, blocking the calling thread until it finishes.
+   * @param dbName the DB to transfer, used to group transfers by resource
+   * @param limitMbs rate limit requested by the caller, a non positive value means no limit
+   * @param transfer
+   * @throws TException
+   */
+  public void run(String dbName, int limitMbs, Transfer transfer) throws TException {
+    String resource = getResourceName(dbName);
+    long startMs = System.currentTimeMillis();
+    Waiter waiter = acquire(resource, limitMbs);
+    try {
+      LOG.error("Start transfer for " + dbName + " with limit " +
+          String.valueOf(waiter.grantedLimitMbs) + " MB/s after waiting " +
+          String.valueOf(System.currentTimeMillis() - startMs) + " ms");
+      transfer.run(waiter.grantedLimitMbs);
+    } finally {
+      release(waiter);
+    }
+  }
+
+  /**
+   * @param requestedLimitMbs rate limit requested by the caller
+   * @param transfers number of transfers running or waiting, including the one to start
+   * @return the rate limit of a starting transfer, before capping by the unallocated budget
+   */
+  synchronized int getLimitMbs(int requestedLimitMbs, int transfers) {
+    if (budgetMbs <= 0) {
+      return requestedLimitMbs;
+    }
+
+    int shareMbs = Math.max(1, budgetMbs / Math.min(maxConcurrency, transfers));
+    if (requestedLimitMbs <= 0) {
+      return shareMbs;
+    }
+    return Math.min(requestedLimitMbs, shareMbs);
+  }
+
+  synchronized int getNumWaiting() {
+    return numWaiting;
+  }
+
+  private synchronized Waiter acquire(String resource, int requestedLimitMbs)
+      throws TException {
+    Waiter waiter = new Waiter(requestedLimitMbs);
+    Deque<Waiter> resourceWaiters = waiters.get(resource);
+    if (resourceWaiters == null) {
+      resourceWaiters = new ArrayDeque<>();
+      waiters.put(resource, resourceWaiters);
+      resourceOrder.addLast(resource);
+    }
+    resourceWaiters.addLast(waiter);
+    ++numWaiting;
+    dispatch();
+
+    try {
+      while (!waiter.granted) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      if (waiter.granted) {
+        // got the slot anyway, give it back
+        release(waiter);
+      } else {
+        remove(resource, waiter);
+      }
+      Thread.currentThread().interrupt();
+      throw new TException("Interrupted while waiting for a transfer slot", e);
+    }
+    return waiter;
+  }
+
+  private synchronized void release(Waiter waiter) {
+    --running;
+    if (waiter.allocated) {
+      allocatedMbs -= waiter.grantedLimitMbs;
+    }
+    dispatch();
+  }
+
+  // hand free slots and bandwidth to the head waiters of resources in round robin order
+  private void dispatch() {
+    boolean granted = false;
+    while (running < maxConcurrency && !resourceOrder.isEmpty()) {
+      String resource = resourceOrder.peekFirst();
+      Deque<Waiter> resourceWaiters = waiters.get(resource);
+      Waiter waiter = resourceWaiters.peekFirst();
+
+      int limitMbs = getLimitMbs(waiter.requestedLimitMbs, running + numWaiting);
+      boolean allocated = budgetMbs > 0;
+      if (allocated) {
+        int unallocatedMbs = budgetMbs - allocatedMbs;
+        int minLimitMbs = Math.min(limitMbs, Math.max(1, budgetMbs / maxConcurrency));
+        if (running > 0 && unallocatedMbs < minLimitMbs) {
+          // wait for running transfers to give bandwidth back
+          break;
+        }
+        limitMbs = Math.max(1, Math.min(limitMbs, unallocatedMbs));
+        allocatedMbs += limitMbs;
+      }
+
+      resourceOrder.pollFirst();
+      resourceWaiters.pollFirst();
+      waiter.granted = true;
+      waiter.grantedLimitMbs = limitMbs;
+      waiter.allocated = allocated;
+      --numWaiting;
+      ++running;
+      granted = true;
+      if (resourceWaiters.isEmpty()) {
+        waiters.remove(resource);
+      } else {
+        resourceOrder.addLast(resource);
+      }
+    }
+
+    if (granted) {
+      notifyAll();
+    }
+  }
+
+  private void remove(String resource, Waiter waiter) {
+    Deque<Waiter> resourceWaiters = waiters.get(resource);
+    if (resourceWaiters == null || !resourceWaiters.remove(waiter)) {
+      return;
+    }
+    --numWaiting;
+    if (resourceWaiters.isEmpty()) {
+      waiters.remove(resource);
+      resourceOrder.remove(resource);
+    }
+  }
+
+  // strip the partition id, i.e., the trailing digits, see Utils.getDbName(). Resource names
+  // ending with digits lose them as well, which only affects fairness between those resources.
+  // "seg00012" -> "seg", "p2p100001" -> "p2p"
+  static String getResourceName(String dbName) {
+    int end = dbName.length();
+    while (end > 0 && Character.isDigit(dbName.charAt(end - 1))) {
+      --end;
+    }
+    return end == 0 ? dbName : dbName.substring(0, end);
+  }
+
+  private static void checkMaxConcurrency(int maxConcurrency) {
+    if (maxConcurrency <= 0) {
+      throw new IllegalArgumentException("maxConcurrency must be positive");
+    }
+  }
+
+  private static final class Waiter {
+    private final int requestedLimitMbs;
+    private boolean granted = false;
+    private int grantedLimitMbs = 0;
+    // whether grantedLimitMbs is counted in allocatedMbs
+    private boolean allocated = false;
+
+    private Waiter(int requestedLimitMbs) {
+      this.requestedLimitMbs = requestedLimitMbs;
+    }
+  }
+}
@@ -19,6 +19,7 @@
 package com.pinterest.rocksplicator;
 
 import com.pinterest.rocksdb_admin.thrift.AddDBRequest;
+import com.pinterest.rocksdb_admin.thrift.AddS3SstFilesToDBRequest;
 import com.pinterest.rocksdb_admin.thrift.Admin;
 import com.pinterest.rocksdb_admin.thrift.AdminErrorCode;
 import com.pinterest.rocksdb_admin.thrift.AdminException;
@@ -28,14 +29,14 @@ import com.pinterest.rocksdb_admin.thrift.ChangeDBRoleAndUpstreamRequest;
 import com.pinterest.rocksdb_admin.thrift.CheckDBRequest;
 import com.pinterest.rocksdb_admin.thrift.CheckDBResponse;
 import com.pinterest.rocksdb_admin.thrift.ClearDBRequest;
-import com.pinterest.rocksdb_admin.thrift.CloseDBRequest;
-import com.pinterest.rocksdb_admin.thrift.GetSequenceNumberRequest;
-import com.pinterest.rocksdb_admin.thrift.GetSequenceNumberResponse;
 import com.pinterest.rocksdb_admin.thrift.RestoreDBRequest;
+import com.pinterest.rocksdb_admin.thrift.RestoreDBFromPeerRequest;
 import com.pinterest.rocksdb_admin.thrift.RestoreDBFromS3Request;
 import com.pinterest.rocksdb_admin.thrift.CompactDBRequest;
+import com.pinterest.rocksdb_admin.thrift.WaitForSequenceNumberRequest;
 
 import org.apache.helix.model.Message;
+import org.apache.thrift.TApplicationException;
 import org.apache.thrift.TException;
 import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.transport.TSocket;
@@ -43,12 +44,62 @@ import org.apache.thrift.transport.TTransportException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 public class Utils {
 
   private static final Logger LOG = LoggerFactory.getLogger(Utils.class);
 
+  // Admin connections are shared by all state models of the participant. The per host limit is
+  // set well above the number of concurrent state transitions Helix runs, so borrowers normally
+  // never wait for a connection.
+  private static final int MAX_ADMIN_CONNECTIONS_PER_HOST = 64;
+  private static final int MAX_IDLE_ADMIN_CONNECTIONS_PER_HOST = 8;
+  private static final long ADMIN_CONNECTION_IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+  private static final long ADMIN_CONNECTION_VALIDATE_AFTER_IDLE_MS = TimeUnit.SECONDS.toMillis(30);
+  private static final long ADMIN_CONNECTION_BORROW_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(1);
+
+  private static final AdminClientPool ADMIN_CLIENT_POOL = new AdminClientPool(
+      MAX_ADMIN_CONNECTIONS_PER_HOST, MAX_IDLE_ADMIN_CONNECTIONS_PER_HOST,
+      ADMIN_CONNECTION_IDLE_TIMEOUT_MS, ADMIN_CONNECTION_VALIDATE_AFTER_IDLE_MS,
+      ADMIN_CONNECTION_BORROW_TIMEOUT_MS);
+
+  // Async admin calls are only used for short metadata RPCs, never for backup or restore.
+  private static final long ASYNC_ADMIN_CALL_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+  private static final int MAX_IDLE_ASYNC_ADMIN_CLIENTS_PER_HOST = 8;
+
+  private static volatile AsyncAdminClient asyncAdminClient = null;
+
+  // Per partition checkDB, closeDB and getSequenceNumber calls issued by concurrent state
+  // transitions are coalesced into one batch request per host.
+  private static final long ADMIN_BATCH_WINDOW_MS = 5;
+  private static final int MAX_ADMIN_BATCH_SIZE = 256;
+
+  private static final AdminRequestBatcher ADMIN_REQUEST_BATCHER =
+      new AdminRequestBatcher(ADMIN_BATCH_WINDOW_MS, MAX_ADMIN_BATCH_SIZE);
+
+  // Backup, restore and SST loading share these limits across the whole participant, see
+  // setTransferLimits()
+  static final int DEFAULT_MAX_CONCURRENT_TRANSFERS = 8;
+
+  private static final TransferScheduler TRANSFER_SCHEDULER =
+      new TransferScheduler(DEFAULT_MAX_CONCURRENT_TRANSFERS, 0);
+
+  // host name of this participant, backups of other hosts are not counted against its limits
+  private static volatile String localHost = null;
+
   /**
-   * Build a thrift client to local adminPort
+   * Build an unpooled thrift client to local adminPort. The caller owns the underlying transport,
+   * prefer {@link #borrowLocalAdminClient(int)} instead.
    * @param adminPort
    * @return a client object
    * @throws TTransportException
@@ -58,7 +109,8 @@ public class Utils {
   }
 
   /**
-   * Build a thrift client to host:adminPort
+   * Build an unpooled thrift client to host:adminPort. The caller owns the underlying transport,
+   * prefer {@link #borrowAdminClient(String, int)} instead.
    * @param host
    * @param adminPort
    * @return a client object
@@ -70,6 +122,92 @@ public class Utils {
     return new Admin.Client(new TBinaryProtocol(sock));
   }
 
+  /**
+   * Borrow a pooled thrift client to local adminPort. The lease must be closed after use.
+   * @param adminPort
+   * @return a lease on a pooled client
+   * @throws TTransportException
+   */
+  public static AdminClientPool.Lease borrowLocalAdminClient(int adminPort)
+      throws TTransportException {
+    return borrowAdminClient("localhost", adminPort);
+  }
+
+  /**
+   * Borrow a pooled thrift client to host:adminPort. The lease must be closed after use.
+   * @param host
+   * @param adminPort
+   * @return a lease on a pooled client
+   * @throws TTransportException
+   */
+  public static AdminClientPool.Lease borrowAdminClient(String host, int adminPort)
+      throws TTransportException {
+    return ADMIN_CLIENT_POOL.borrow(host, adminPort);
+  }
+
+  /**
+   * Get the non-blocking admin client shared by the whole process, creating it on first use.
+   * @return the shared async admin client
+   * @throws RuntimeException if the selector thread can't be started
+   */
+  public static AsyncAdminClient getAsyncAdminClient() throws RuntimeException {
+    AsyncAdminClient client = asyncAdminClient;
+    if (client != null) {
+      return client;
+    }
+
+    synchronized (Utils.class) {
+      if (asyncAdminClient == null) {
+        try {
+          asyncAdminClient = new AsyncAdminClient(
+              ASYNC_ADMIN_CALL_TIMEOUT_MS, MAX_IDLE_ASYNC_ADMIN_CLIENTS_PER_HOST);
+        } catch (IOException e) {
+          LOG.error("Failed to create async admin client", e);
+          throw new RuntimeException(e);
+        }
+      }
+      return asyncAdminClient;
+    }
+  }
+
+  /**
+   * Change the limits of backups, restores and SST loadings moving data into or out of this
+   * host. Running transfers keep their rate limits, and waiting ones get the new limits.
+   * @param maxConcurrency max number of transfers running at the same time
+   * @param budgetMbs total rate limit in MB/s, a non positive value means no limit
+   */
+  public static void setTransferLimits(int maxConcurrency, int budgetMbs) {
+    LOG.error("Set transfer limits: max concurrency " + String.valueOf(maxConcurrency) +
+        ", budget " + String.valueOf(budgetMbs) + " MB/s");
+    TRANSFER_SCHEDULER.setLimits(maxConcurrency, budgetMbs);
+  }
+
+  /**
+   * Set the host name of this participant, as passed to backupDB() and friends
+   * @param host
+   */
+  public static void setLocalHost(String host) {
+    localHost = host;
+  }
+
+  static boolean isLocalHost(String host) {
+    return "localhost".equals(host) || "127.0.0.1".equals(host) || host.equals(localHost);
+  }
+
+  private static TransferScheduler getTransferScheduler() {
+    return TRANSFER_SCHEDULER;
+  }
+
+  // transfers on other hosts don't use the bandwidth of this host, so they run right away
+  private static void runTransfer(String host, String dbName, int limitMbs,
+                                  TransferScheduler.Transfer transfer) throws TException {
+    if (isLocalHost(host)) {
+      getTransferScheduler().run(dbName, limitMbs, transfer);
+    } else {
+      transfer.run(limitMbs);
+    }
+  }
+
   /**
    * Convert a partition name into DB name.
    * @param partitionName  e.g. "p2p1_1"
@@ -87,9 +225,9 @@ public class Utils {
    * @param adminPort
    */
   public static void clearDB(String dbName, int adminPort) {
-    try {
-      LOG.error("Clear local DB: " + dbName);
-      Admin.Client client = getLocalAdminClient(adminPort);
+    LOG.error("Clear local DB: " + dbName);
+    try (AdminClientPool.Lease lease = borrowLocalAdminClient(adminPort)) {
+      Admin.Iface client = lease.getClient();
       ClearDBRequest req = new ClearDBRequest(dbName);
       req.setReopen_db(false);
       client.clearDB(req);
@@ -108,11 +246,9 @@ public class Utils {
    * @param adminPort
    */
   public static void closeDB(String dbName, int adminPort) {
+    LOG.error("Close local DB: " + dbName);
     try {
-      LOG.error("Close local DB: " + dbName);
-      Admin.Client client = getLocalAdminClient(adminPort);
-      CloseDBRequest req = new CloseDBRequest(dbName);
-      client.closeDB(req);
+      ADMIN_REQUEST_BATCHER.closeDB("localhost", adminPort, dbName);
     } catch (AdminException e) {
       LOG.error(dbName + " doesn't exist", e);
     } catch (TTransportException e) {
@@ -133,11 +269,10 @@ public class Utils {
       throw new RuntimeException("Invalid db role requested for new db " + dbName + " : " + dbRole);
     }
     LOG.error("Add local DB: " + dbName + " with role " + dbRole);
-    Admin.Client client = null;
     AddDBRequest req = null;
-    try {
+    try (AdminClientPool.Lease lease = borrowLocalAdminClient(adminPort)) {
+      Admin.Iface client = lease.getClient();
       try {
-        client = getLocalAdminClient(adminPort);
         req = new AddDBRequest(dbName, "127.0.0.1");
         req.setDb_role(dbRole);
         client.addDB(req);
@@ -209,19 +344,113 @@ public class Utils {
   public static long getLatestSequenceNumber(String dbName, String host, int adminPort) {
     LOG.error("Get seq number from " + host + " for " + dbName);
     try {
-      Admin.Client client = getAdminClient(host, adminPort);
-
-      GetSequenceNumberRequest request = new GetSequenceNumberRequest(dbName);
-      GetSequenceNumberResponse response = client.getSequenceNumber(request);
-      LOG.error(
-          "Seq number for " + dbName + " on " + host + ": " + String.valueOf(response.seq_num));
-      return response.seq_num;
+      long seqNum = ADMIN_REQUEST_BATCHER.getSequenceNumber(host, adminPort, dbName);
+      LOG.error("Seq number for " + dbName + " on " + host + ": " + String.valueOf(seqNum));
+      return seqNum;
     } catch (TException e) {
       LOG.error("Failed to get sequence number", e);
       return -1;
     }
   }
 
+  /**
+   * Wait until the sequence number of the DB on host:adminPort reaches targetSeq. Servers which
+   * don't support waitForSequenceNumber are polled once per second instead.
+   * @param host
+   * @param adminPort
+   * @param dbName
+   * @param targetSeq
+   * @param timeoutMs
+   * @return the latest sequence number when returning, smaller than targetSeq on timeout
+   * @throws RuntimeException
+   */
+  public static long waitForSequenceNumber(String host, int adminPort, String dbName,
+                                           long targetSeq, long timeoutMs)
+      throws RuntimeException {
+    try (AdminClientPool.Lease lease = borrowAdminClient(host, adminPort)) {
+      Admin.Iface client = lease.getClient();
+
+      WaitForSequenceNumberRequest request = new WaitForSequenceNumberRequest(dbName, targetSeq);
+      request.setTimeout_ms(timeoutMs);
+      return client.waitForSequenceNumber(request).seq_num;
+    } catch (TApplicationException e) {
+      if (e.getType() != TApplicationException.UNKNOWN_METHOD) {
+        LOG.error("Failed to wait for sequence number", e);
+        throw new RuntimeException(e);
+      }
+      LOG.error("waitForSequenceNumber is not supported by " + host + ", fall back to polling");
+      return pollForSequenceNumber(host, adminPort, dbName, targetSeq, timeoutMs);
+    } catch (TException e) {
+      LOG.error("Failed to wait for sequence number", e);
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static long pollForSequenceNumber(String host, int adminPort, String dbName,
+                                            long targetSeq, long timeoutMs) {
+    long deadlineMs = System.currentTimeMillis() + timeoutMs;
+    while (true) {
+      long seqNum = getLatestSequenceNumber(dbName, host, adminPort);
+      if (seqNum == -1) {
+        throw new RuntimeException("Failed to fetch sequence number for DB: " + dbName);
+      }
+
+      long remainingMs = deadlineMs - System.currentTimeMillis();
+      if (seqNum >= targetSeq || remainingMs <= 0) {
+        return seqNum;
+      }
+
+      try {
+        TimeUnit.MILLISECONDS.sleep(Math.min(remainingMs, 1000));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /**
+   * Get the latest sequence numbers of the DB on multiple replicas concurrently
+   * @param dbName
+   * @param instanceNames replicas to query, in host_port format
+   * @param timeoutMs the overall deadline for all replicas
+   * @return instance name to the latest sequence number, for the replicas which answered in time
+   */
+  public static Map<String, Long> getLatestSequenceNumbers(String dbName,
+                                                           Collection<String> instanceNames,
+                                                           long timeoutMs) {
+    LOG.error("Get seq number from " + instanceNames.toString() + " for " + dbName);
+    AsyncAdminClient client = getAsyncAdminClient();
+    Map<String, Future<Long>> futures = new HashMap<>();
+    for (String instanceName : instanceNames) {
+      String host = instanceName.split("_")[0];
+      int port = Integer.parseInt(instanceName.split("_")[1]);
+      futures.put(instanceName, client.getSequenceNumber(host, port, dbName));
+    }
+
+    long deadlineMs = System.currentTimeMillis() + timeoutMs;
+    Map<String, Long> seqNums = new HashMap<>();
+    for (Map.Entry<String, Future<Long>> entry : futures.entrySet()) {
+      long remainingMs = Math.max(0, deadlineMs - System.currentTimeMillis());
+      try {
+        long seqNum = entry.getValue().get(remainingMs, TimeUnit.MILLISECONDS);
+        LOG.error("Seq number for " + dbName + " on " + entry.getKey() + ": " +
+            String.valueOf(seqNum));
+        seqNums.put(entry.getKey(), seqNum);
+      } catch (TimeoutException e) {
+        LOG.error("Timed out getting sequence number from " + entry.getKey() + " for " + dbName);
+        entry.getValue().cancel(false);
+      } catch (ExecutionException e) {
+        LOG.error("Failed to get sequence number from " + entry.getKey() + " for " + dbName,
+            e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+    }
+    return seqNums;
+  }
+
   /**
    * Change DB role and upstream on host:adminPort
    * @param host
@@ -236,8 +465,8 @@ public class Utils {
       String host, int adminPort, String dbName, String role, String upstreamIP, int upstreamPort)
       throws RuntimeException {
     LOG.error("Change " + dbName + " on " + host + " to " + role + " with upstream " + upstreamIP);
-    try {
-      Admin.Client client = getAdminClient(host, adminPort);
+    try (AdminClientPool.Lease lease = borrowAdminClient(host, adminPort)) {
+      Admin.Iface client = lease.getClient();
 
       ChangeDBRoleAndUpstreamRequest request = new ChangeDBRoleAndUpstreamRequest(dbName, role);
       request.setUpstream_ip(upstreamIP);
@@ -249,6 +478,51 @@ public class Utils {
     }
   }
 
+  /**
+   * Change DB role and upstream on multiple replicas concurrently with best efforts
+   * @param instanceNames replicas to change, in host_port format
+   * @param dbName
+   * @param role
+   * @param upstreamIP
+   * @param upstreamPort
+   * @param timeoutMs the deadline for each replica, counted from when all requests are sent
+   * @return the replicas for which the change failed or didn't finish in time
+   */
+  public static List<String> changeDBRoleAndUpStream(
+      Collection<String> instanceNames, String dbName, String role, String upstreamIP,
+      int upstreamPort, long timeoutMs) {
+    LOG.error("Change " + dbName + " on " + instanceNames.toString() + " to " + role +
+        " with upstream " + upstreamIP);
+    AsyncAdminClient client = getAsyncAdminClient();
+    Map<String, Future<Void>> futures = new HashMap<>();
+    for (String instanceName : instanceNames) {
+      String host = instanceName.split("_")[0];
+      int port = Integer.parseInt(instanceName.split("_")[1]);
+      futures.put(instanceName,
+          client.changeDBRoleAndUpStream(host, port, dbName, role, upstreamIP, upstreamPort));
+    }
+
+    long deadlineMs = System.currentTimeMillis() + timeoutMs;
+    List<String> failedInstances = new ArrayList<>();
+    for (Map.Entry<String, Future<Void>> entry : futures.entrySet()) {
+      long remainingMs = Math.max(0, deadlineMs - System.currentTimeMillis());
+      try {
+        entry.getValue().get(remainingMs, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        LOG.error("Timed out changing " + dbName + " on " + entry.getKey());
+        failedInstances.add(entry.getKey());
+      } catch (ExecutionException e) {
+        LOG.error("Failed to changeDBRoleAndUpStream for " + dbName + " on " + entry.getKey(),
+            e.getCause());
+        failedInstances.add(entry.getKey());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+    }
+    return failedInstances;
+  }
+
   /**
    * Check the status of a local DB
    * @param dbName
@@ -258,10 +532,7 @@ public class Utils {
    */
   public static CheckDBResponse checkLocalDB(String dbName, int adminPort) throws RuntimeException {
     try {
-      Admin.Client client = getLocalAdminClient(adminPort);
-
-      CheckDBRequest req = new CheckDBRequest(dbName);
-      return client.checkDB(req);
+      return ADMIN_REQUEST_BATCHER.checkDB("localhost", adminPort, dbName);
     } catch (TException e) {
       LOG.error("Failed to check DB: ", e.toString());
       throw new RuntimeException(e);
@@ -278,28 +549,28 @@ public class Utils {
    */
   public static void backupDB(String host, int adminPort, String dbName, String hdfsPath)
       throws RuntimeException {
-    LOG.error("(HDFS)Backup " + dbName + " from " + host + " to " + hdfsPath);
-    try {
-      Admin.Client client = getAdminClient(host, adminPort);
-
-      BackupDBRequest req = new BackupDBRequest(dbName, hdfsPath);
-      client.backupDB(req);
-    } catch (TException e) {
-      LOG.error("Failed to backup DB: ", e.toString());
-      throw new RuntimeException(e);
-    }
+    backupDBWithLimit(host, adminPort, dbName, hdfsPath, 0);
   }
 
-  public static void backupDBWithLimit(String host, int adminPort, String dbName, String hdfsPath,
-                                       int limitMbs)
+  public static void backupDBWithLimit(final String host, final int adminPort, final String dbName,
+                                       final String hdfsPath, int limitMbs)
       throws RuntimeException {
-    LOG.error("Backup " + dbName + " from " + host + " to " + hdfsPath);
+    LOG.error("(HDFS)Backup " + dbName + " from " + host + " to " + hdfsPath);
     try {
-      Admin.Client client = getAdminClient(host, adminPort);
-
-      BackupDBRequest req = new BackupDBRequest(dbName, hdfsPath);
-      req.setLimit_mbs(limitMbs);
-      client.backupDB(req);
+      runTransfer(host, dbName, limitMbs, new TransferScheduler.Transfer() {
+        @Override
+        public void run(int effectiveLimitMbs) throws TException {
+          try (AdminClientPool.Lease lease = borrowAdminClient(host, adminPort)) {
+            Admin.Iface client = lease.getClient();
+
+            BackupDBRequest req = new BackupDBRequest(dbName, hdfsPath);
+            if (effectiveLimitMbs > 0) {
+              req.setLimit_mbs(effectiveLimitMbs);
+            }
+            client.backupDB(req);
+          }
+        }
+      });
     } catch (TException e) {
       LOG.error("Failed to backup DB: ", e.toString());
       throw new RuntimeException(e);
@@ -313,16 +584,27 @@ public class Utils {
    * @param hdfsPath
    * @throws RuntimeException
    */
-  public static void restoreLocalDB(int adminPort, String dbName, String hdfsPath,
-                                    String upsreamHost, int upstreamPort)
+  public static void restoreLocalDB(final int adminPort, final String dbName,
+                                    final String hdfsPath, final String upsreamHost,
+                                    final int upstreamPort)
       throws RuntimeException {
     LOG.error("(HDFS)Restore " + dbName + " from " + hdfsPath + " with upstream " + upsreamHost);
     try {
-      Admin.Client client = getLocalAdminClient(adminPort);
-
-      RestoreDBRequest req =
-          new RestoreDBRequest(dbName, hdfsPath, upsreamHost, (short) upstreamPort);
-      client.restoreDB(req);
+      getTransferScheduler().run(dbName, 0, new TransferScheduler.Transfer() {
+        @Override
+        public void run(int effectiveLimitMbs) throws TException {
+          try (AdminClientPool.Lease lease = borrowLocalAdminClient(adminPort)) {
+            Admin.Iface client = lease.getClient();
+
+            RestoreDBRequest req =
+                new RestoreDBRequest(dbName, hdfsPath, upsreamHost, (short) upstreamPort);
+            if (effectiveLimitMbs > 0) {
+              req.setLimit_mbs(effectiveLimitMbs);
+            }
+            client.restoreDB(req);
+          }
+        }
+      });
     } catch (TException e) {
       LOG.error("Failed to restore DB: ", e.toString());
       throw new RuntimeException(e);
@@ -341,28 +623,29 @@ public class Utils {
   public static void backupDBToS3(String host, int adminPort, String dbName, String s3Bucket,
                                   String s3Path)
       throws RuntimeException {
-    LOG.error("(S3)Backup " + dbName + " from " + host + " to " + s3Path);
-    try {
-      Admin.Client client = getAdminClient(host, adminPort);
-
-      BackupDBToS3Request req = new BackupDBToS3Request(dbName, s3Bucket, s3Path);
-      client.backupDBToS3(req);
-    } catch (TException e) {
-      LOG.error("Failed to backup DB: ", e.toString());
-      throw new RuntimeException(e);
-    }
+    backupDBToS3WithLimit(host, adminPort, dbName, 0, s3Bucket, s3Path);
   }
 
-  public static void backupDBToS3WithLimit(String host, int adminPort, String dbName, int limitMbs,
-                                           String s3Bucket, String s3Path)
+  public static void backupDBToS3WithLimit(final String host, final int adminPort,
+                                           final String dbName, int limitMbs,
+                                           final String s3Bucket, final String s3Path)
       throws RuntimeException {
     LOG.error("(S3)Backup " + dbName + " from " + host + " to " + s3Path);
     try {
-      Admin.Client client = getAdminClient(host, adminPort);
-
-      BackupDBToS3Request req = new BackupDBToS3Request(dbName, s3Bucket, s3Path);
-      req.setLimit_mbs(limitMbs);
-      client.backupDBToS3(req);
+      runTransfer(host, dbName, limitMbs, new TransferScheduler.Transfer() {
+        @Override
+        public void run(int effectiveLimitMbs) throws TException {
+          try (AdminClientPool.Lease lease = borrowAdminClient(host, adminPort)) {
+            Admin.Iface client = lease.getClient();
+
+            BackupDBToS3Request req = new BackupDBToS3Request(dbName, s3Bucket, s3Path);
+            if (effectiveLimitMbs > 0) {
+              req.setLimit_mbs(effectiveLimitMbs);
+            }
+            client.backupDBToS3(req);
+          }
+        }
+      });
     } catch (TException e) {
       LOG.error("Failed to backup DB: ", e.toString());
       throw new RuntimeException(e);
@@ -377,26 +660,100 @@ public class Utils {
    * @param s3Path
    * @throws RuntimeException
    */
-  public static void restoreLocalDBFromS3(int adminPort, String dbName, String s3Bucket,
-                                          String s3Path, String upsreamHost, int upstreamPort)
+  public static void restoreLocalDBFromS3(final int adminPort, final String dbName,
+                                          final String s3Bucket, final String s3Path,
+                                          final String upsreamHost, final int upstreamPort)
       throws RuntimeException {
     LOG.error("(S3)Restore " + dbName + " from " + s3Path + " with upstream " + upsreamHost);
     try {
-      Admin.Client client = getLocalAdminClient(adminPort);
-
-      RestoreDBFromS3Request req =
-          new RestoreDBFromS3Request(dbName, s3Bucket, s3Path, upsreamHost, (short) upstreamPort);
-      client.restoreDBFromS3(req);
+      getTransferScheduler().run(dbName, 0, new TransferScheduler.Transfer() {
+        @Override
+        public void run(int effectiveLimitMbs) throws TException {
+          try (AdminClientPool.Lease lease = borrowLocalAdminClient(adminPort)) {
+            Admin.Iface client = lease.getClient();
+
+            RestoreDBFromS3Request req = new RestoreDBFromS3Request(
+                dbName, s3Bucket, s3Path, upsreamHost, (short) upstreamPort);
+            if (effectiveLimitMbs > 0) {
+              req.setLimit_mbs(effectiveLimitMbs);
+            }
+            client.restoreDBFromS3(req);
+          }
+        }
+      });
     } catch (TException e) {
       LOG.error("Failed to restore DB: ", e.toString());
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * Restore the local DB by streaming a checkpoint directly from a peer admin server
+   * @param adminPort
+   * @param dbName
+   * @param peerHost
+   * @param peerAdminPort
+   * @param upsreamHost
+   * @param upstreamPort
+   * @param limitMbs rate limit in MB/s, a non positive value means no limit
+   * @throws RuntimeException
+   */
+  public static void restoreLocalDBFromPeer(final int adminPort, final String dbName,
+                                            final String peerHost, final int peerAdminPort,
+                                            final String upsreamHost, final int upstreamPort,
+                                            int limitMbs)
+      throws RuntimeException {
+    LOG.error("(Peer)Restore " + dbName + " from " + peerHost + " with upstream " + upsreamHost);
+    try {
+      getTransferScheduler().run(dbName, limitMbs, new TransferScheduler.Transfer() {
+        @Override
+        public void run(int effectiveLimitMbs) throws TException {
+          try (AdminClientPool.Lease lease = borrowLocalAdminClient(adminPort)) {
+            Admin.Iface client = lease.getClient();
+
+            RestoreDBFromPeerRequest req = new RestoreDBFromPeerRequest(dbName, peerHost,
+                (short) peerAdminPort, upsreamHost, (short) upstreamPort);
+            req.setLimit_mbs(effectiveLimitMbs);
+            client.restoreDBFromPeer(req);
+          }
+        }
+      });
+    } catch (TException e) {
+      LOG.error("Failed to restore DB from peer: ", e.toString());
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Load SST files from S3 into the local DB
+   * @param adminPort
+   * @param dbName
+   * @param s3Bucket
+   * @param s3Path
+   * @param limitMbs download rate limit in MB/s requested by the caller
+   * @throws TException
+   */
+  public static void addS3SstFilesToLocalDB(final int adminPort, final String dbName,
+                                            final String s3Bucket, final String s3Path,
+                                            int limitMbs)
+      throws TException {
+    LOG.error("Add S3 SST files to " + dbName + " from " + s3Path);
+    getTransferScheduler().run(dbName, limitMbs, new TransferScheduler.Transfer() {
+      @Override
+      public void run(int effectiveLimitMbs) throws TException {
+        try (AdminClientPool.Lease lease = borrowLocalAdminClient(adminPort)) {
+          AddS3SstFilesToDBRequest req = new AddS3SstFilesToDBRequest(dbName, s3Bucket, s3Path);
+          req.setS3_download_limit_mb(effectiveLimitMbs);
+          lease.getClient().addS3SstFilesToDB(req);
+        }
+      }
+    });
+  }
+
   public static void compactDB(int adminPort, String dbName) throws RuntimeException {
     LOG.error(String.format("Compact partition: %s", dbName));
-    try {
-      Admin.Client client = getLocalAdminClient(adminPort);
+    try (AdminClientPool.Lease lease = borrowLocalAdminClient(adminPort)) {
+      Admin.Iface client = lease.getClient();
       CompactDBRequest req = new CompactDBRequest(dbName);
       client.compactDB(req);
     } catch (TException e) {
@@ -413,8 +770,8 @@ public class Utils {
    * @return
    */
   public static boolean isMasterReplica(String host, int adminPort, String dbName) {
-    try {
-      Admin.Client client = getAdminClient(host, adminPort);
+    try (AdminClientPool.Lease lease = borrowAdminClient(host, adminPort)) {
+      Admin.Iface client = lease.getClient();
 
       CheckDBRequest req = new CheckDBRequest(dbName);
       CheckDBResponse res = client.checkDB(req);
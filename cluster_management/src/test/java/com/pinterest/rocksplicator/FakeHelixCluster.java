@@ -0,0 +1,180 @@
+package com.pinterest.rocksplicator;
+
+import org.apache.helix.BaseDataAccessor;
+import org.apache.helix.HelixAdmin;
+import org.apache.helix.HelixDataAccessor;
+import org.apache.helix.HelixManager;
+import org.apache.helix.PropertyKey;
+import org.apache.helix.ZNRecord;
+import org.apache.helix.model.ExternalView;
+import org.apache.helix.model.IdealState;
+import org.apache.helix.model.InstanceConfig;
+import org.apache.zookeeper.data.Stat;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An in-memory cluster behind a HelixManager, for driving a ConfigGenerator without ZK.
+ * Only the calls made by ConfigGenerator are supported.
+ */
+class FakeHelixCluster {
+  private final String clusterName;
+  private final PropertyKey.Builder keyBuilder;
+  private final Map<String, ExternalView> externalViews;
+  private final Map<String, InstanceConfig> instanceConfigs;
+  private final HelixManager manager;
+
+  FakeHelixCluster(String clusterName) {
+    this.clusterName = clusterName;
+    this.keyBuilder = new PropertyKey.Builder(clusterName);
+    this.externalViews = new ConcurrentSkipListMap<String, ExternalView>();
+    this.instanceConfigs = new ConcurrentSkipListMap<String, InstanceConfig>();
+
+    final HelixAdmin admin = newProxy(HelixAdmin.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+          case "getResourcesInCluster":
+            return new ArrayList<String>(externalViews.keySet());
+          case "getResourceIdealState":
+            IdealState idealState = new IdealState((String) args[1]);
+            idealState.setStateModelDefRef("MasterSlave");
+            return idealState;
+          case "getInstancesInClusterWithTag":
+            List<String> instances = new ArrayList<String>();
+            for (InstanceConfig config : instanceConfigs.values()) {
+              if (config.containsTag((String) args[1])) {
+                instances.add(config.getInstanceName());
+              }
+            }
+            return instances;
+          default:
+            throw new UnsupportedOperationException(method.getName());
+        }
+      }
+    });
+
+    final BaseDataAccessor<ZNRecord> baseAccessor =
+        newProxy(BaseDataAccessor.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+          case "getStats":
+            List<?> paths = (List<?>) args[0];
+            Stat[] stats = new Stat[paths.size()];
+            for (int i = 0; i < stats.length; ++i) {
+              ExternalView externalView = getExternalViewAt((String) paths.get(i));
+              if (externalView != null) {
+                stats[i] = new Stat();
+                stats[i].setVersion(externalView.getRecord().getVersion());
+                stats[i].setCtime(externalView.getRecord().getCreationTime());
+              }
+            }
+            return stats;
+          default:
+            throw new UnsupportedOperationException(method.getName());
+        }
+      }
+    });
+
+    final HelixDataAccessor accessor = newProxy(HelixDataAccessor.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+          case "keyBuilder":
+            return keyBuilder;
+          case "getBaseDataAccessor":
+            return baseAccessor;
+          case "getProperty":
+            if (args[0] instanceof List) {
+              List<Object> properties = new ArrayList<Object>();
+              for (Object key : (List<?>) args[0]) {
+                properties.add(getPropertyAt(((PropertyKey) key).getPath()));
+              }
+              return properties;
+            }
+            return getPropertyAt(((PropertyKey) args[0]).getPath());
+          case "getChildValues":
+            if (((PropertyKey) args[0]).getPath().equals(keyBuilder.instanceConfigs().getPath())) {
+              return getInstanceConfigs();
+            }
+            throw new UnsupportedOperationException("getChildValues of " + args[0]);
+          default:
+            throw new UnsupportedOperationException(method.getName());
+        }
+      }
+    });
+
+    this.manager = newProxy(HelixManager.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+          case "getClusterManagmentTool":
+            return admin;
+          case "getHelixDataAccessor":
+            return accessor;
+          case "getClusterName":
+            return FakeHelixCluster.this.clusterName;
+          default:
+            throw new UnsupportedOperationException(method.getName());
+        }
+      }
+    });
+  }
+
+  HelixManager getManager() {
+    return manager;
+  }
+
+  // add or replace the ExternalView of its resource
+  void setExternalView(ExternalView externalView) {
+    externalViews.put(externalView.getResourceName(), externalView);
+  }
+
+  void removeExternalView(String resource) {
+    externalViews.remove(resource);
+  }
+
+  List<ExternalView> getExternalViews() {
+    return new ArrayList<ExternalView>(externalViews.values());
+  }
+
+  void setInstanceConfig(InstanceConfig config) {
+    instanceConfigs.put(config.getInstanceName(), config);
+  }
+
+  List<InstanceConfig> getInstanceConfigs() {
+    return new ArrayList<InstanceConfig>(instanceConfigs.values());
+  }
+
+  // the ExternalView or instance config at the path
+  private Object getPropertyAt(String path) {
+    for (InstanceConfig config : instanceConfigs.values()) {
+      if (keyBuilder.instanceConfig(config.getInstanceName()).getPath().equals(path)) {
+        return config;
+      }
+    }
+    return getExternalViewAt(path);
+  }
+
+  private ExternalView getExternalViewAt(String path) {
+    for (ExternalView externalView : externalViews.values()) {
+      if (keyBuilder.externalView(externalView.getResourceName()).getPath().equals(path)) {
+        return externalView;
+      }
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T newProxy(Class<?> type, InvocationHandler handler) {
+    return (T) Proxy.newProxyInstance(
+        FakeHelixCluster.class.getClassLoader(), new Class<?>[] {type}, handler);
+  }
+}
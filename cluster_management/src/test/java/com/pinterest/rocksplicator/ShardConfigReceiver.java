@@ -0,0 +1,93 @@
+package com.pinterest.rocksplicator;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.Assert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local config service which records every shard config post, failing the first numFailures
+ * of them with a 500.
+ */
+class ShardConfigReceiver {
+  private static final long TIMEOUT_MS = 10000;
+
+  private final HttpServer server;
+  private final BlockingQueue<JsonObject> posts;
+  private final AtomicInteger failures;
+  private volatile String contentType;
+
+  ShardConfigReceiver(int numFailures) throws IOException {
+    this.posts = new LinkedBlockingQueue<JsonObject>();
+    this.failures = new AtomicInteger(numFailures);
+    this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    this.server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        JsonObject post = new JsonParser().parse(readBody(exchange)).getAsJsonObject();
+        contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        exchange.sendResponseHeaders(failures.getAndDecrement() > 0 ? 500 : 200, -1);
+        exchange.close();
+        posts.add(post);
+      }
+    });
+    this.server.start();
+  }
+
+  String getUrl() {
+    return "http://localhost:" + server.getAddress().getPort() + "/";
+  }
+
+  void setFailures(int numFailures) {
+    failures.set(numFailures);
+  }
+
+  // the Content-Type of the latest post
+  String getContentType() {
+    return contentType;
+  }
+
+  // the next post, failing the test if there is none
+  JsonObject next() throws InterruptedException {
+    JsonObject post = poll(TIMEOUT_MS);
+    Assert.assertNotNull(post, "No shard config posted");
+    return post;
+  }
+
+  JsonObject poll(long timeoutMs) throws InterruptedException {
+    return posts.poll(timeoutMs, TimeUnit.MILLISECONDS);
+  }
+
+  // the shard config carried by a post
+  static JsonObject getContent(JsonObject post) {
+    return new JsonParser().parse(post.get("content").getAsString()).getAsJsonObject();
+  }
+
+  void stop() {
+    server.stop(0);
+  }
+
+  private static String readBody(HttpExchange exchange) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    try (InputStream input = exchange.getRequestBody()) {
+      int n;
+      while ((n = input.read(buffer)) > 0) {
+        body.write(buffer, 0, n);
+      }
+    }
+    return new String(body.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
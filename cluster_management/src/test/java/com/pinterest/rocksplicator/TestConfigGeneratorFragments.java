@@ -0,0 +1,151 @@
+package com.pinterest.rocksplicator;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.apache.helix.NotificationContext;
+import org.apache.helix.model.ExternalView;
+import org.apache.helix.model.InstanceConfig;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class TestConfigGeneratorFragments {
+  private static final String CLUSTER = "test_cluster";
+  private static final String HOST1 = "host1_9090";
+  private static final String HOST2 = "host2_9090";
+  private static final String HOST3 = "host3_9090";
+  private static final Set<String> MASTERS = new HashSet<>(Arrays.asList("00000:M", "00001:M"));
+  private static final Set<String> SLAVES = new HashSet<>(Arrays.asList("00000:S", "00001:S"));
+
+  private FakeHelixCluster cluster;
+  private ShardConfigReceiver receiver;
+  private ConfigGenerator generator;
+
+  @BeforeMethod
+  public void setup() throws Exception {
+    cluster = new FakeHelixCluster(CLUSTER);
+    for (String host : Arrays.asList(HOST1, HOST2)) {
+      InstanceConfig config = new InstanceConfig(host);
+      config.setDomain("az=az,pg=pg");
+      cluster.setInstanceConfig(config);
+    }
+    receiver = new ShardConfigReceiver(0);
+    generator = new ConfigGenerator(CLUSTER, cluster.getManager(), receiver.getUrl());
+  }
+
+  @AfterMethod
+  public void cleanUp() {
+    receiver.stop();
+  }
+
+  @Test
+  public void testUnchangedResourcesAreReused() throws Exception {
+    cluster.setExternalView(view("seg", 1, 1, HOST1, HOST2));
+    cluster.setExternalView(view("other", 1, 1, HOST1, HOST2));
+    JsonObject config = changeExternalViews();
+    Assert.assertEquals(getReplicas(config, "seg", HOST1), MASTERS);
+    Assert.assertEquals(getReplicas(config, "other", HOST1), MASTERS);
+
+    // seg keeps its ExternalView version, so its cached config is reused as is
+    cluster.setExternalView(view("seg", 1, 1, HOST2, HOST1));
+    cluster.setExternalView(view("other", 2, 1, HOST2, HOST1));
+    config = changeExternalViews();
+    Assert.assertEquals(getReplicas(config, "seg", HOST1), MASTERS);
+    Assert.assertEquals(getReplicas(config, "other", HOST1), SLAVES);
+
+    // a new version rebuilds it
+    cluster.setExternalView(view("seg", 2, 1, HOST2, HOST1));
+    config = changeExternalViews();
+    Assert.assertEquals(getReplicas(config, "seg", HOST1), SLAVES);
+
+    // so does a resource dropped and re-added with the same version
+    cluster.setExternalView(view("seg", 2, 2, HOST1, HOST2));
+    config = changeExternalViews();
+    Assert.assertEquals(getReplicas(config, "seg", HOST1), MASTERS);
+
+    // and removed resources are dropped
+    cluster.removeExternalView("other");
+    config = changeExternalViews();
+    Assert.assertFalse(config.has("other"));
+  }
+
+  @Test
+  public void testDisabledHostRebuildsAllResources() throws Exception {
+    cluster.setExternalView(view("seg", 1, 1, HOST1, HOST2));
+    JsonObject config = changeExternalViews();
+    Assert.assertEquals(getReplicas(config, "seg", HOST2), SLAVES);
+
+    // the ExternalView is unchanged, but the disabled host must leave every resource config
+    InstanceConfig disabled = new InstanceConfig(HOST2);
+    disabled.setDomain("az=az,pg=pg");
+    disabled.addTag("disabled");
+    cluster.setInstanceConfig(disabled);
+    generator.onConfigChange(cluster.getInstanceConfigs(), newContext());
+    config = ShardConfigReceiver.getContent(receiver.next());
+    Assert.assertEquals(getReplicas(config, "seg", HOST1), MASTERS);
+    Assert.assertFalse(config.getAsJsonObject("seg").has("host2:9090:az_pg"));
+  }
+
+  @Test
+  public void testNewHostDomainIsRead() throws Exception {
+    cluster.setExternalView(view("seg", 1, 1, HOST1, HOST2));
+    changeExternalViews();
+
+    // host3 joined after the instance configs were read, so its domain is read on demand
+    InstanceConfig config = new InstanceConfig(HOST3);
+    config.setDomain("az=az3,pg=pg3");
+    cluster.setInstanceConfig(config);
+    cluster.setExternalView(view("seg", 2, 1, HOST1, HOST3));
+    JsonObject shardConfig = changeExternalViews();
+    Assert.assertEquals(getReplicas(shardConfig, "seg", HOST1), MASTERS);
+    JsonArray partitions =
+        shardConfig.getAsJsonObject("seg").getAsJsonArray("host3:9090:az3_pg3");
+    Assert.assertEquals(partitions.size(), 2);
+  }
+
+  // notify the generator of the ExternalViews in the cluster, and return the config it posts
+  private JsonObject changeExternalViews() throws Exception {
+    generator.onExternalViewChange(cluster.getExternalViews(), newContext());
+    return ShardConfigReceiver.getContent(receiver.next());
+  }
+
+  private static NotificationContext newContext() {
+    NotificationContext context = new NotificationContext(null);
+    context.setType(NotificationContext.Type.CALLBACK);
+    return context;
+  }
+
+  // a resource of 2 partitions, both with master on one host and slave on the other
+  private static ExternalView view(String resource, int version, long ctime, String master,
+                                   String slave) {
+    ExternalView view = new ExternalView(resource);
+    view.getRecord().setSimpleField("NUM_PARTITIONS", "2");
+    view.getRecord().setVersion(version);
+    view.getRecord().setCreationTime(ctime);
+    for (int i = 0; i < 2; ++i) {
+      Map<String, String> stateMap = new HashMap<>();
+      stateMap.put(master, "MASTER");
+      stateMap.put(slave, "SLAVE");
+      view.setStateMap(resource + "_" + i, stateMap);
+    }
+    return view;
+  }
+
+  private static Set<String> getReplicas(JsonObject config, String resource, String host) {
+    JsonArray partitions =
+        config.getAsJsonObject(resource).getAsJsonArray(host.replace('_', ':') + ":az_pg");
+    Set<String> replicas = new HashSet<>();
+    for (JsonElement partition : partitions) {
+      replicas.add(partition.getAsString());
+    }
+    return replicas;
+  }
+}
@@ -0,0 +1,200 @@
+package com.pinterest.rocksplicator;
+
+import com.google.gson.JsonObject;
+import org.apache.helix.NotificationContext;
+import org.apache.helix.model.ExternalView;
+import org.apache.helix.model.InstanceConfig;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+
+public class TestConfigGeneratorGenerations {
+  private static final String CLUSTER = "test_cluster";
+  private static final String HOST1 = "host1_9090";
+  private static final String HOST2 = "host2_9090";
+  private static final long NO_POST_WAIT_MS = 2500;
+
+  private FakeHelixCluster cluster;
+  private ShardConfigReceiver receiver;
+  private ShardConfigReceiver secondReceiver;
+  private ScheduledExecutorService publisher;
+  private ForkJoinPool fragmentBuilders;
+
+  @BeforeMethod
+  public void setup() throws Exception {
+    cluster = new FakeHelixCluster(CLUSTER);
+    for (String host : Arrays.asList(HOST1, HOST2)) {
+      InstanceConfig config = new InstanceConfig(host);
+      config.setDomain("az=az,pg=pg");
+      cluster.setInstanceConfig(config);
+    }
+    receiver = new ShardConfigReceiver(0);
+    secondReceiver = new ShardConfigReceiver(0);
+    publisher = ConfigGenerator.newPublisherExecutor(1);
+    fragmentBuilders = ConfigGenerator.newFragmentBuilderPool();
+  }
+
+  @AfterMethod
+  public void cleanUp() {
+    receiver.stop();
+    secondReceiver.stop();
+    publisher.shutdownNow();
+    fragmentBuilders.shutdownNow();
+  }
+
+  @Test
+  public void testDeltaAndGeneration() throws Exception {
+    ConfigGenerator generator = newGenerator(3);
+
+    // the first config is always full
+    cluster.setExternalView(view("seg", 1, HOST1, HOST2));
+    cluster.setExternalView(view("other", 1, HOST1, HOST2));
+    changeExternalViews(generator);
+    JsonObject post = receiver.next();
+    long generation = post.get("generation").getAsLong();
+    Assert.assertEquals(post.get("format").getAsString(), "full");
+    Assert.assertTrue(ShardConfigReceiver.getContent(post).has("other"));
+    Assert.assertEquals(receiver.getContentType(), "application/json; charset=UTF-8");
+
+    // a failed post is retried with the same generation
+    receiver.setFailures(1);
+    cluster.setExternalView(view("seg", 2, HOST2, HOST1));
+    changeExternalViews(generator);
+    Assert.assertEquals(receiver.next().get("generation").getAsLong(), generation + 1);
+    post = receiver.next();
+    Assert.assertEquals(post.get("generation").getAsLong(), generation + 1);
+
+    // deltas carry the changed resources only, against the previous generation
+    Assert.assertEquals(post.get("format").getAsString(), "delta");
+    Assert.assertEquals(post.get("base_generation").getAsLong(), generation);
+    JsonObject delta = ShardConfigReceiver.getContent(post);
+    Assert.assertEquals(delta.getAsJsonObject("updated").entrySet().size(), 1);
+    Assert.assertTrue(delta.getAsJsonObject("updated").has("seg"));
+    Assert.assertEquals(delta.getAsJsonArray("removed").size(), 0);
+
+    // removed resources are listed by name
+    cluster.removeExternalView("other");
+    changeExternalViews(generator);
+    post = receiver.next();
+    Assert.assertEquals(post.get("generation").getAsLong(), generation + 2);
+    Assert.assertEquals(post.get("base_generation").getAsLong(), generation + 1);
+    delta = ShardConfigReceiver.getContent(post);
+    Assert.assertEquals(delta.getAsJsonObject("updated").entrySet().size(), 0);
+    Assert.assertEquals(delta.getAsJsonArray("removed").get(0).getAsString(), "other");
+
+    // every 3rd generation is a full snapshot
+    cluster.setExternalView(view("seg", 3, HOST1, HOST2));
+    changeExternalViews(generator);
+    post = receiver.next();
+    Assert.assertEquals(post.get("generation").getAsLong(), generation + 3);
+    Assert.assertEquals(post.get("format").getAsString(), "full");
+    Assert.assertFalse(ShardConfigReceiver.getContent(post).has("other"));
+  }
+
+  @Test
+  public void testNewerConfigReplacesFailedOne() throws Exception {
+    ConfigGenerator generator = newGenerator(10);
+
+    cluster.setExternalView(view("seg", 1, HOST1, HOST2));
+    cluster.setExternalView(view("other", 1, HOST1, HOST2));
+    changeExternalViews(generator);
+    long generation = receiver.next().get("generation").getAsLong();
+
+    receiver.setFailures(Integer.MAX_VALUE);
+    cluster.setExternalView(view("seg", 2, HOST2, HOST1));
+    changeExternalViews(generator);
+    Assert.assertEquals(receiver.next().get("generation").getAsLong(), generation + 1);
+
+    // the retry posts the newest config, still under the generation nobody has seen yet
+    cluster.setExternalView(view("other", 2, HOST2, HOST1));
+    changeExternalViews(generator);
+    receiver.setFailures(0);
+    JsonObject post = receiver.next();
+    Assert.assertEquals(post.get("generation").getAsLong(), generation + 1);
+    Assert.assertEquals(post.get("base_generation").getAsLong(), generation);
+    JsonObject updated = ShardConfigReceiver.getContent(post).getAsJsonObject("updated");
+    Assert.assertEquals(updated.entrySet().size(), 2);
+  }
+
+  @Test
+  public void testDeltaAgainstEachPublishersBase() throws Exception {
+    ConfigGenerator generator = newGenerator(10, Arrays.asList(receiver, secondReceiver));
+
+    cluster.setExternalView(view("seg", 1, HOST1, HOST2));
+    cluster.setExternalView(view("other", 1, HOST1, HOST2));
+    changeExternalViews(generator);
+    long generation = receiver.next().get("generation").getAsLong();
+    Assert.assertEquals(secondReceiver.next().get("generation").getAsLong(), generation);
+
+    // the second publisher misses the next generation
+    secondReceiver.setFailures(Integer.MAX_VALUE);
+    cluster.setExternalView(view("seg", 2, HOST2, HOST1));
+    changeExternalViews(generator);
+    Assert.assertEquals(receiver.next().get("generation").getAsLong(), generation + 1);
+    Assert.assertEquals(secondReceiver.next().get("generation").getAsLong(), generation + 1);
+
+    // a newer generation replaces the one still being retried
+    cluster.setExternalView(view("other", 2, HOST2, HOST1));
+    changeExternalViews(generator);
+    JsonObject post = receiver.next();
+    Assert.assertEquals(post.get("generation").getAsLong(), generation + 2);
+    Assert.assertEquals(post.get("base_generation").getAsLong(), generation + 1);
+    JsonObject updated = ShardConfigReceiver.getContent(post).getAsJsonObject("updated");
+    Assert.assertEquals(updated.entrySet().size(), 1);
+    Assert.assertTrue(updated.has("other"));
+
+    // the second publisher gets a delta against the generation it accepted last
+    secondReceiver.setFailures(0);
+    post = secondReceiver.next();
+    Assert.assertEquals(post.get("generation").getAsLong(), generation + 2);
+    Assert.assertEquals(post.get("base_generation").getAsLong(), generation);
+    updated = ShardConfigReceiver.getContent(post).getAsJsonObject("updated");
+    Assert.assertEquals(updated.entrySet().size(), 2);
+
+    // and the first one is not given the accepted generation again
+    Assert.assertNull(receiver.poll(NO_POST_WAIT_MS));
+  }
+
+  private ConfigGenerator newGenerator(int snapshotInterval) {
+    return newGenerator(snapshotInterval, Arrays.asList(receiver));
+  }
+
+  private ConfigGenerator newGenerator(int snapshotInterval,
+                                       List<ShardConfigReceiver> receivers) {
+    List<ShardMapPublisher> publishers = new ArrayList<>();
+    for (ShardConfigReceiver shardConfigReceiver : receivers) {
+      publishers.add(new HttpShardMapPublisher(shardConfigReceiver.getUrl(), false));
+    }
+    return new ConfigGenerator(CLUSTER, cluster.getManager(), publishers, 0, snapshotInterval,
+        false, publisher, fragmentBuilders);
+  }
+
+  private void changeExternalViews(ConfigGenerator generator) {
+    NotificationContext context = new NotificationContext(null);
+    context.setType(NotificationContext.Type.CALLBACK);
+    generator.onExternalViewChange(cluster.getExternalViews(), context);
+  }
+
+  // a resource of 2 partitions, both with master on one host and slave on the other
+  private static ExternalView view(String resource, int version, String master, String slave) {
+    ExternalView view = new ExternalView(resource);
+    view.getRecord().setSimpleField("NUM_PARTITIONS", "2");
+    view.getRecord().setVersion(version);
+    for (int i = 0; i < 2; ++i) {
+      Map<String, String> stateMap = new HashMap<>();
+      stateMap.put(master, "MASTER");
+      stateMap.put(slave, "SLAVE");
+      view.setStateMap(resource + "_" + i, stateMap);
+    }
+    return view;
+  }
+}
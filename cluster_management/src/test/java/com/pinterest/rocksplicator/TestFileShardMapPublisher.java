@@ -0,0 +1,86 @@
+package com.pinterest.rocksplicator;
+
+import org.apache.commons.codec.binary.Base64;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class TestFileShardMapPublisher {
+
+  private static ShardMapPublisher.Update jsonUpdate(long generation, String content) {
+    return new ShardMapPublisher.Update(generation, ShardMapPublisher.Update.ENCODING_JSON,
+        content, null, 0);
+  }
+
+  @Test
+  public void testWriteAndRename() throws Exception {
+    File file = File.createTempFile("shard_map", ".json");
+    file.deleteOnExit();
+    FileShardMapPublisher publisher = new FileShardMapPublisher(file.getPath(), false);
+
+    Assert.assertTrue(publisher.publish(jsonUpdate(1, "{\"a\": 1}")));
+    Assert.assertEquals(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8),
+        "{\"a\": 1}");
+
+    // a shorter shard map replaces the file completely
+    Assert.assertTrue(publisher.publish(jsonUpdate(2, "{}")));
+    Assert.assertEquals(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8),
+        "{}");
+    Assert.assertFalse(new File(file.getPath() + ".tmp").exists());
+
+    // thrift shard maps are written as raw bytes
+    byte[] binary = {0, 1, 2, (byte) 255};
+    Assert.assertTrue(publisher.publish(new ShardMapPublisher.Update(3,
+        ShardMapPublisher.Update.ENCODING_THRIFT_COMPACT_BASE64, Base64.encodeBase64String(binary),
+        null, 0)));
+    Assert.assertEquals(Files.readAllBytes(file.toPath()), binary);
+  }
+
+  @Test
+  public void testWriteMapped() throws Exception {
+    File file = File.createTempFile("shard_map", ".mmap");
+    file.deleteOnExit();
+    FileShardMapPublisher publisher = new FileShardMapPublisher(file.getPath(), true);
+
+    Assert.assertTrue(publisher.publish(jsonUpdate(7, "{\"a\": 1}")));
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    long sequence = buffer.getLong(0);
+    Assert.assertEquals(sequence % 2, 0);
+    Assert.assertTrue(sequence > 0);
+    Assert.assertEquals(buffer.getLong(8), 7);
+    Assert.assertEquals(readPayload(buffer), "{\"a\": 1}");
+
+    Assert.assertTrue(publisher.publish(jsonUpdate(8, "{}")));
+    buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    Assert.assertEquals(buffer.getLong(0), sequence + 2);
+    Assert.assertEquals(buffer.getLong(8), 8);
+    Assert.assertEquals(readPayload(buffer), "{}");
+
+    // a shard map larger than the mapping grows the file
+    char[] chars = new char[2 * 1024 * 1024];
+    Arrays.fill(chars, 'x');
+    String large = new String(chars);
+    Assert.assertTrue(publisher.publish(jsonUpdate(9, large)));
+    buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    Assert.assertEquals(buffer.getLong(0), sequence + 4);
+    Assert.assertEquals(buffer.getLong(8), 9);
+    Assert.assertEquals(readPayload(buffer), large);
+
+    // a new writer continues from the sequence left in the file
+    publisher = new FileShardMapPublisher(file.getPath(), true);
+    Assert.assertTrue(publisher.publish(jsonUpdate(10, "{}")));
+    buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    Assert.assertEquals(buffer.getLong(0), sequence + 6);
+    Assert.assertEquals(readPayload(buffer), "{}");
+  }
+
+  private static String readPayload(ByteBuffer buffer) {
+    int length = buffer.getInt(16);
+    return new String(buffer.array(), 20, length, StandardCharsets.UTF_8);
+  }
+}
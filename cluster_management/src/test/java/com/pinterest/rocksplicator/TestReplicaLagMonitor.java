@@ -0,0 +1,131 @@
+package com.pinterest.rocksplicator;
+
+import org.apache.helix.model.ExternalView;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+public class TestReplicaLagMonitor {
+  private static final String MASTER = "host1_9090";
+  private static final String SLAVE = "host2_9090";
+
+  @Test
+  public void testHysteresis() {
+    FakeMonitor monitor = new FakeMonitor(100);
+    monitor.setExternalView(view("seg", 2));
+    monitor.setSeqNum(MASTER, 1000);
+
+    // within maxLag
+    monitor.setSeqNum(SLAVE, 950);
+    Assert.assertTrue(monitor.sample().isEmpty());
+    Assert.assertFalse(monitor.isLagging("seg_0", SLAVE));
+
+    // more than maxLag behind
+    monitor.setSeqNum(SLAVE, 850);
+    Assert.assertEquals(monitor.sample(), Collections.singleton("seg"));
+    Assert.assertTrue(monitor.isLagging("seg_0", SLAVE));
+    Assert.assertTrue(monitor.isLagging("seg_1", SLAVE));
+    Assert.assertFalse(monitor.isLagging("seg_0", MASTER));
+
+    // back within maxLag, but not within maxLag / 2 yet
+    monitor.setSeqNum(SLAVE, 920);
+    Assert.assertTrue(monitor.sample().isEmpty());
+    Assert.assertTrue(monitor.isLagging("seg_0", SLAVE));
+
+    // a replica which doesn't answer keeps its status
+    monitor.removeSeqNum(SLAVE);
+    Assert.assertTrue(monitor.sample().isEmpty());
+    Assert.assertTrue(monitor.isLagging("seg_0", SLAVE));
+
+    // caught up
+    monitor.setSeqNum(SLAVE, 960);
+    Assert.assertEquals(monitor.sample(), Collections.singleton("seg"));
+    Assert.assertFalse(monitor.isLagging("seg_0", SLAVE));
+  }
+
+  @Test
+  public void testOneCallPerHost() {
+    FakeMonitor monitor = new FakeMonitor(100);
+    monitor.setExternalView(view("seg", 2));
+    monitor.setExternalView(view("other", 1));
+    monitor.setSeqNum(MASTER, 1000);
+    monitor.setSeqNum(SLAVE, 1000);
+    monitor.sample();
+
+    Assert.assertEquals(monitor.sampled.keySet(), new HashSet<>(Arrays.asList(MASTER, SLAVE)));
+    for (List<String> dbNames : monitor.sampled.values()) {
+      Assert.assertEquals(new HashSet<>(dbNames),
+          new HashSet<>(Arrays.asList("seg00000", "seg00001", "other00000")));
+    }
+  }
+
+  @Test
+  public void testDroppedResource() {
+    FakeMonitor monitor = new FakeMonitor(100);
+    monitor.setExternalView(view("seg", 1));
+    monitor.setSeqNum(MASTER, 1000);
+    monitor.setSeqNum(SLAVE, 0);
+    Assert.assertEquals(monitor.sample(), Collections.singleton("seg"));
+    Assert.assertTrue(monitor.isLagging("seg_0", SLAVE));
+
+    // lagging replicas of resources no longer tracked are forgotten
+    monitor.retainResources(Collections.<String>emptyList());
+    Assert.assertEquals(monitor.sample(), Collections.singleton("seg"));
+    Assert.assertFalse(monitor.isLagging("seg_0", SLAVE));
+  }
+
+  // a resource with MASTER on one host and SLAVE on the other for every partition
+  private static ExternalView view(String resource, int numPartitions) {
+    ExternalView view = new ExternalView(resource);
+    for (int i = 0; i < numPartitions; ++i) {
+      Map<String, String> stateMap = new HashMap<>();
+      stateMap.put(MASTER, "MASTER");
+      stateMap.put(SLAVE, "SLAVE");
+      view.setStateMap(resource + "_" + i, stateMap);
+    }
+    return view;
+  }
+
+  // answers every DB of an instance with the same sequence number
+  private static final class FakeMonitor extends ReplicaLagMonitor {
+    private final Map<String, Long> instanceSeqNums = new HashMap<>();
+    private Map<String, List<String>> sampled = new HashMap<>();
+
+    private FakeMonitor(long maxLag) {
+      super(null, null, maxLag, 1000);
+    }
+
+    private void setSeqNum(String instance, long seqNum) {
+      instanceSeqNums.put(instance, seqNum);
+    }
+
+    private void removeSeqNum(String instance) {
+      instanceSeqNums.remove(instance);
+    }
+
+    @Override
+    Map<String, Map<String, Long>> getSequenceNumbers(
+        Map<String, List<String>> instanceToDbNames) {
+      sampled = instanceToDbNames;
+      Map<String, Map<String, Long>> seqNums = new HashMap<>();
+      for (Map.Entry<String, List<String>> entry : instanceToDbNames.entrySet()) {
+        Long seqNum = instanceSeqNums.get(entry.getKey());
+        if (seqNum == null) {
+          continue;
+        }
+        Map<String, Long> dbSeqNums = new HashMap<>();
+        for (String dbName : entry.getValue()) {
+          dbSeqNums.put(dbName, seqNum);
+        }
+        seqNums.put(entry.getKey(), dbSeqNums);
+      }
+      return seqNums;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package com.pinterest.rocksplicator;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestResourceSlotAssigner {
+
+  @Test
+  public void testSingleSlot() {
+    ResourceSlotAssigner assigner = new ResourceSlotAssigner(1);
+    Assert.assertEquals(assigner.getSlot("seg"), 0);
+    Assert.assertEquals(assigner.getSlot(""), 0);
+  }
+
+  @Test
+  public void testBalanced() {
+    ResourceSlotAssigner assigner = new ResourceSlotAssigner(4);
+    int[] counts = new int[4];
+    for (int i = 0; i < 10000; ++i) {
+      int slot = assigner.getSlot("resource" + i);
+      Assert.assertTrue(slot >= 0 && slot < 4);
+      ++counts[slot];
+      // stable across calls and instances
+      Assert.assertEquals(new ResourceSlotAssigner(4).getSlot("resource" + i), slot);
+    }
+
+    for (int count : counts) {
+      Assert.assertTrue(count > 1500, "Unbalanced slot with " + count + " resources");
+      Assert.assertTrue(count < 3500, "Unbalanced slot with " + count + " resources");
+    }
+  }
+
+  @Test
+  public void testAddSlot() {
+    ResourceSlotAssigner before = new ResourceSlotAssigner(4);
+    ResourceSlotAssigner after = new ResourceSlotAssigner(5);
+    int moved = 0;
+    for (int i = 0; i < 10000; ++i) {
+      int slot = after.getSlot("resource" + i);
+      if (slot != before.getSlot("resource" + i)) {
+        // resources only move to the new slot
+        Assert.assertEquals(slot, 4);
+        ++moved;
+      }
+    }
+    Assert.assertTrue(moved < 3000, moved + " resources moved");
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testInvalidSlots() {
+    new ResourceSlotAssigner(0);
+  }
+}
@@ -0,0 +1,147 @@
+package com.pinterest.rocksplicator;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+public class TestShardMapServer {
+  private static final long TIMEOUT_MS = 10000;
+
+  private ShardMapServer server;
+  private ExecutorService clients;
+
+  @BeforeMethod
+  public void setup() throws Exception {
+    server = new ShardMapServer(0);
+    clients = Executors.newCachedThreadPool();
+  }
+
+  @AfterMethod
+  public void cleanUp() {
+    clients.shutdownNow();
+    server.stop();
+  }
+
+  @Test
+  public void testConditionalGet() throws Exception {
+    ShardMapPublisher publisher = server.addShardMap("foo");
+
+    // nothing published yet
+    Assert.assertEquals(get("/shard_map/foo", null).getResponseCode(), 503);
+
+    Assert.assertTrue(publisher.publish(update(5, "{\"seg\": {}}")));
+    HttpURLConnection connection = get("/shard_map/foo", null);
+    Assert.assertEquals(connection.getResponseCode(), 200);
+    Assert.assertEquals(connection.getHeaderField("ETag"), "\"5\"");
+    Assert.assertEquals(connection.getHeaderField("X-Shard-Map-Generation"), "5");
+    Assert.assertEquals(read(connection.getInputStream()), "{\"seg\": {}}");
+
+    // unchanged since the ETag the client has
+    Assert.assertEquals(get("/shard_map/foo", "\"5\"").getResponseCode(), 304);
+    Assert.assertEquals(get("/shard_map/foo", "\"4\"").getResponseCode(), 200);
+
+    // gzipped on request
+    connection = get("/shard_map/foo", null);
+    connection.setRequestProperty("Accept-Encoding", "gzip");
+    Assert.assertEquals(connection.getResponseCode(), 200);
+    Assert.assertEquals(connection.getHeaderField("Content-Encoding"), "gzip");
+    Assert.assertEquals(read(new GZIPInputStream(connection.getInputStream())), "{\"seg\": {}}");
+  }
+
+  @Test
+  public void testLongPoll() throws Exception {
+    ShardMapPublisher publisher = server.addShardMap("foo");
+    Assert.assertTrue(publisher.publish(update(5, "{}")));
+
+    // a newer generation is answered right away
+    HttpURLConnection connection = get("/shard_map/foo?since=4", null);
+    Assert.assertEquals(connection.getResponseCode(), 200);
+    Assert.assertEquals(connection.getHeaderField("X-Shard-Map-Generation"), "5");
+
+    // no newer generation within the timeout
+    long startMs = System.currentTimeMillis();
+    Assert.assertEquals(get("/shard_map/foo?since=5&timeout_ms=200", null).getResponseCode(),
+        304);
+    Assert.assertTrue(System.currentTimeMillis() - startMs >= 200);
+
+    // held until the next generation is published
+    Future<HttpURLConnection> poll = clients.submit(new Callable<HttpURLConnection>() {
+      @Override
+      public HttpURLConnection call() throws Exception {
+        HttpURLConnection connection = get("/shard_map/foo?since=5&timeout_ms=60000", null);
+        connection.getResponseCode();
+        return connection;
+      }
+    });
+    Thread.sleep(200);
+    Assert.assertFalse(poll.isDone());
+    Assert.assertTrue(publisher.publish(update(6, "{\"seg\": {}}")));
+    connection = poll.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    Assert.assertEquals(connection.getResponseCode(), 200);
+    Assert.assertEquals(connection.getHeaderField("X-Shard-Map-Generation"), "6");
+    Assert.assertEquals(read(connection.getInputStream()), "{\"seg\": {}}");
+  }
+
+  @Test
+  public void testPaths() throws Exception {
+    server.addShardMap("foo").publish(update(1, "{}"));
+    server.addShardMap("bar/0").publish(update(2, "{}"));
+
+    Assert.assertEquals(get("/shard_map/foo", null).getResponseCode(), 200);
+    Assert.assertEquals(get("/shard_map/bar/0", null).getHeaderField("ETag"), "\"2\"");
+    // contexts match by prefix, but only the exact path is served
+    Assert.assertEquals(get("/shard_map/foobar", null).getResponseCode(), 404);
+    Assert.assertEquals(get("/shard_map/foo/0", null).getResponseCode(), 404);
+    // not added, e.g., on a standby spectator
+    Assert.assertEquals(get("/shard_map/baz", null).getResponseCode(), 404);
+  }
+
+  @Test
+  public void testMethods() throws Exception {
+    server.addShardMap("foo").publish(update(1, "{}"));
+
+    HttpURLConnection connection = get("/shard_map/foo", null);
+    connection.setRequestMethod("POST");
+    Assert.assertEquals(connection.getResponseCode(), 405);
+    Assert.assertEquals(get("/shard_map/foo?since=x", null).getResponseCode(), 400);
+  }
+
+  private HttpURLConnection get(String path, String ifNoneMatch) throws Exception {
+    URL url = new URL("http://localhost:" + server.getPort() + path);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setReadTimeout((int) TIMEOUT_MS);
+    if (ifNoneMatch != null) {
+      connection.setRequestProperty("If-None-Match", ifNoneMatch);
+    }
+    return connection;
+  }
+
+  private static ShardMapPublisher.Update update(long generation, String content) {
+    return new ShardMapPublisher.Update(generation, ShardMapPublisher.Update.ENCODING_JSON,
+        content, null, 0);
+  }
+
+  private static String read(InputStream input) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = input.read(buffer)) > 0) {
+      bytes.write(buffer, 0, n);
+    }
+    input.close();
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,215 @@
+package com.pinterest.rocksplicator;
+
+import org.apache.thrift.TException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestTransferScheduler {
+
+  @Test
+  public void testLimitMbs() {
+    // no budget, keep the requested limit
+    TransferScheduler scheduler = new TransferScheduler(4, 0);
+    Assert.assertEquals(scheduler.getLimitMbs(0, 1), 0);
+    Assert.assertEquals(scheduler.getLimitMbs(64, 4), 64);
+
+    // 100 MB/s shared by up to 4 transfers
+    scheduler = new TransferScheduler(4, 100);
+    Assert.assertEquals(scheduler.getLimitMbs(0, 1), 100);
+    Assert.assertEquals(scheduler.getLimitMbs(0, 2), 50);
+    Assert.assertEquals(scheduler.getLimitMbs(0, 4), 25);
+    Assert.assertEquals(scheduler.getLimitMbs(0, 100), 25);
+    Assert.assertEquals(scheduler.getLimitMbs(64, 1), 64);
+    Assert.assertEquals(scheduler.getLimitMbs(10, 4), 10);
+
+    // updated in place
+    scheduler.setLimits(2, 40);
+    Assert.assertEquals(scheduler.getLimitMbs(0, 4), 20);
+  }
+
+  @Test
+  public void testBudgetNeverExceeded() throws Exception {
+    final TransferScheduler scheduler = new TransferScheduler(4, 100);
+    final AtomicInteger usedMbs = new AtomicInteger(0);
+    final AtomicInteger maxUsedMbs = new AtomicInteger(0);
+    final List<Integer> limits = Collections.synchronizedList(new ArrayList<Integer>());
+
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; ++i) {
+      final String dbName = Utils.getDbName("a_" + String.valueOf(i));
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            scheduler.run(dbName, 0, new TransferScheduler.Transfer() {
+              @Override
+              public void run(int limitMbs) throws TException {
+                limits.add(limitMbs);
+                int used = usedMbs.addAndGet(limitMbs);
+                synchronized (maxUsedMbs) {
+                  maxUsedMbs.set(Math.max(maxUsedMbs.get(), used));
+                }
+                try {
+                  Thread.sleep(20);
+                } catch (InterruptedException e) {
+                  throw new TException(e);
+                }
+                usedMbs.addAndGet(-limitMbs);
+              }
+            });
+          } catch (TException e) {
+            Assert.fail("Unexpected exception", e);
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(limits.size(), 8);
+    Assert.assertTrue(maxUsedMbs.get() <= 100);
+    for (int limit : limits) {
+      Assert.assertTrue(limit > 0);
+    }
+
+    // a lone transfer gets the whole budget
+    final AtomicInteger loneLimit = new AtomicInteger(0);
+    scheduler.run(Utils.getDbName("b_0"), 0, new TransferScheduler.Transfer() {
+      @Override
+      public void run(int limitMbs) throws TException {
+        loneLimit.set(limitMbs);
+      }
+    });
+    Assert.assertEquals(loneLimit.get(), 100);
+  }
+
+  @Test
+  public void testResourceName() {
+    Assert.assertEquals(TransferScheduler.getResourceName("p2p100001"), "p2p");
+    Assert.assertEquals(TransferScheduler.getResourceName(Utils.getDbName("seg_12")), "seg");
+    Assert.assertEquals(TransferScheduler.getResourceName(Utils.getDbName("seg_123456")), "seg");
+    Assert.assertEquals(TransferScheduler.getResourceName("00001"), "00001");
+  }
+
+  @Test
+  public void testMaxConcurrency() throws Exception {
+    final TransferScheduler scheduler = new TransferScheduler(2, 0);
+    final AtomicInteger running = new AtomicInteger(0);
+    final AtomicInteger maxRunning = new AtomicInteger(0);
+    final AtomicInteger finished = new AtomicInteger(0);
+
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; ++i) {
+      final String dbName = Utils.getDbName((i % 2 == 0 ? "a" : "b") + "_" + String.valueOf(i));
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            scheduler.run(dbName, 0, new TransferScheduler.Transfer() {
+              @Override
+              public void run(int limitMbs) throws TException {
+                int n = running.incrementAndGet();
+                synchronized (maxRunning) {
+                  maxRunning.set(Math.max(maxRunning.get(), n));
+                }
+                try {
+                  Thread.sleep(50);
+                } catch (InterruptedException e) {
+                  throw new TException(e);
+                }
+                running.decrementAndGet();
+              }
+            });
+            finished.incrementAndGet();
+          } catch (TException e) {
+            Assert.fail("Unexpected exception", e);
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(finished.get(), 8);
+    Assert.assertEquals(maxRunning.get(), 2);
+  }
+
+  @Test
+  public void testRoundRobinAcrossResources() throws Exception {
+    final TransferScheduler scheduler = new TransferScheduler(1, 0);
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch blocking = new CountDownLatch(1);
+
+    // hold the only slot, so that the others queue up
+    Thread blocker = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          scheduler.run(Utils.getDbName("blocker_0"), 0, new TransferScheduler.Transfer() {
+            @Override
+            public void run(int limitMbs) throws TException {
+              started.countDown();
+              try {
+                blocking.await();
+              } catch (InterruptedException e) {
+                throw new TException(e);
+              }
+            }
+          });
+        } catch (TException e) {
+          Assert.fail("Unexpected exception", e);
+        }
+      }
+    });
+    blocker.start();
+    started.await();
+
+    // queue a_0, a_1, a_2, b_0, b_1 in this order
+    String[] partitions = {"a_0", "a_1", "a_2", "b_0", "b_1"};
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < partitions.length; ++i) {
+      final String partition = partitions[i];
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            scheduler.run(Utils.getDbName(partition), 0, new TransferScheduler.Transfer() {
+              @Override
+              public void run(int limitMbs) throws TException {
+                order.add(partition);
+              }
+            });
+          } catch (TException e) {
+            Assert.fail("Unexpected exception", e);
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+      while (scheduler.getNumWaiting() != i + 1) {
+        Thread.sleep(1);
+      }
+    }
+
+    blocking.countDown();
+    blocker.join();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(order, Arrays.asList("a_0", "b_0", "a_1", "b_1", "a_2"));
+  }
+}
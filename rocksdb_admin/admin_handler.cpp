@@ -19,7 +19,9 @@
 
 #include "rocksdb_admin/admin_handler.h"
 
+#include <algorithm>
 #include <chrono>
+#include <cinttypes>
 #include <memory>
 #include <mutex>
 #include <string>
@@ -27,6 +29,9 @@
 #include <unordered_set>
 #include <vector>
 
+#include <fcntl.h>
+#include <unistd.h>
+
 #include "boost/filesystem.hpp"
 #include "common/identical_name_thread_factory.h"
 #include "common/kafka/kafka_broker_file_watcher.h"
@@ -36,6 +41,7 @@
 #include "common/rocksdb_env_s3.h"
 #include "common/rocksdb_glogger/rocksdb_glogger.h"
 #include "common/stats/stats.h"
+#include "common/thrift_client_pool.h"
 #include "common/thrift_router.h"
 #include "common/timer.h"
 #include "common/timeutil.h"
@@ -47,6 +53,7 @@
 #include "librdkafka/rdkafkacpp.h"
 #include "rocksdb/env.h"
 #include "rocksdb/options.h"
+#include "rocksdb/rate_limiter.h"
 #include "rocksdb/utilities/backupable_db.h"
 #include "rocksdb/utilities/checkpoint.h"
 #include "rocksdb_admin/detail/kafka_broker_file_watcher_manager.h"
@@ -115,6 +122,23 @@ DEFINE_int32(checkpoint_backup_batch_num_upload, 1, "how many batches could be u
 
 DEFINE_int32(checkpoint_backup_batch_num_download, 1, "how many batches could be downloaded in paralell");
 
+DEFINE_int32(wait_for_seq_num_poll_interval_ms, 5,
+             "How often waitForSequenceNumber() rechecks the sequence number "
+             "of a db which is not replicated");
+
+DEFINE_int64(max_wait_for_seq_num_timeout_ms, 60000,
+             "The max timeout_ms honored by waitForSequenceNumber()");
+
+DEFINE_int32(peer_checkpoint_ttl_sec, 3600,
+             "Checkpoints created for peers are removed if not released "
+             "within this time");
+
+DEFINE_int32(max_checkpoint_chunk_bytes, 4 * 1024 * 1024,
+             "Max number of bytes returned by one readCheckpointFile call");
+
+DEFINE_int32(num_peer_admin_client_threads, 4,
+             "The number of IO threads for streaming checkpoints from peers");
+
 DEFINE_int32(num_s3_upload_download_threads, 8,
              "The number of threads for upload to/download from s3");
 
@@ -160,6 +184,9 @@ const std::string kHDFSBackupMs = "hdfs_backup_ms";
 const std::string kHDFSRestoreMs = "hdfs_restore_ms";
 const std::string kS3BackupMs = "s3_backup_ms";
 const std::string kS3RestoreMs = "s3_restore_ms";
+const std::string kPeerRestoreSuccess = "peer_restore_success";
+const std::string kPeerRestoreFailure = "peer_restore_failure";
+const std::string kPeerRestoreMs = "peer_restore_ms";
 
 int64_t GetMessageTimestampSecs(const RdKafka::Message& message) {
   const auto ts = message.timestamp();
@@ -389,6 +416,13 @@ CPUThreadPoolExecutor* S3UploadAndDownloadExecutor() {
   return &executor;
 }
 
+common::ThriftClientPool<admin::AdminAsyncClient>* PeerAdminClientPool() {
+  static common::ThriftClientPool<admin::AdminAsyncClient> pool(
+      FLAGS_num_peer_admin_client_threads);
+
+  return &pool;
+}
+
 }  // anonymous namespace
 
 namespace admin {
@@ -403,7 +437,8 @@ AdminHandler::AdminHandler(
   , s3_util_lock_()
   , meta_db_(OpenMetaDB())
   , allow_overlapping_keys_segments_()
-  , num_current_s3_sst_downloadings_(0) {
+  , num_current_s3_sst_downloadings_(0)
+  , next_checkpoint_seq_(0) {
   if (db_manager_ == nullptr) {
     db_manager_ = CreateDBBasedOnConfig(rocksdb_options_);
   }
@@ -1102,37 +1137,461 @@ void AdminHandler::async_tm_restoreDBFromS3(
   common::Stats::get()->Incr(kS3RestoreSuccess);
 }
 
-void AdminHandler::async_tm_checkDB(
+void AdminHandler::removeExpiredPeerCheckpoints() {
+  const auto expire_before_ms = common::timeutil::GetCurrentTimestamp() -
+    static_cast<int64_t>(FLAGS_peer_checkpoint_ttl_sec) * kMillisPerSec;
+  std::vector<std::string> expired_dirs;
+  {
+    std::lock_guard<std::mutex> guard(peer_checkpoints_lock_);
+    for (auto iter = peer_checkpoints_.begin();
+         iter != peer_checkpoints_.end();) {
+      if (iter->second.create_time_ms < expire_before_ms) {
+        LOG(ERROR) << "Remove expired checkpoint " << iter->first;
+        expired_dirs.push_back(std::move(iter->second.dir));
+        iter = peer_checkpoints_.erase(iter);
+      } else {
+        ++iter;
+      }
+    }
+  }
+
+  for (const auto& dir : expired_dirs) {
+    boost::system::error_code remove_err;
+    boost::filesystem::remove_all(dir, remove_err);
+  }
+}
+
+void AdminHandler::async_tm_createCheckpoint(
     std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
-      CheckDBResponse>>> callback,
-    std::unique_ptr<CheckDBRequest> request) {
+      CreateCheckpointResponse>>> callback,
+    std::unique_ptr<CreateCheckpointRequest> request) {
+  removeExpiredPeerCheckpoints();
+
+  auto ts = common::timeutil::GetCurrentTimestamp();
+  // unique even for checkpoints of the same db created in the same
+  // millisecond, as each one owns its dir and peer_checkpoints_ entry
+  auto checkpoint_id = folly::stringPrintf(
+      "%s_%" PRId64 "_%" PRIu64, request->db_name.c_str(), ts,
+      next_checkpoint_seq_.fetch_add(1));
+  auto parent_path = FLAGS_rocksdb_dir + "peer_tmp/";
+  // rocksdb creates the checkpoint dir itself, it must not exist
+  auto checkpoint_local_path = parent_path + checkpoint_id;
+  boost::system::error_code create_err;
+  boost::filesystem::create_directories(parent_path, create_err);
+  if (create_err) {
+    SetException("Cannot create dir for checkpoint: " + parent_path,
+                 AdminErrorCode::DB_ADMIN_ERROR, &callback);
+    return;
+  }
+  // the directory is removed on failure, or handed over to peer_checkpoints_
+  bool registered = false;
+  SCOPE_EXIT {
+    if (!registered) {
+      boost::system::error_code remove_err;
+      boost::filesystem::remove_all(checkpoint_local_path, remove_err);
+    }
+  };
+
+  CreateCheckpointResponse response;
+  {
+    db_admin_lock_.Lock(request->db_name);
+    SCOPE_EXIT { db_admin_lock_.Unlock(request->db_name); };
+
+    AdminException e;
+    auto db = getDB(request->db_name, &e);
+    if (db == nullptr) {
+      callback.release()->exceptionInThread(std::move(e));
+      return;
+    }
+
+    rocksdb::Checkpoint* checkpoint;
+    auto status = rocksdb::Checkpoint::Create(db->rocksdb(), &checkpoint);
+    if (!OKOrSetException(status, AdminErrorCode::DB_ADMIN_ERROR, &callback)) {
+      LOG(ERROR) << "Error happened when trying to initialize checkpoint: "
+                 << status.ToString();
+      return;
+    }
+    std::unique_ptr<rocksdb::Checkpoint> checkpoint_holder(checkpoint);
+
+    // read before the checkpoint is created, so the checkpoint contains at
+    // least all updates up to it
+    response.seq_num = db->rocksdb()->GetLatestSequenceNumber();
+    status = checkpoint->CreateCheckpoint(checkpoint_local_path);
+    if (!OKOrSetException(status, AdminErrorCode::DB_ADMIN_ERROR, &callback)) {
+      LOG(ERROR) << "Error happened when trying to create checkpoint: "
+                 << status.ToString();
+      return;
+    }
+  }
+
+  std::vector<std::string> checkpoint_files;
+  auto status = rocksdb::Env::Default()->GetChildren(checkpoint_local_path,
+                                                     &checkpoint_files);
+  if (!OKOrSetException(status, AdminErrorCode::DB_ADMIN_ERROR, &callback)) {
+    LOG(ERROR) << "Error happened when trying to list files in the checkpoint: "
+               << status.ToString();
+    return;
+  }
+
+  PeerCheckpoint peer_checkpoint;
+  peer_checkpoint.dir = ensure_ends_with_pathsep(checkpoint_local_path);
+  peer_checkpoint.create_time_ms = ts;
+  for (const auto& file : checkpoint_files) {
+    if (file == "." || file == "..") {
+      continue;
+    }
+
+    uint64_t file_size;
+    status = rocksdb::Env::Default()->GetFileSize(peer_checkpoint.dir + file,
+                                                  &file_size);
+    if (!OKOrSetException(status, AdminErrorCode::DB_ADMIN_ERROR, &callback)) {
+      return;
+    }
+
+    CheckpointFile checkpoint_file;
+    checkpoint_file.file_name = file;
+    checkpoint_file.file_size = file_size;
+    response.files.push_back(std::move(checkpoint_file));
+    peer_checkpoint.files[file] = file_size;
+  }
+
+  response.checkpoint_id = checkpoint_id;
+  {
+    std::lock_guard<std::mutex> guard(peer_checkpoints_lock_);
+    peer_checkpoints_[checkpoint_id] = std::move(peer_checkpoint);
+  }
+  registered = true;
+
+  LOG(INFO) << "Created checkpoint " << checkpoint_id << " with "
+            << response.files.size() << " files for peer";
+  callback->result(response);
+}
+
+void AdminHandler::async_tm_readCheckpointFile(
+    std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
+      ReadCheckpointFileResponse>>> callback,
+    std::unique_ptr<ReadCheckpointFileRequest> request) {
+  if (request->offset < 0 || request->length < 0) {
+    SetException("Invalid offset or length", AdminErrorCode::DB_ADMIN_ERROR,
+                 &callback);
+    return;
+  }
+
+  // only files listed in the checkpoint can be read
+  std::string path;
+  {
+    std::lock_guard<std::mutex> guard(peer_checkpoints_lock_);
+    auto iter = peer_checkpoints_.find(request->checkpoint_id);
+    if (iter == peer_checkpoints_.end()) {
+      SetException("Checkpoint not found: " + request->checkpoint_id,
+                   AdminErrorCode::DB_NOT_FOUND, &callback);
+      return;
+    }
+
+    if (iter->second.files.count(request->file_name) == 0) {
+      SetException("File not found in checkpoint: " + request->file_name,
+                   AdminErrorCode::DB_ADMIN_ERROR, &callback);
+      return;
+    }
+    path = iter->second.dir + request->file_name;
+  }
+
+  int fd = ::open(path.c_str(), O_RDONLY);
+  if (fd < 0) {
+    SetException("Failed to open " + path, AdminErrorCode::DB_ADMIN_ERROR,
+                 &callback);
+    return;
+  }
+  SCOPE_EXIT { ::close(fd); };
+
+  ReadCheckpointFileResponse response;
+  response.data.resize(std::min(request->length,
+                                FLAGS_max_checkpoint_chunk_bytes));
+  auto n = folly::preadFull(fd, &response.data[0], response.data.size(),
+                            request->offset);
+  if (n < 0) {
+    SetException("Failed to read " + path, AdminErrorCode::DB_ADMIN_ERROR,
+                 &callback);
+    return;
+  }
+  response.data.resize(n);
+
+  callback->result(response);
+}
+
+void AdminHandler::async_tm_releaseCheckpoint(
+    std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
+      ReleaseCheckpointResponse>>> callback,
+    std::unique_ptr<ReleaseCheckpointRequest> request) {
+  std::string dir;
+  {
+    std::lock_guard<std::mutex> guard(peer_checkpoints_lock_);
+    auto iter = peer_checkpoints_.find(request->checkpoint_id);
+    if (iter != peer_checkpoints_.end()) {
+      dir = std::move(iter->second.dir);
+      peer_checkpoints_.erase(iter);
+    }
+  }
+
+  if (!dir.empty()) {
+    boost::system::error_code remove_err;
+    boost::filesystem::remove_all(dir, remove_err);
+  }
+
+  callback->result(ReleaseCheckpointResponse());
+}
+
+bool AdminHandler::restoreDBFromPeerHelper(
+    const std::string& db_name,
+    const std::string& peer_ip,
+    const uint16_t peer_port,
+    std::unique_ptr<folly::SocketAddress> upstream_addr,
+    const uint32_t restore_rate_limit,
+    AdminException* e) {
+  db_admin_lock_.Lock(db_name);
+  SCOPE_EXIT { db_admin_lock_.Unlock(db_name); };
+
+  auto db = db_manager_->getDB(db_name, nullptr);
+  if (db) {
+    e->errorCode = AdminErrorCode::DB_EXIST;
+    e->message = "Could not restore an opened DB, close it first";
+    return false;
+  }
+
+  auto client = PeerAdminClientPool()->getClient(peer_ip, peer_port);
+  if (client == nullptr) {
+    e->errorCode = AdminErrorCode::DB_ADMIN_ERROR;
+    e->message = folly::stringPrintf("Failed to connect to peer %s:%d",
+                                     peer_ip.c_str(), peer_port);
+    return false;
+  }
+
+  CreateCheckpointResponse checkpoint;
+  try {
+    CreateCheckpointRequest req;
+    req.db_name = db_name;
+    checkpoint = client->future_createCheckpoint(req).get();
+  } catch (const AdminException& ex) {
+    *e = ex;
+    return false;
+  } catch (const std::exception& ex) {
+    e->errorCode = AdminErrorCode::DB_ADMIN_ERROR;
+    e->message = ex.what();
+    return false;
+  }
+
+  SCOPE_EXIT {
+    // best effort, the peer removes it anyway once it expires
+    try {
+      ReleaseCheckpointRequest req;
+      req.checkpoint_id = checkpoint.checkpoint_id;
+      client->future_releaseCheckpoint(req).get();
+    } catch (const std::exception& ex) {
+      LOG(ERROR) << "Failed to release checkpoint " << checkpoint.checkpoint_id
+                 << " on " << peer_ip << ": " << ex.what();
+    }
+  };
+
+  auto db_path = ensure_ends_with_pathsep(FLAGS_rocksdb_dir + db_name);
+  boost::system::error_code remove_err;
+  boost::system::error_code create_err;
+  boost::filesystem::remove_all(db_path, remove_err);
+  boost::filesystem::create_directories(db_path, create_err);
+  if (remove_err || create_err) {
+    e->errorCode = AdminErrorCode::DB_ADMIN_ERROR;
+    e->message = "Cannot remove/create dir for restore: " + db_path;
+    return false;
+  }
+
+  std::unique_ptr<rocksdb::RateLimiter> rate_limiter;
+  if (restore_rate_limit > 0) {
+    rate_limiter.reset(rocksdb::NewGenericRateLimiter(
+        static_cast<int64_t>(restore_rate_limit) * kMB));
+  }
+
+  LOG(INFO) << "Streaming " << checkpoint.files.size() << " files of "
+            << db_name << " from " << peer_ip << " at seq # "
+            << checkpoint.seq_num;
+  for (const auto& file : checkpoint.files) {
+    auto local_file = db_path + file.file_name;
+    int fd = ::open(local_file.c_str(), O_WRONLY | O_CREAT | O_TRUNC, 0644);
+    if (fd < 0) {
+      e->errorCode = AdminErrorCode::DB_ADMIN_ERROR;
+      e->message = "Failed to create " + local_file;
+      return false;
+    }
+    SCOPE_EXIT { ::close(fd); };
+
+    int64_t offset = 0;
+    while (offset < file.file_size) {
+      ReadCheckpointFileRequest req;
+      req.checkpoint_id = checkpoint.checkpoint_id;
+      req.file_name = file.file_name;
+      req.offset = offset;
+      req.length = static_cast<int32_t>(std::min<int64_t>(
+            file.file_size - offset, FLAGS_max_checkpoint_chunk_bytes));
+
+      ReadCheckpointFileResponse res;
+      try {
+        res = client->future_readCheckpointFile(req).get();
+      } catch (const AdminException& ex) {
+        *e = ex;
+        return false;
+      } catch (const std::exception& ex) {
+        e->errorCode = AdminErrorCode::DB_ADMIN_ERROR;
+        e->message = ex.what();
+        return false;
+      }
+
+      if (res.data.empty()) {
+        e->errorCode = AdminErrorCode::DB_ADMIN_ERROR;
+        e->message = "Unexpected end of " + file.file_name + " from peer";
+        return false;
+      }
+
+      if (rate_limiter) {
+        // a single request can't exceed the burst size of the limiter
+        int64_t bytes = res.data.size();
+        while (bytes > 0) {
+          auto n = std::min(bytes, rate_limiter->GetSingleBurstBytes());
+          rate_limiter->Request(n, rocksdb::Env::IO_HIGH);
+          bytes -= n;
+        }
+      }
+
+      if (folly::writeFull(fd, res.data.data(), res.data.size()) < 0) {
+        e->errorCode = AdminErrorCode::DB_ADMIN_ERROR;
+        e->message = "Failed to write " + local_file;
+        return false;
+      }
+      offset += res.data.size();
+    }
+
+    if (::fsync(fd) != 0) {
+      e->errorCode = AdminErrorCode::DB_ADMIN_ERROR;
+      e->message = "Failed to sync " + local_file;
+      return false;
+    }
+  }
+
+  rocksdb::DB* rocksdb_db;
+  auto segment = admin::DbNameToSegment(db_name);
+  auto status = rocksdb::DB::Open(rocksdb_options_(segment), db_path,
+                                  &rocksdb_db);
+  if (!status.ok()) {
+    e->errorCode = AdminErrorCode::DB_ERROR;
+    e->message = status.ToString();
+    return false;
+  }
+
+  std::string err_msg;
+  if (!db_manager_->addDB(db_name,
+                          std::unique_ptr<rocksdb::DB>(rocksdb_db),
+                          replicator::DBRole::SLAVE,
+                          std::move(upstream_addr), &err_msg)) {
+    e->errorCode = AdminErrorCode::DB_ADMIN_ERROR;
+    e->message = std::move(err_msg);
+    return false;
+  }
+  return true;
+}
+
+void AdminHandler::async_tm_restoreDBFromPeer(
+    std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
+      RestoreDBFromPeerResponse>>> callback,
+    std::unique_ptr<RestoreDBFromPeerRequest> request) {
+  auto upstream_addr = std::make_unique<folly::SocketAddress>();
+  if (!SetAddressOrException(request->upstream_ip,
+                             FLAGS_rocksdb_replicator_port,
+                             upstream_addr.get(),
+                             &callback)) {
+    common::Stats::get()->Incr(kPeerRestoreFailure);
+    return;
+  }
+
+  common::Timer timer(kPeerRestoreMs);
+  LOG(INFO) << "Peer Restore " << request->db_name << " from "
+            << request->peer_ip << ":" << request->peer_port;
   AdminException e;
-  auto db = getDB(request->db_name, &e);
-  if (db == nullptr) {
+  if (!restoreDBFromPeerHelper(request->db_name,
+                               request->peer_ip,
+                               request->peer_port,
+                               std::move(upstream_addr),
+                               std::max(request->limit_mbs, 0),
+                               &e)) {
+    LOG(ERROR) << "Peer Restore failed: " << e.message;
     callback.release()->exceptionInThread(std::move(e));
+    common::Stats::get()->Incr(kPeerRestoreFailure);
     return;
   }
 
-  CheckDBResponse response;
-  response.set_seq_num(db->rocksdb()->GetLatestSequenceNumber());
-  response.set_wal_ttl_seconds(db->rocksdb()->GetOptions().WAL_ttl_seconds);
-  response.set_is_master(!db->IsSlave());
+  LOG(INFO) << "Peer Restore is done.";
+  common::Stats::get()->Incr(kPeerRestoreSuccess);
+  callback->result(RestoreDBFromPeerResponse());
+}
+
+bool AdminHandler::checkDBHelper(const std::string& db_name,
+                                 CheckDBResponse* response,
+                                 AdminException* ex) {
+  auto db = getDB(db_name, ex);
+  if (db == nullptr) {
+    return false;
+  }
+
+  response->set_seq_num(db->rocksdb()->GetLatestSequenceNumber());
+  response->set_wal_ttl_seconds(db->rocksdb()->GetOptions().WAL_ttl_seconds);
+  response->set_is_master(!db->IsSlave());
 
   // If there is at least one update
-  if (response.seq_num != 0) {
+  if (response->seq_num != 0) {
     std::unique_ptr<rocksdb::TransactionLogIterator> iter;
-    auto status = db->rocksdb()->GetUpdatesSince(response.seq_num, &iter);
+    auto status = db->rocksdb()->GetUpdatesSince(response->seq_num, &iter);
 
     if (status.ok() && iter && iter->Valid()) {
       auto batch = iter->GetBatch();
       replicator::LogExtractor extractor;
       status = batch.writeBatchPtr->Iterate(&extractor);
       if (status.ok()) {
-        response.set_last_update_timestamp_ms(extractor.ms);
+        response->set_last_update_timestamp_ms(extractor.ms);
       }
     }
   }
 
+  return true;
+}
+
+void AdminHandler::async_tm_checkDB(
+    std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
+      CheckDBResponse>>> callback,
+    std::unique_ptr<CheckDBRequest> request) {
+  AdminException e;
+  CheckDBResponse response;
+  if (!checkDBHelper(request->db_name, &response, &e)) {
+    callback.release()->exceptionInThread(std::move(e));
+    return;
+  }
+
+  callback->result(response);
+}
+
+void AdminHandler::async_tm_checkDBs(
+    std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
+      CheckDBsResponse>>> callback,
+    std::unique_ptr<CheckDBsRequest> request) {
+  CheckDBsResponse response;
+  for (const auto& db_name : request->db_names) {
+    AdminException e;
+    CheckDBResponse db_status;
+    if (checkDBHelper(db_name, &db_status, &e)) {
+      response.db_status[db_name] = std::move(db_status);
+    } else {
+      AdminError error;
+      error.message = std::move(e.message);
+      error.errorCode = e.errorCode;
+      response.errors[db_name] = std::move(error);
+    }
+  }
+
   callback->result(response);
 }
 
@@ -1152,6 +1611,27 @@ void AdminHandler::async_tm_closeDB(
   callback->result(CloseDBResponse());
 }
 
+void AdminHandler::async_tm_closeDBs(
+    std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
+      CloseDBsResponse>>> callback,
+    std::unique_ptr<CloseDBsRequest> request) {
+  CloseDBsResponse response;
+  for (const auto& db_name : request->db_names) {
+    db_admin_lock_.Lock(db_name);
+    SCOPE_EXIT { db_admin_lock_.Unlock(db_name); };
+
+    AdminException e;
+    if (removeDB(db_name, &e) == nullptr) {
+      AdminError error;
+      error.message = std::move(e.message);
+      error.errorCode = e.errorCode;
+      response.errors[db_name] = std::move(error);
+    }
+  }
+
+  callback->result(response);
+}
+
 void AdminHandler::async_tm_changeDBRoleAndUpStream(
     std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
       ChangeDBRoleAndUpstreamResponse>>> callback,
@@ -1219,6 +1699,115 @@ void AdminHandler::async_tm_getSequenceNumber(
   callback->result(response);
 }
 
+void AdminHandler::async_tm_getSequenceNumbers(
+    std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
+      GetSequenceNumbersResponse>>> callback,
+    std::unique_ptr<GetSequenceNumbersRequest> request) {
+  GetSequenceNumbersResponse response;
+  for (const auto& db_name : request->db_names) {
+    AdminException e;
+    auto db = getDB(db_name, &e);
+    if (db == nullptr) {
+      AdminError error;
+      error.message = std::move(e.message);
+      error.errorCode = e.errorCode;
+      response.errors[db_name] = std::move(error);
+      continue;
+    }
+
+    response.seq_nums[db_name] = db->rocksdb()->GetLatestSequenceNumber();
+  }
+
+  callback->result(response);
+}
+
+namespace {
+
+using WaitForSequenceNumberCallback = apache::thrift::HandlerCallback<
+  std::unique_ptr<WaitForSequenceNumberResponse>>;
+
+// Complete callback once the db reaches target_seq_num or deadline passes. In
+// between, the callback is parked on the replicator and rechecked whenever an
+// update is applied to the db, so no thread is held while waiting.
+void waitForSequenceNumberHelper(
+    std::unique_ptr<WaitForSequenceNumberCallback> callback,
+    std::weak_ptr<ApplicationDB> weak_db,
+    const int64_t target_seq_num,
+    const std::chrono::steady_clock::time_point deadline) {
+  WaitForSequenceNumberResponse response;
+  {
+    // Don't capture the db in the parked callback. Otherwise closing the db or
+    // changing its role would be blocked until we return.
+    auto db = weak_db.lock();
+    if (db == nullptr) {
+      AdminException e;
+      e.errorCode = AdminErrorCode::DB_NOT_FOUND;
+      e.message = "db has been closed while waiting for sequence number";
+      callback.release()->exceptionInThread(std::move(e));
+      return;
+    }
+
+    response.seq_num = static_cast<int64_t>(
+      db->rocksdb()->GetLatestSequenceNumber());
+    response.reached = response.seq_num >= target_seq_num;
+    const auto now = std::chrono::steady_clock::now();
+    if (response.reached || now >= deadline) {
+      callback->result(response);
+      return;
+    }
+
+    const auto remaining_ms = std::chrono::duration_cast<
+      std::chrono::milliseconds>(deadline - now).count() + 1;
+    auto eb = callback->getEventBase();
+    auto moved_callback = folly::makeMoveWrapper(std::move(callback));
+    auto recheck = [moved_callback, weak_db, target_seq_num, deadline]
+      () mutable {
+      waitForSequenceNumberHelper(std::move(*moved_callback),
+                                  std::move(weak_db), target_seq_num, deadline);
+    };
+
+    if (db->IsReplicated()) {
+      db->RunOnUpdateOrTimeout(
+        std::move(recheck),
+        static_cast<rocksdb::SequenceNumber>(target_seq_num),
+        remaining_ms);
+      return;
+    }
+
+    // The db is not replicated, so no update notification is available.
+    // Recheck on the event base timer instead, still without holding a thread.
+    eb->runInEventBaseThread(
+      [eb, recheck = std::move(recheck), remaining_ms] () mutable {
+        eb->runAfterDelay(
+          std::move(recheck),
+          std::min<int64_t>(remaining_ms,
+                            FLAGS_wait_for_seq_num_poll_interval_ms));
+      });
+  }
+}
+
+}  // anonymous namespace
+
+void AdminHandler::async_tm_waitForSequenceNumber(
+    std::unique_ptr<WaitForSequenceNumberCallback> callback,
+    std::unique_ptr<WaitForSequenceNumberRequest> request) {
+  const auto timeout_ms = std::min<int64_t>(
+      std::max<int64_t>(request->timeout_ms, 0),
+      FLAGS_max_wait_for_seq_num_timeout_ms);
+  const auto deadline = std::chrono::steady_clock::now() +
+    std::chrono::milliseconds(timeout_ms);
+
+  AdminException e;
+  auto db = getDB(request->db_name, &e);
+  if (db == nullptr) {
+    callback.release()->exceptionInThread(std::move(e));
+    return;
+  }
+
+  waitForSequenceNumberHelper(std::move(callback), db, request->target_seq_num,
+                              deadline);
+}
+
 void AdminHandler::async_tm_clearDB(
     std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
       ClearDBResponse>>> callback,
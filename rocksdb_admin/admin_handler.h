@@ -23,6 +23,7 @@
 #include <memory>
 #include <mutex>
 #include <string>
+#include <unordered_map>
 #include <unordered_set>
 
 #include "common/object_lock.h"
@@ -81,16 +82,46 @@ class AdminHandler : virtual public AdminSvIf {
         RestoreDBFromS3Response>>> callback,
       std::unique_ptr<RestoreDBFromS3Request> request) override;
 
+  void async_tm_createCheckpoint(
+      std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
+        CreateCheckpointResponse>>> callback,
+      std::unique_ptr<CreateCheckpointRequest> request) override;
+
+  void async_tm_readCheckpointFile(
+      std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
+        ReadCheckpointFileResponse>>> callback,
+      std::unique_ptr<ReadCheckpointFileRequest> request) override;
+
+  void async_tm_releaseCheckpoint(
+      std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
+        ReleaseCheckpointResponse>>> callback,
+      std::unique_ptr<ReleaseCheckpointRequest> request) override;
+
+  void async_tm_restoreDBFromPeer(
+      std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
+        RestoreDBFromPeerResponse>>> callback,
+      std::unique_ptr<RestoreDBFromPeerRequest> request) override;
+
   void async_tm_checkDB(
       std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
           CheckDBResponse>>> callback,
       std::unique_ptr<CheckDBRequest> request) override;
 
+  void async_tm_checkDBs(
+      std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
+          CheckDBsResponse>>> callback,
+      std::unique_ptr<CheckDBsRequest> request) override;
+
   void async_tm_closeDB(
       std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
         CloseDBResponse>>> callback,
       std::unique_ptr<CloseDBRequest> request) override;
 
+  void async_tm_closeDBs(
+      std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
+        CloseDBsResponse>>> callback,
+      std::unique_ptr<CloseDBsRequest> request) override;
+
   void async_tm_changeDBRoleAndUpStream(
       std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
         ChangeDBRoleAndUpstreamResponse>>> callback,
@@ -102,6 +133,16 @@ class AdminHandler : virtual public AdminSvIf {
         GetSequenceNumberResponse>>> callback,
       std::unique_ptr<GetSequenceNumberRequest> request) override;
 
+  void async_tm_getSequenceNumbers(
+      std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
+        GetSequenceNumbersResponse>>> callback,
+      std::unique_ptr<GetSequenceNumbersRequest> request) override;
+
+  void async_tm_waitForSequenceNumber(
+      std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
+        WaitForSequenceNumberResponse>>> callback,
+      std::unique_ptr<WaitForSequenceNumberRequest> request) override;
+
   void async_tm_clearDB(
       std::unique_ptr<apache::thrift::HandlerCallback<std::unique_ptr<
         ClearDBResponse>>> callback,
@@ -148,6 +189,12 @@ class AdminHandler : virtual public AdminSvIf {
   common::ObjectLock<std::string> db_admin_lock_;
 
  private:
+  // Fill the status of db_name into response, return false if the db is not
+  // found
+  bool checkDBHelper(const std::string& db_name,
+                     CheckDBResponse* response,
+                     AdminException* ex);
+
   std::unique_ptr<rocksdb::DB> removeDB(const std::string& db_name,
                                         AdminException* ex);
 
@@ -172,6 +219,20 @@ class AdminHandler : virtual public AdminSvIf {
   std::atomic<int> num_current_s3_sst_downloadings_;
   // number of the current concurrenty s3 uploadings
   std::atomic<int> num_current_s3_sst_uploadings_;
+  // A checkpoint created for peers to stream from
+  struct PeerCheckpoint {
+    std::string dir;
+    // file name -> file size
+    std::unordered_map<std::string, int64_t> files;
+    int64_t create_time_ms;
+  };
+  // Map of checkpoint_id to checkpoints which haven't been released yet
+  std::unordered_map<std::string, PeerCheckpoint> peer_checkpoints_;
+  // Lock for synchronizing access to peer_checkpoints_
+  std::mutex peer_checkpoints_lock_;
+  // Sequence number appended to checkpoint ids to keep them unique
+  std::atomic<uint64_t> next_checkpoint_seq_;
+
   // Map of db_name to kafka watcher
   std::unordered_map<std::string, std::shared_ptr<KafkaWatcher>>
     kafka_watcher_map_;
@@ -193,6 +254,18 @@ class AdminHandler : virtual public AdminSvIf {
                        const uint32_t restore_rate_limit,
                        AdminException* e);
 
+  // Stream a checkpoint of db_name from the peer admin server into the local
+  // db dir, and open it as SLAVE of upstream_addr
+  bool restoreDBFromPeerHelper(const std::string& db_name,
+                               const std::string& peer_ip,
+                               const uint16_t peer_port,
+                               std::unique_ptr<folly::SocketAddress> upstream_addr,
+                               const uint32_t restore_rate_limit,
+                               AdminException* e);
+
+  // Remove checkpoints which have not been released in time
+  void removeExpiredPeerCheckpoints();
+
   std::shared_ptr<common::S3Util> createLocalS3Util(const uint32_t read_ratelimit_mb = 50,
                                                     const std::string& bucket = "");
 };
@@ -18,6 +18,7 @@
 #include <string>
 
 #include "folly/SocketAddress.h"
+#include "glog/logging.h"
 #include "rocksdb/db.h"
 #include "rocksdb/options.h"
 #include "rocksdb/write_batch.h"
@@ -90,6 +91,27 @@ class ApplicationDB {
                                const rocksdb::Slice* begin,
                                const rocksdb::Slice* end);
 
+  // Run f() in the replicator executor once the latest sequence number reaches
+  // seq_no, after the next update is applied to this db, or timeout_ms later,
+  // whichever comes first. The next update may not reach seq_no yet, so f()
+  // should recheck the sequence number.
+  // f:          (IN) callback to run exactly once
+  // seq_no:     (IN) sequence number to wait for
+  // timeout_ms: (IN) max time to wait for an update
+  //
+  // Must only be called if IsReplicated(), otherwise there is no update
+  // notification to wait for
+  template <typename Func>
+  void RunOnUpdateOrTimeout(Func f,
+                            rocksdb::SequenceNumber seq_no,
+                            uint64_t timeout_ms) {
+    CHECK(replicated_db_ != nullptr) << db_name_ << " is not replicated";
+    replicated_db_->runOnUpdateOrTimeout(std::move(f), seq_no, timeout_ms);
+  }
+
+  // Whether updates to this db go through the replicator
+  bool IsReplicated() const { return replicated_db_ != nullptr; }
+
   // Whether this db instance is slave
   bool IsSlave() const { return role_ == replicator::DBRole::SLAVE; }
 
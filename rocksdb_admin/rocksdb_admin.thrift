@@ -40,6 +40,12 @@ exception AdminException {
   2: required AdminErrorCode errorCode,
 }
 
+# per db error returned by batch requests
+struct AdminError {
+  1: required string message,
+  2: required AdminErrorCode errorCode,
+}
+
 struct AddDBRequest {
   # the db to add. the db is added as slave, so upstream_ip must be provided
   # if the db exists already, a DB_EXIST error is thrown
@@ -117,6 +123,64 @@ struct RestoreDBFromS3Response {
   # for future use
 }
 
+struct CheckpointFile {
+  # file name relative to the checkpoint directory
+  1: required string file_name,
+  2: required i64 file_size,
+}
+
+struct CreateCheckpointRequest {
+  # the db to create a checkpoint for
+  1: required string db_name,
+}
+
+struct CreateCheckpointResponse {
+  # used to read files of the checkpoint, valid until it is released or
+  # expires
+  1: required string checkpoint_id,
+  2: required list<CheckpointFile> files,
+  # the seq # of the db when the checkpoint was created
+  3: required i64 seq_num,
+}
+
+struct ReadCheckpointFileRequest {
+  1: required string checkpoint_id,
+  2: required string file_name,
+  3: required i64 offset,
+  # max number of bytes to read, capped by the server
+  4: required i32 length,
+}
+
+struct ReadCheckpointFileResponse {
+  # empty if offset is at or beyond the end of the file
+  1: required binary data,
+}
+
+struct ReleaseCheckpointRequest {
+  1: required string checkpoint_id,
+}
+
+struct ReleaseCheckpointResponse {
+  # for future use
+}
+
+struct RestoreDBFromPeerRequest {
+  # the db to be restored
+  1: required string db_name,
+  # the admin server to stream a checkpoint of the db from
+  2: required string peer_ip,
+  3: required i16 peer_port,
+  # where to pull update from after restoring
+  4: required string upstream_ip,
+  5: required i16 upstream_port,
+  # rate limit in MB/S, a non positive value means no limit
+  6: optional i32 limit_mbs = 0,
+}
+
+struct RestoreDBFromPeerResponse {
+  # for future use
+}
+
 struct CloseDBRequest {
   # the db to close
   1: required string db_name,
@@ -142,6 +206,28 @@ struct CheckDBResponse {
   4: optional bool is_master = false,
 }
 
+struct CheckDBsRequest {
+  # the DBs to check
+  1: required list<string> db_names,
+}
+
+struct CheckDBsResponse {
+  # status of the DBs which were checked successfully
+  1: required map<string, CheckDBResponse> db_status,
+  # errors of the DBs which couldn't be checked, e.g., DB_NOT_FOUND
+  2: required map<string, AdminError> errors,
+}
+
+struct CloseDBsRequest {
+  # the DBs to close
+  1: required list<string> db_names,
+}
+
+struct CloseDBsResponse {
+  # errors of the DBs which couldn't be closed, e.g., DB_NOT_FOUND
+  1: required map<string, AdminError> errors,
+}
+
 struct ChangeDBRoleAndUpstreamRequest {
   # the db to change
   1: required string db_name,
@@ -165,6 +251,34 @@ struct GetSequenceNumberResponse {
   1: required i64 seq_num,
 }
 
+struct GetSequenceNumbersRequest {
+  # the DBs to get sequence numbers for
+  1: required list<string> db_names,
+}
+
+struct GetSequenceNumbersResponse {
+  # sequence numbers of the DBs found on the host
+  1: required map<string, i64> seq_nums,
+  # errors of the DBs which couldn't be read, e.g., DB_NOT_FOUND
+  2: required map<string, AdminError> errors,
+}
+
+struct WaitForSequenceNumberRequest {
+  # the db to wait for
+  1: required string db_name,
+  # return as soon as the latest sequence number of the db reaches this value
+  2: required i64 target_seq_num,
+  # the max time to wait, the server may cap it to a smaller value
+  3: optional i64 timeout_ms = 10000,
+}
+
+struct WaitForSequenceNumberResponse {
+  # the latest sequence number of the db when the call returns
+  1: required i64 seq_num,
+  # if target_seq_num was reached before timing out
+  2: required bool reached,
+}
+
 struct ClearDBRequest {
   1: required string db_name,
   2: optional bool reopen_db = true,
@@ -237,6 +351,36 @@ struct CompactDBResponse {
   # for future use
 }
 
+# Compact encoding of the shard map published by the cluster_management
+# ConfigGenerator. Every "ip:port:az_pg" host string is stored once in
+# ShardMap.hosts and referred to by its index. A replica is encoded as
+# (shard_id << 2 | role), where role is ShardMapRole.
+enum ShardMapRole {
+  ONLINE = 0,
+  SLAVE = 1,
+  MASTER = 2,
+}
+
+struct ShardMapHostReplicas {
+  # index into ShardMap.hosts
+  1: required i32 host_id,
+  2: required list<i32> replicas,
+}
+
+struct ShardMapResource {
+  1: required string name,
+  2: required i32 num_shards,
+  3: required list<ShardMapHostReplicas> hosts,
+}
+
+struct ShardMap {
+  1: required list<string> hosts,
+  2: required list<ShardMapResource> resources,
+  3: optional i64 generation,
+  # only set for a delta against a previous generation
+  4: optional list<string> removed_resources,
+}
+
 service Admin {
 
 /*
@@ -277,18 +421,60 @@ RestoreDBResponse restoreDB(1:RestoreDBRequest request)
  RestoreDBFromS3Response restoreDBFromS3(1:RestoreDBFromS3Request request)
   throws (1:AdminException e)
 
+/*
+ * Create a checkpoint of the db which peers can stream with
+ * readCheckpointFile(). The checkpoint must be released after use, otherwise
+ * it is removed after it expires.
+ */
+CreateCheckpointResponse createCheckpoint(1:CreateCheckpointRequest request)
+  throws (1:AdminException e)
+
+/*
+ * Read a chunk of a file in a checkpoint created by createCheckpoint()
+ */
+ReadCheckpointFileResponse readCheckpointFile(
+    1:ReadCheckpointFileRequest request)
+  throws (1:AdminException e)
+
+/*
+ * Remove a checkpoint created by createCheckpoint()
+ */
+ReleaseCheckpointResponse releaseCheckpoint(1:ReleaseCheckpointRequest request)
+  throws (1:AdminException e)
+
+/*
+ * Restore the db by streaming a checkpoint directly from a peer admin server,
+ * without going through HDFS or S3.
+ * The newly restored db is always SLAVE, and it will pull updates
+ * from upstream_ip:upstream_port
+ */
+RestoreDBFromPeerResponse restoreDBFromPeer(1:RestoreDBFromPeerRequest request)
+  throws (1:AdminException e)
+
 /*
  * Check if a DB exists on a host
  */
 CheckDBResponse checkDB(1: CheckDBRequest request)
   throws (1:AdminException e)
 
+/*
+ * Check multiple DBs on a host in one request
+ */
+CheckDBsResponse checkDBs(1: CheckDBsRequest request)
+  throws (1:AdminException e)
+
 /*
  * Close a DB
  */
 CloseDBResponse closeDB(1:CloseDBRequest request)
   throws (1:AdminException e)
 
+/*
+ * Close multiple DBs on a host in one request
+ */
+CloseDBsResponse closeDBs(1:CloseDBsRequest request)
+  throws (1:AdminException e)
+
 /*
  * Change the role and the upstream for the specified db
  */
@@ -303,6 +489,22 @@ ChangeDBRoleAndUpstreamResponse changeDBRoleAndUpStream(
 GetSequenceNumberResponse getSequenceNumber(1:GetSequenceNumberRequest request)
   throws (1:AdminException e)
 
+/*
+ * Get the sequence numbers of multiple DBs on a host in one request
+ */
+GetSequenceNumbersResponse getSequenceNumbers(
+    1:GetSequenceNumbersRequest request)
+  throws (1:AdminException e)
+
+/*
+ * Wait until the sequence number of the db reaches target_seq_num, or until
+ * timeout_ms has passed.
+ * This is useful when catching up a SLAVE before promoting it to MASTER
+ */
+WaitForSequenceNumberResponse waitForSequenceNumber(
+    1:WaitForSequenceNumberRequest request)
+  throws (1:AdminException e)
+
 /*
  * Clear the content of a DB.
  */
@@ -29,6 +29,17 @@ using admin::AdminHandler;
 using admin::ApplicationDBManager;
 using admin::CheckDBRequest;
 using admin::CheckDBResponse;
+using admin::CheckDBsRequest;
+using admin::CheckDBsResponse;
+using admin::CreateCheckpointRequest;
+using admin::CreateCheckpointResponse;
+using admin::GetSequenceNumbersRequest;
+using admin::GetSequenceNumbersResponse;
+using admin::ReadCheckpointFileRequest;
+using admin::ReadCheckpointFileResponse;
+using admin::ReleaseCheckpointRequest;
+using admin::WaitForSequenceNumberRequest;
+using admin::WaitForSequenceNumberResponse;
 using apache::thrift::async::TAsyncSocket;
 using apache::thrift::HeaderClientChannel;
 using apache::thrift::ThriftServer;
@@ -175,6 +186,182 @@ TEST(AdminHandlerTest, CheckDB) {
   thread->join();
 }
 
+TEST(AdminHandlerTest, BatchRequests) {
+  EXPECT_EQ(std::system("rm -rf /tmp/meta_db"), 0);
+
+  shared_ptr<AdminHandler> handler;
+  shared_ptr<ThriftServer> server;
+  shared_ptr<thread> thread;
+  tie(handler, server, thread) = makeServer(8092);
+  sleep_for(seconds(1));
+
+  ThriftClientPool<AdminAsyncClient> pool(1);
+  auto client = pool.getClient("127.0.0.1", 8092);
+
+  CheckDBsRequest check_req;
+  CheckDBsResponse check_res;
+  check_req.db_names = {"imp00001", "imp00002", "unknown_db"};
+  EXPECT_NO_THROW(check_res = client->future_checkDBs(check_req).get());
+  EXPECT_EQ(check_res.db_status.size(), 2);
+  EXPECT_EQ(check_res.db_status["imp00001"].seq_num, 0);
+  EXPECT_EQ(check_res.db_status["imp00002"].seq_num, 1);
+  EXPECT_EQ(check_res.db_status["imp00002"].wal_ttl_seconds, 123);
+  EXPECT_EQ(check_res.errors.size(), 1);
+  EXPECT_EQ(check_res.errors["unknown_db"].errorCode,
+            admin::AdminErrorCode::DB_NOT_FOUND);
+
+  GetSequenceNumbersRequest seq_req;
+  GetSequenceNumbersResponse seq_res;
+  seq_req.db_names = {"imp00001", "imp00002", "unknown_db"};
+  EXPECT_NO_THROW(seq_res = client->future_getSequenceNumbers(seq_req).get());
+  EXPECT_EQ(seq_res.seq_nums.size(), 2);
+  EXPECT_EQ(seq_res.seq_nums["imp00001"], 0);
+  EXPECT_EQ(seq_res.seq_nums["imp00002"], 1);
+  EXPECT_EQ(seq_res.errors.size(), 1);
+  EXPECT_EQ(seq_res.errors.count("unknown_db"), 1);
+
+  server->stop();
+  thread->join();
+}
+
+TEST(AdminHandlerTest, PeerCheckpoint) {
+  EXPECT_EQ(std::system("rm -rf /tmp/meta_db"), 0);
+
+  shared_ptr<AdminHandler> handler;
+  shared_ptr<ThriftServer> server;
+  shared_ptr<thread> thread;
+  tie(handler, server, thread) = makeServer(8093);
+  sleep_for(seconds(1));
+
+  ThriftClientPool<AdminAsyncClient> pool(1);
+  auto client = pool.getClient("127.0.0.1", 8093);
+
+  CreateCheckpointRequest create_req;
+  CreateCheckpointResponse create_res;
+  create_req.db_name = "unknown_db";
+  EXPECT_THROW(create_res = client->future_createCheckpoint(create_req).get(),
+               AdminException);
+
+  create_req.db_name = "imp00002";
+  EXPECT_NO_THROW(
+    create_res = client->future_createCheckpoint(create_req).get());
+  EXPECT_EQ(create_res.seq_num, 1);
+  EXPECT_FALSE(create_res.files.empty());
+
+  // read every file in 2 chunks
+  for (const auto& file : create_res.files) {
+    ReadCheckpointFileRequest read_req;
+    ReadCheckpointFileResponse read_res;
+    read_req.checkpoint_id = create_res.checkpoint_id;
+    read_req.file_name = file.file_name;
+    read_req.offset = 0;
+    read_req.length = file.file_size / 2;
+    EXPECT_NO_THROW(
+      read_res = client->future_readCheckpointFile(read_req).get());
+    EXPECT_EQ(read_res.data.size(), file.file_size / 2);
+
+    read_req.offset = file.file_size / 2;
+    read_req.length = file.file_size;
+    EXPECT_NO_THROW(
+      read_res = client->future_readCheckpointFile(read_req).get());
+    EXPECT_EQ(read_res.data.size(), file.file_size - file.file_size / 2);
+  }
+
+  // files outside of the checkpoint can't be read
+  ReadCheckpointFileRequest read_req;
+  ReadCheckpointFileResponse read_res;
+  read_req.checkpoint_id = create_res.checkpoint_id;
+  read_req.file_name = "../../meta_db/CURRENT";
+  read_req.offset = 0;
+  read_req.length = 100;
+  EXPECT_THROW(read_res = client->future_readCheckpointFile(read_req).get(),
+               AdminException);
+
+  // checkpoints of the same db created at once don't share their ids
+  auto other_future = client->future_createCheckpoint(create_req);
+  auto another_future = client->future_createCheckpoint(create_req);
+  CreateCheckpointResponse other_res;
+  CreateCheckpointResponse another_res;
+  EXPECT_NO_THROW(other_res = other_future.get());
+  EXPECT_NO_THROW(another_res = another_future.get());
+  EXPECT_NE(other_res.checkpoint_id, create_res.checkpoint_id);
+  EXPECT_NE(other_res.checkpoint_id, another_res.checkpoint_id);
+
+  ReleaseCheckpointRequest release_req;
+  release_req.checkpoint_id = create_res.checkpoint_id;
+  EXPECT_NO_THROW(client->future_releaseCheckpoint(release_req).get());
+
+  read_req.file_name = create_res.files[0].file_name;
+  EXPECT_THROW(read_res = client->future_readCheckpointFile(read_req).get(),
+               AdminException);
+
+  // the others are still readable
+  for (const auto& res : {other_res, another_res}) {
+    read_req.checkpoint_id = res.checkpoint_id;
+    read_req.file_name = res.files[0].file_name;
+    read_req.length = res.files[0].file_size;
+    EXPECT_NO_THROW(
+      read_res = client->future_readCheckpointFile(read_req).get());
+    EXPECT_EQ(read_res.data.size(), res.files[0].file_size);
+
+    release_req.checkpoint_id = res.checkpoint_id;
+    EXPECT_NO_THROW(client->future_releaseCheckpoint(release_req).get());
+  }
+
+  server->stop();
+  thread->join();
+}
+
+TEST(AdminHandlerTest, WaitForSequenceNumber) {
+  EXPECT_EQ(std::system("rm -rf /tmp/meta_db"), 0);
+
+  shared_ptr<AdminHandler> handler;
+  shared_ptr<ThriftServer> server;
+  shared_ptr<thread> thread;
+  tie(handler, server, thread) = makeServer(8091);
+  sleep_for(seconds(1));
+
+  ThriftClientPool<AdminAsyncClient> pool(1);
+  auto client = pool.getClient("127.0.0.1", 8091);
+
+  WaitForSequenceNumberRequest req;
+  WaitForSequenceNumberResponse res;
+  req.db_name = "unknown_db";
+  req.target_seq_num = 1;
+  EXPECT_THROW(res = client->future_waitForSequenceNumber(req).get(),
+               AdminException);
+
+  // already reached
+  req.db_name = "imp00002";
+  req.target_seq_num = 1;
+  EXPECT_NO_THROW(res = client->future_waitForSequenceNumber(req).get());
+  EXPECT_EQ(res.seq_num, 1);
+  EXPECT_TRUE(res.reached);
+
+  // time out
+  req.target_seq_num = 2;
+  req.set_timeout_ms(100);
+  EXPECT_NO_THROW(res = client->future_waitForSequenceNumber(req).get());
+  EXPECT_EQ(res.seq_num, 1);
+  EXPECT_FALSE(res.reached);
+
+  // reached after a write in the middle of waiting
+  req.set_timeout_ms(10000);
+  auto future = client->future_waitForSequenceNumber(req);
+  sleep_for(std::chrono::milliseconds(100));
+  rocksdb::WriteBatch batch;
+  EXPECT_TRUE(batch.Delete("b").ok());
+  auto app_db = handler->getDB("imp00002", nullptr);
+  EXPECT_TRUE(app_db->Write(rocksdb::WriteOptions(), &batch).ok());
+  app_db.reset();
+  EXPECT_NO_THROW(res = std::move(future).get());
+  EXPECT_EQ(res.seq_num, 2);
+  EXPECT_TRUE(res.reached);
+
+  server->stop();
+  thread->join();
+}
+
 int main(int argc, char** argv) {
   FLAGS_rocksdb_dir = "/tmp/";
   ::testing::InitGoogleTest(&argc, argv);
@@ -99,6 +99,22 @@ class RocksDBReplicator {
                           rocksdb::WriteBatch* updates,
                           rocksdb::SequenceNumber* seq_no = nullptr);
 
+    // Run f() in the executor once the latest sequence number reaches seq_no,
+    // after the next update is written or pulled from upstream, or timeout_ms
+    // later, whichever comes first. f() runs exactly once, and should recheck
+    // the sequence number since the next update may not reach seq_no yet.
+    template <typename Func>
+    void runOnUpdateOrTimeout(Func f, rocksdb::SequenceNumber seq_no,
+                              uint64_t timeout_ms) {
+      auto db = db_;
+      cond_var_.runIfConditionOrWaitForNotify(
+        std::move(f),
+        [db = std::move(db), seq_no] () {
+          return db->GetLatestSequenceNumber() >= seq_no;
+        },
+        timeout_ms);
+    }
+
     // read APIs may be added later on demand. They can be simply implmented by
     // delegating to the internal rocksdb::DB object.
 